@@ -1,5 +1,6 @@
 package com.optimasc.streams;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.IllegalStateException;
@@ -54,6 +55,41 @@ public class TestUtilities extends TestCase
     }    
   }
   
+  /** Stream that behaves like a pipe: it does not support mark, 
+   *  available() always returns 0 and data arrives in small blocks. 
+   */
+  public static class ForwardOnlyInputStream extends FilterInputStream 
+  {
+    public ForwardOnlyInputStream(InputStream in)
+    {
+      super(in);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      return super.read(b, off, Math.min(len, 1500));
+    }
+
+    public int available() throws IOException
+    {
+      return 0;
+    }
+
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+    public synchronized void mark(int readlimit)
+    {
+    }
+
+    public synchronized void reset() throws IOException
+    {
+      throw new IOException("mark/reset not supported");
+    }
+  }
+  
   /** Looks for the attribute with the specified namespace and
    *  local name in an array of Attribute, and returns the index
    *  into that element, or -1 if it is not found.
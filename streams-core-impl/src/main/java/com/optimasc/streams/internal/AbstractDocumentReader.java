@@ -1,7 +1,13 @@
 package com.optimasc.streams.internal;
 
+import java.io.DataInput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Stack;
 import java.util.Vector;
 
@@ -14,6 +20,8 @@ import com.optimasc.streams.DocumentStreamConstants;
 import com.optimasc.streams.DocumentStreamException;
 import com.optimasc.streams.DocumentStreamReader;
 import com.optimasc.streams.ErrorHandler;
+import com.optimasc.streams.EventBatch;
+import com.optimasc.streams.IdSetFilter;
 import com.optimasc.streams.Location;
 import com.optimasc.streams.StreamFilter;
 
@@ -40,10 +48,16 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
 
   protected ChunkInfo currentChunk;
   protected ChunkInfo nextChunk;
+  /** Indicates that the current chunk is a group on the nesting stack */
+  protected boolean currentChunkNested;
+  /** Chunks that are no longer used and that can be reused, sized to maxNestingLevel + 2 */
+  protected ChunkInfo[] chunkPool;
+  /** Number of chunks available in chunkPool */
+  protected int chunkPoolCount;
   /** Contains information on elements that should be skipped */
   protected StreamFilter filter;
 
-  /** In the DATA chunk indicates the number of bytes left to read */
+  /** In the DATA chunk indicates the number of bytes left to read, or -1 if it is not known */
   protected long dataSizeLeft;
 
   /** Contains information on nesting of chunks */
@@ -55,6 +69,18 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
   protected DocumentInfo document;
   /** Current error handler registered - default one fails on fatal errors */
   protected ErrorHandler errorHandler;
+  /** Buffer containing the complete input, or null if the input is not a buffer */
+  protected ByteBuffer sourceBuffer;
+  /** Channel containing the complete input, or null if the input is not a channel */
+  protected FileChannel sourceChannel;
+  /** Intermediate array used when the data cannot be read directly in the target */
+  protected byte[] transferBuffer;
+  /** Stream with a look-ahead window in streaming mode, otherwise null */
+  protected LookAheadInputStream streamInput;
+  /** Leaf chunks are reported as a single ELEMENT event */
+  protected boolean compactElements;
+  /** View on the data of the current chunk, allocated on first use */
+  protected PayloadDataInput dataInput;
 
   /**
    * Creates this instance of a linear parser that accepts nesting levels up to
@@ -72,6 +98,10 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
     nextState = DocumentStreamConstants.START_DOCUMENT;
     currentState = DocumentStreamConstants.START_DOCUMENT;
     currentChunk = null;
+    currentChunkNested = false;
+    // All open groups, the current chunk and the chunk read ahead
+    chunkPool = new ChunkInfo[maxNesting + 2];
+    chunkPoolCount = 0;
     nextChunk = newChunkInfo();
     filter = new DefaultStreamFilter();
     errorHandler = this;
@@ -112,10 +142,27 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
 
   public Object getProperty(String name) throws IllegalArgumentException
   {
-    // TODO Auto-generated method stub
+    if (name == null)
+      throw new IllegalArgumentException("Property name cannot be null.");
+    if (name.equals(DocumentStreamConstants.PROPERTY_COMPACT_ELEMENTS))
+      return new Boolean(compactElements);
     return null;
   }
 
+  public void setProperty(String name, Object value) throws IllegalArgumentException
+  {
+    if (name == null)
+      throw new IllegalArgumentException("Property name cannot be null.");
+    if (name.equals(DocumentStreamConstants.PROPERTY_COMPACT_ELEMENTS))
+    {
+      if ((value instanceof Boolean) == false)
+        throw new IllegalArgumentException("Property value must be a Boolean.");
+      compactElements = ((Boolean) value).booleanValue();
+      return;
+    }
+    throw new IllegalArgumentException("Unsupported property: " + name);
+  }
+
   /**
    * This routine should return an instance of a Chunk, it can be overriden to
    * return more specialized chunk types.
@@ -175,11 +222,16 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
         dataSizeLeft = currentChunk.size;
         if (filter.accept(this) == false)
         {
-          skipData(currentChunk.size + currentChunk.extraSize);
+          // The extra data is skipped by END_ELEMENT
+          skipDataLeft(0);
         }
         nextState = DocumentStreamConstants.END_ELEMENT;
         break;
 
+      // Skip all the data that was not read, then verify if there is more data or not.
+      case DocumentStreamConstants.ELEMENT:
+        skipDataLeft(currentChunk.extraSize);
+        // Fall through
       // Verify if there is more data or not.  
       case DocumentStreamConstants.END_GROUP:
         //----- Verify if one or more groups have not been finished
@@ -192,7 +244,9 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
             if ((info != null) && (isGroupEnd(currentChunk, info)))
             {
               // Now we should point to the end group
+              releaseCurrentChunk();
               currentChunk = (ChunkInfo) nestingInfo.pop();
+              currentChunkNested = false;
               currentState = DocumentStreamConstants.END_GROUP;
               nextState = DocumentStreamConstants.END_GROUP;
               return currentState;
@@ -230,7 +284,7 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
         break;
       case DocumentStreamConstants.END_ELEMENT:
         // Skip all the data that we did not read.
-        skipData(dataSizeLeft + currentChunk.extraSize);
+        skipDataLeft(currentChunk.extraSize);
         // Hack: next state is POSSIBLY an END group
         nextState = DocumentStreamConstants.END_GROUP;
         break;
@@ -243,9 +297,130 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
     return currentState;
   }
 
+  public int nextTag() throws DocumentStreamException, IOException
+  {
+    int event = currentState;
+    do
+    {
+      event = next();
+    } while ((event == DocumentStreamConstants.DATA) || (event == DocumentStreamConstants.END_ELEMENT)
+        || (event == DocumentStreamConstants.START_DOCUMENT));
+    return event;
+  }
+
+  public int nextBatch(EventBatch batch) throws DocumentStreamException, IOException
+  {
+    int count = 0;
+    int capacity = batch.type.length;
+    int event;
+    while ((count < capacity) && (currentState != DocumentStreamConstants.END_DOCUMENT))
+    {
+      event = next();
+      batch.type[count] = event;
+      if ((event == DocumentStreamConstants.START_DOCUMENT) || (event == DocumentStreamConstants.END_DOCUMENT))
+      {
+        batch.id[count] = null;
+        batch.offset[count] = ChunkInfo.UNDEFINED_VALUE;
+        batch.size[count] = ChunkInfo.UNDEFINED_VALUE;
+        batch.depth[count] = 0;
+      }
+      else
+      {
+        batch.id[count] = currentChunk.id;
+        batch.offset[count] = currentChunk.offset;
+        batch.size[count] = currentChunk.size;
+        // An open group is itself on the nesting stack
+        batch.depth[count] = currentChunkNested ? nestingInfo.size() - 1 : nestingInfo.size();
+      }
+      count++;
+    }
+    batch.count = count;
+    return count;
+  }
+
+  public void skipCurrentGroup() throws DocumentStreamException, IOException
+  {
+    int depth;
+    if (currentState != DocumentStreamConstants.START_GROUP)
+      throw new IllegalStateException("Invalid state.");
+    depth = nestingInfo.size();
+    if ((currentChunkNested) && (skipGroup(currentChunk)))
+    {
+      // The chunk that was read ahead is part of the group, it is simply discarded
+      nestingInfo.pop();
+      currentChunkNested = false;
+      currentState = DocumentStreamConstants.END_GROUP;
+      nextState = DocumentStreamConstants.END_GROUP;
+      return;
+    }
+    // Parse the group until it is closed
+    while (hasNext())
+    {
+      if ((next() == DocumentStreamConstants.END_GROUP) && (nestingInfo.size() < depth))
+        break;
+    }
+  }
+
+  /**
+   * Returns a chunk from the pool of unused chunks, or allocates one if the 
+   * pool is empty. The returned chunk contains undefined values.
+   * 
+   * @return A chunk that can be filled in.
+   */
+  protected ChunkInfo acquireChunk()
+  {
+    if (chunkPoolCount > 0)
+    {
+      chunkPoolCount--;
+      ChunkInfo chunk = chunkPool[chunkPoolCount];
+      chunkPool[chunkPoolCount] = null;
+      return chunk;
+    }
+    return newChunkInfo();
+  }
+
+  /**
+   * Gives back the current chunk to the pool of unused chunks, unless it is 
+   * a group that is still on the nesting stack.
+   */
+  private void releaseCurrentChunk()
+  {
+    if ((currentChunk != null) && (currentChunkNested == false) && (chunkPoolCount < chunkPool.length))
+    {
+      chunkPool[chunkPoolCount] = currentChunk;
+      chunkPoolCount++;
+    }
+    currentChunk = null;
+  }
+
+  /**
+   * The chunk that was read ahead becomes the current chunk, and a chunk
+   * is taken from the pool to read the next chunk, therefore no chunk
+   * is allocated or copied once the pool is filled.
+   */
+  private void advanceChunk()
+  {
+    releaseCurrentChunk();
+    currentChunk = nextChunk;
+    currentChunkNested = false;
+    nextChunk = acquireChunk();
+  }
+
   private void processStartElement() throws DocumentStreamException, IOException
   {
-    currentChunk = (ChunkInfo) nextChunk.clone();
+    advanceChunk();
+    if (compactElements)
+    {
+      currentState = DocumentStreamConstants.ELEMENT;
+      nextState = DocumentStreamConstants.ELEMENT;
+      dataSizeLeft = currentChunk.size;
+      // The extra data is skipped by the next event
+      if (filter.accept(this) == false)
+      {
+        skipDataLeft(0);
+      }
+      return;
+    }
     if (filter.accept(this))
     {
       nextState = DocumentStreamConstants.DATA;
@@ -258,15 +433,17 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
     }
     else
     {
+      // The data is skipped by END_ELEMENT
       nextState = DocumentStreamConstants.END_ELEMENT;
-      skipData(currentChunk.size + currentChunk.extraSize);
+      dataSizeLeft = currentChunk.size;
     }
   }
 
   private void processStartGroup() throws DocumentStreamException, IOException
   {
-    currentChunk = (ChunkInfo) nextChunk.clone();
+    advanceChunk();
     nestingInfo.push(currentChunk);
+    currentChunkNested = true;
     if (filter.accept(this))
     {
       try {
@@ -317,7 +494,8 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
     int i;
     // Return the value given by the current chunk - only if this is a START_ELEMEMT or START_GROUP section
     if (((currentState == DocumentStreamConstants.START_GROUP)
-        || (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.START_ELEMENT)) == false)
+        || (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.START_ELEMENT)
+        || (currentState == DocumentStreamConstants.ELEMENT)) == false)
       throw new IllegalStateException("Invalid state.");
 
     v = currentChunk.getAttributes();
@@ -346,7 +524,8 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
   {
     // Return the value given by the current chunk - only if this is a START_ELEMEMT or START_GROUP section
     if (((currentState == DocumentStreamConstants.START_GROUP)
-        || (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.START_ELEMENT)) == false)
+        || (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.START_ELEMENT)
+        || (currentState == DocumentStreamConstants.ELEMENT)) == false)
       throw new IllegalStateException("Invalid state.");
     return currentChunk.getAttributes().size();
   }
@@ -356,7 +535,8 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
     Attribute attr;
     // Return the value given by the current chunk - only if this is a START_ELEMEMT or START_GROUP section
     if (((currentState == DocumentStreamConstants.START_GROUP)
-        || (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.START_ELEMENT)) == false)
+        || (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.START_ELEMENT)
+        || (currentState == DocumentStreamConstants.ELEMENT)) == false)
       throw new IllegalStateException("Invalid state.");
     attr = (Attribute) currentChunk.getAttributes().elementAt(index);
     if (attr != null)
@@ -375,10 +555,13 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
       throws DocumentStreamException, IOException
   {
     // Return the value given by the current chunk - only if this is a DATA section
-    if (currentState != DocumentStreamConstants.DATA)
+    if (isDataState() == false)
       errorHandler.fatalError(new DocumentStreamException(
           "Trying to read non-data values."));
 
+    if (isSizeUnknown())
+      return readUnsizedData(target, targetStart, length);
+
     // Verify if trying to read past end of stream
     if ((length) > (currentChunk.size))
     {
@@ -399,10 +582,271 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
     return length;
   }
 
+  public int getData(ByteBuffer target) throws DocumentStreamException, IOException
+  {
+    int length;
+    int count;
+    int blockLength;
+    // Return the value given by the current chunk - only if this is a DATA section
+    if (isDataState() == false)
+      errorHandler.fatalError(new DocumentStreamException(
+          "Trying to read non-data values."));
+
+    length = target.remaining();
+    if (isSizeUnknown())
+    {
+      if (target.hasArray())
+      {
+        count = readUnsizedData(target.array(), target.arrayOffset() + target.position(), length);
+        target.position(target.position() + count);
+        return count;
+      }
+      if (transferBuffer == null)
+        transferBuffer = new byte[8192];
+      count = 0;
+      while (count < length)
+      {
+        blockLength = Math.min(length - count, transferBuffer.length);
+        blockLength = readUnsizedData(transferBuffer, 0, blockLength);
+        if (blockLength == 0)
+          break;
+        target.put(transferBuffer, 0, blockLength);
+        count += blockLength;
+      }
+      return count;
+    }
+    if (length > dataSizeLeft)
+      length = (int) dataSizeLeft;
+    if (length <= 0)
+      return 0;
+
+    read(target, length);
+    dataSizeLeft = dataSizeLeft - length;
+    return length;
+  }
+
+  public ByteBuffer getDataSlice() throws DocumentStreamException, IOException
+  {
+    int length;
+    ByteBuffer slice;
+    // Return the value given by the current chunk - only if this is a DATA section
+    if (isDataState() == false)
+      errorHandler.fatalError(new DocumentStreamException(
+          "Trying to read non-data values."));
+    if (isSizeUnknown())
+      throw new UnsupportedOperationException("The size of the data is not known.");
+
+    length = Integer.MAX_VALUE;
+    if (dataSizeLeft < length)
+      length = (int) dataSizeLeft;
+    if (length < 0)
+      length = 0;
+    slice = sliceData(length);
+    dataSizeLeft = dataSizeLeft - length;
+    return slice;
+  }
+
+  public long transferData(WritableByteChannel target) throws DocumentStreamException, IOException
+  {
+    long length;
+    // Return the value given by the current chunk - only if this is a DATA section
+    if (isDataState() == false)
+      errorHandler.fatalError(new DocumentStreamException(
+          "Trying to read non-data values."));
+    if ((target instanceof SelectableChannel) && (((SelectableChannel) target).isBlocking() == false))
+      throw new IllegalArgumentException("The target channel must be in blocking mode.");
+    if (isSizeUnknown())
+      return transferUnsized(target);
+    length = dataSizeLeft;
+    if (length <= 0)
+      return 0;
+    length = transfer(target, length);
+    dataSizeLeft = dataSizeLeft - length;
+    return length;
+  }
+
+  /**
+   * Writes all the data left of a chunk whose size is not known in advance,
+   * as it cannot be read again.
+   */
+  private long transferUnsized(WritableByteChannel target) throws DocumentStreamException, IOException
+  {
+    long count = 0;
+    int blockLength;
+    if (transferBuffer == null)
+      transferBuffer = new byte[8192];
+    ByteBuffer buffer = ByteBuffer.wrap(transferBuffer);
+    do
+    {
+      blockLength = readUnsizedData(transferBuffer, 0, transferBuffer.length);
+      buffer.clear();
+      buffer.limit(blockLength);
+      while (buffer.hasRemaining())
+      {
+        target.write(buffer);
+      }
+      count += blockLength;
+    } while (blockLength == transferBuffer.length);
+    return count;
+  }
+
+  public DataInput getDataInput()
+  {
+    if (isDataState() == false)
+      throw new IllegalStateException("Invalid state.");
+    if (dataInput == null)
+      dataInput = new PayloadDataInput(this);
+    return dataInput;
+  }
+
+  /**
+   * Reads the next bytes of the data of the current chunk, used by the
+   * view returned by {@link #getDataInput()}.
+   *
+   * @throws EOFException If there is less data left than requested.
+   */
+  protected void readPayload(byte[] target, int offset, int length) throws IOException
+  {
+    if (isDataState() == false)
+      throw new IllegalStateException("Invalid state.");
+    if ((isSizeUnknown() == false) && (length > dataSizeLeft))
+      throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+    try
+    {
+      if (isSizeUnknown())
+      {
+        if (readUnsizedData(target, offset, length) < length)
+          throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+        return;
+      }
+      read(target, offset, length);
+    } catch (DocumentStreamException e)
+    {
+      IOException ioe = new IOException(e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    }
+    dataSizeLeft = dataSizeLeft - length;
+  }
+
+  /**
+   * Skips the next bytes of the data of the current chunk, used by the
+   * view returned by {@link #getDataInput()}.
+   *
+   * @return The number of bytes skipped, which is less than requested if
+   *   there is not enough data left.
+   */
+  protected long skipPayload(long length) throws IOException
+  {
+    if (isDataState() == false)
+      throw new IllegalStateException("Invalid state.");
+    if (isSizeUnknown())
+      return skipUnsized(length);
+    if (length > dataSizeLeft)
+      length = dataSizeLeft;
+    if (length <= 0)
+      return 0;
+    try
+    {
+      skipData(length);
+    } catch (DocumentStreamException e)
+    {
+      IOException ioe = new IOException(e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    }
+    dataSizeLeft = dataSizeLeft - length;
+    return length;
+  }
+
+  /**
+   * Skips the next bytes of the data of a chunk whose size is not known in
+   * advance, by reading them.
+   */
+  private long skipUnsized(long length) throws IOException
+  {
+    long count = 0;
+    int blockLength;
+    if (transferBuffer == null)
+      transferBuffer = new byte[8192];
+    try
+    {
+      while (count < length)
+      {
+        blockLength = (int) Math.min(length - count, transferBuffer.length);
+        blockLength = readUnsizedData(transferBuffer, 0, blockLength);
+        if (blockLength == 0)
+          break;
+        count += blockLength;
+      }
+    } catch (DocumentStreamException e)
+    {
+      IOException ioe = new IOException(e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    }
+    return count;
+  }
+
+  /**
+   * Skips the data of the current chunk that was not read, followed by the
+   * given number of extra bytes.
+   */
+  private void skipDataLeft(long extraSize) throws DocumentStreamException, IOException
+  {
+    if (isSizeUnknown())
+    {
+      // The end of data of unknown size is only found by reading it
+      if (transferBuffer == null)
+        transferBuffer = new byte[8192];
+      while (readUnsizedData(transferBuffer, 0, transferBuffer.length) == transferBuffer.length)
+      {
+      }
+    }
+    skipData(dataSizeLeft + extraSize);
+    dataSizeLeft = 0;
+  }
+
+  /** Indicates if the size of the data of the current chunk is only known once it has been read. */
+  private boolean isSizeUnknown()
+  {
+    return currentChunk.size == ChunkInfo.UNDEFINED_VALUE;
+  }
+
+  /**
+   * Reads the next bytes of the data of a chunk whose size is not known in
+   * advance, the end of the data is indicated by dataSizeLeft becoming 0.
+   */
+  private int readUnsizedData(byte[] target, int targetOffset, int length)
+      throws DocumentStreamException, IOException
+  {
+    int count;
+    if (dataSizeLeft == 0)
+      return 0;
+    count = readUnsized(target, targetOffset, length);
+    if (count < length)
+      dataSizeLeft = 0;
+    return count;
+  }
+
+  public long getDataOffset()
+  {
+    // Return the value given by the current chunk - only if this is a START_ELEMEMT, DATA or ELEMENT section
+    if (((currentState == DocumentStreamConstants.START_ELEMENT) || (isDataState())) == false)
+      throw new IllegalStateException("Invalid state.");
+    return currentChunk.offset;
+  }
+
+  /** Indicates if the data of the current chunk can be accessed. */
+  private boolean isDataState()
+  {
+    return (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.ELEMENT);
+  }
+
   public long getDataSize() throws DocumentStreamException, IOException
   {
     // Return the value given by the current chunk - only if this is a DATA section
-    if (currentState != DocumentStreamConstants.DATA)
+    if (isDataState() == false)
       errorHandler.error(new DocumentStreamException(""));
     return currentChunk.size;
   }
@@ -468,7 +912,8 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
   {
     // Return the value given by the current chunk - only if this is a START_ELEMEMT or START_GROUP section
     if (((currentState == DocumentStreamConstants.START_GROUP)
-        || (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.START_ELEMENT)) == false)
+        || (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.START_ELEMENT)
+        || (currentState == DocumentStreamConstants.ELEMENT)) == false)
       throw new IllegalStateException("Invalid state.");
     Attribute attr;
     attr = (Attribute) currentChunk.toAttributes().elementAt(index);
@@ -484,7 +929,8 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
     Attribute attr;
     // Return the value given by the current chunk - only if this is a START_ELEMEMT or START_GROUP section
     if (((currentState == DocumentStreamConstants.START_GROUP)
-        || (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.START_ELEMENT)) == false)
+        || (currentState == DocumentStreamConstants.DATA) || (currentState == DocumentStreamConstants.START_ELEMENT)
+        || (currentState == DocumentStreamConstants.ELEMENT)) == false)
       throw new IllegalStateException("Invalid state.");
     attr = (Attribute) currentChunk.toAttributes().elementAt(index);
     if (attr != null)
@@ -496,11 +942,235 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
 
   
   //----------------------------------- Needs to be overriden for special formats -------------------------------------
+  /**
+   * Positions the stream at the end of the specified group, which is the 
+   * group of the current START_GROUP event. The default implementation
+   * seeks directly after the data of the group, it must be overriden by
+   * formats where the size of a group does not indicate its end.
+   * 
+   * @param group The group to skip.
+   * @return true if the stream is at the end of the group, false if the group
+   *   must be skipped by parsing its contents.
+   */
+  protected boolean skipGroup(ChunkInfo group) throws DocumentStreamException, IOException
+  {
+    if (group.offset == ChunkInfo.UNDEFINED_VALUE)
+      return false;
+    reader.seek(group.offset + group.size + group.extraSize);
+    return true;
+  }
+
   protected void skipData(long size) throws DocumentStreamException, IOException
   {
     reader.seek(size+reader.getStreamPosition());
   }
 
+  /**
+   * Indicates if the data of the current chunk can be returned by 
+   * {@link #sliceData(int)}, the default implementation returns true if the
+   * input is a buffer or a file channel.
+   */
+  protected boolean isDataSliceable()
+  {
+    return (sourceBuffer != null) || (sourceChannel != null);
+  }
+
+  /**
+   * Returns a read-only view on the next bytes of the data of the current chunk,
+   * and advances the stream past them. The default implementation
+   * slices the input buffer or maps the region of the input channel at the 
+   * current stream position, so it must be overriden by formats that do not 
+   * read the data directly from the stream.
+   * 
+   * @param length The number of bytes to return.
+   * @return The view on the data, using the byte order of the document.
+   * @throws UnsupportedOperationException If the input is not a buffer or a channel. 
+   */
+  protected ByteBuffer sliceData(int length) throws DocumentStreamException, IOException
+  {
+    ByteBuffer slice;
+    long position = reader.getStreamPosition();
+    if (sourceBuffer != null)
+    {
+      slice = sourceBuffer.duplicate();
+      slice.limit((int) position + length);
+      slice.position((int) position);
+      slice = slice.slice();
+    }
+    else if (sourceChannel != null)
+    {
+      slice = sourceChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+    else
+    {
+      throw new UnsupportedOperationException("Input is not a buffer or a file channel.");
+    }
+    reader.seek(position + length);
+    slice = slice.asReadOnlyBuffer();
+    if ((document != null) && (document.getStreamType() == DocumentInfo.TYPE_LITTLE_ENDIAN))
+    {
+      slice.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+    }
+    return slice;
+  }
+
+  /**
+   * Writes the next bytes of the data of the current chunk to a channel, and 
+   * advances the stream past them. The default implementation lets the input
+   * channel transfer the data directly when possible, it must be overriden by 
+   * formats that do not read the data directly from the stream.
+   * 
+   * @param target The channel to write to, which is in blocking mode if it
+   *   is a selectable channel.
+   * @param length The number of bytes to write.
+   * @return The number of bytes written, which is less than length if the
+   *   target stopped accepting data, the stream is then positioned after 
+   *   the last byte written.
+   */
+  protected long transfer(WritableByteChannel target, long length) throws DocumentStreamException, IOException
+  {
+    long position = reader.getStreamPosition();
+    long count;
+    int blockLength;
+    count = 0;
+    if (sourceChannel != null)
+    {
+      // transferTo may write less than requested, even to channels in blocking mode.
+      while (count < length)
+      {
+        long written = sourceChannel.transferTo(position + count, length - count, target);
+        if (written <= 0)
+        {
+          if (sourceChannel.size() < position + length)
+            errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_END_OF_STREAM));
+          // The target does not accept any more data
+          break;
+        }
+        count += written;
+      }
+      reader.seek(position + count);
+    }
+    else if (sourceBuffer != null)
+    {
+      while (count < length)
+      {
+        blockLength = (int) Math.min(length - count, Integer.MAX_VALUE);
+        ByteBuffer slice = sliceData(blockLength);
+        while (slice.hasRemaining())
+        {
+          if (target.write(slice) <= 0)
+            break;
+        }
+        count += blockLength - slice.remaining();
+        if (slice.hasRemaining())
+        {
+          // The target does not accept any more data
+          reader.seek(position + count);
+          break;
+        }
+      }
+    }
+    else
+    {
+      // The data is consumed from the stream, so it is completely written
+      if (transferBuffer == null)
+        transferBuffer = new byte[8192];
+      ByteBuffer buffer = ByteBuffer.wrap(transferBuffer);
+      while (count < length)
+      {
+        blockLength = (int) Math.min(length - count, transferBuffer.length);
+        read(transferBuffer, 0, blockLength);
+        buffer.clear();
+        buffer.limit(blockLength);
+        while (buffer.hasRemaining())
+        {
+          target.write(buffer);
+        }
+        count += blockLength;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Reads the next bytes of the data of the current chunk into a buffer, and
+   * advances the stream past them. The default implementation copies a 
+   * slice of the input buffer, reads the input channel at the current stream
+   * position, or otherwise reads the data with {@link #read(byte[], int, int)}.
+   * 
+   * @param target The buffer receiving the data at its current position.
+   * @param length The number of bytes to read.
+   */
+  protected void read(ByteBuffer target, int length) throws DocumentStreamException, IOException
+  {
+    int count;
+    if (isDataSliceable() && (sourceBuffer != null))
+    {
+      target.put(sliceData(length));
+    }
+    else if (isDataSliceable() && (sourceChannel != null))
+    {
+      // A mapping for each call would only be released by the garbage collector
+      long position = reader.getStreamPosition();
+      int start = target.position();
+      int limit = target.limit();
+      target.limit(start + length);
+      try
+      {
+        while (target.hasRemaining())
+        {
+          if (sourceChannel.read(target, position + target.position() - start) < 0)
+          {
+            errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_END_OF_STREAM));
+            break;
+          }
+        }
+      } finally
+      {
+        target.limit(limit);
+      }
+      reader.seek(position + length);
+    }
+    else if (target.hasArray())
+    {
+      read(target.array(), target.arrayOffset() + target.position(), length);
+      target.position(target.position() + length);
+    }
+    else
+    {
+      if (transferBuffer == null)
+        transferBuffer = new byte[8192];
+      count = length;
+      while (count > 0)
+      {
+        int blockLength = Math.min(count, transferBuffer.length);
+        read(transferBuffer, 0, blockLength);
+        target.put(transferBuffer, 0, blockLength);
+        count -= blockLength;
+      }
+    }
+  }
+
+  /**
+   * Reads the next bytes of the data of the current chunk when its size is
+   * not known in advance, which is indicated by a chunk size of 
+   * {@link ChunkInfo#UNDEFINED_VALUE}. The end of the data must be found 
+   * while it is read, and no data is read once it has been reached. The 
+   * default implementation does not support such chunks.
+   * 
+   * @param target The array receiving the data.
+   * @param targetOffset The offset of the data in target.
+   * @param length The maximum number of bytes to read.
+   * @return The number of bytes read, which is less than length only when
+   *   the end of the data has been reached.
+   */
+  protected int readUnsized(byte[] target, int targetOffset, int length)
+      throws DocumentStreamException, IOException
+  {
+    errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_BLOCK_INVALID_SIZE));
+    return 0;
+  }
+
   protected void read(byte[] target, int targetOffset, int length)
       throws DocumentStreamException
   {
@@ -535,6 +1205,43 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
   {
     if (reader.getStreamPosition() >= document.getSize())
       return true;
+    // The size of the document is not always known in streaming mode
+    if (streamInput != null)
+      return streamInput.isEndOfStream();
+    return false;
+  }
+
+  /**
+   * Returns the maximum number of bytes that can be read before seeking 
+   * back to the current position. Formats should verify this limit before
+   * reading data twice.
+   * 
+   * @return the size of the look-ahead window in streaming mode, 
+   *   otherwise Long.MAX_VALUE.
+   */
+  protected long getLookAheadLimit()
+  {
+    if (streamInput != null)
+      return streamInput.getWindowSize();
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Verifies, as soon as the identifier of a chunk is known, if the chunk
+   * will be skipped by the filter, so that formats can avoid validating or
+   * decoding it. Only filters that decide on the identifier alone can be
+   * queried, for other filters, the chunk is never considered as skipped.
+   * 
+   * @param id The identifier of the chunk.
+   * @param type The type of chunk, either ChunkInfo.TYPE_GROUP or ChunkInfo.TYPE_CHUNK.
+   * @return true if the chunk will be skipped.
+   */
+  protected boolean isSkipped(Object id, int type)
+  {
+    if (filter instanceof IdSetFilter)
+    {
+      return ((IdSetFilter) filter).acceptId(id, type == ChunkInfo.TYPE_GROUP) == false;
+    }
     return false;
   }
 
@@ -554,6 +1261,60 @@ public abstract class AbstractDocumentReader implements DocumentStreamReader,
 
   public void setInput(InputStream is, String inputEncoding)
       throws DocumentStreamException
+  {
+    sourceBuffer = null;
+    sourceChannel = null;
+    streamInput = null;
+    // Streams that support mark are read as before, even if no data is available yet
+    if (((is instanceof SeekableDataInputStream) == false) && (is.markSupported() == false))
+    {
+      setStreamingInput(is, LookAheadInputStream.DEFAULT_WINDOW_SIZE);
+      return;
+    }
+    setInputStream(is);
+  }
+
+  public void setStreamingInput(InputStream is, int windowSize) throws DocumentStreamException
+  {
+    sourceBuffer = null;
+    sourceChannel = null;
+    streamInput = new LookAheadInputStream(is, windowSize);
+    setInputStream(streamInput);
+  }
+
+  public void setInput(ByteBuffer buffer) throws DocumentStreamException
+  {
+    ByteBufferInputStream is = new ByteBufferInputStream(buffer);
+    sourceChannel = null;
+    streamInput = null;
+    sourceBuffer = is.getBuffer();
+    setInputStream(is);
+  }
+
+  public void setInput(FileChannel channel) throws DocumentStreamException
+  {
+    try
+    {
+      // Map the complete file when possible, otherwise only map the data when requested. 
+      if (channel.size() <= Integer.MAX_VALUE)
+      {
+        setInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+      else
+      {
+        sourceBuffer = null;
+        streamInput = null;
+        setInputStream(new ChannelInputStream(channel));
+      }
+    } catch (IOException e)
+    {
+      throw new DocumentStreamException(DocumentStreamException.ERR_IO, e);
+    }
+    sourceChannel = channel;
+  }
+
+  /** Sets the stream used by the reader, which must support mark and available. */ 
+  protected void setInputStream(InputStream is) throws DocumentStreamException
   {
 
     if (is.markSupported()==false)
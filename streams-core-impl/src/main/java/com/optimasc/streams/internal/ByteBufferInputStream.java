@@ -0,0 +1,97 @@
+package com.optimasc.streams.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream that reads from a {@link java.nio.ByteBuffer}, which can either
+ * be a heap buffer or a memory mapped region of a file. The contents of the
+ * buffer are never copied, and <code>skip()</code>, <code>mark()</code> and
+ * <code>reset()</code> only move the position in the buffer.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class ByteBufferInputStream extends InputStream
+{
+  /** The buffer containing the data, position 0 is the start of the stream */
+  protected ByteBuffer buffer;
+  /** The marked position in the buffer */
+  protected int markPosition;
+
+  /**
+   * Creates a stream reading from the remaining bytes of the specified buffer.
+   * The position and limit of the buffer passed as parameter are not
+   * modified.
+   *
+   * @param buffer
+   *          The buffer to read from.
+   */
+  public ByteBufferInputStream(ByteBuffer buffer)
+  {
+    this.buffer = buffer.slice();
+    markPosition = 0;
+  }
+
+  public int read() throws IOException
+  {
+    if (buffer.hasRemaining() == false)
+      return -1;
+    return buffer.get() & 0xFF;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (len == 0)
+      return 0;
+    if (buffer.hasRemaining() == false)
+      return -1;
+    if (len > buffer.remaining())
+      len = buffer.remaining();
+    buffer.get(b, off, len);
+    return len;
+  }
+
+  public long skip(long n) throws IOException
+  {
+    if (n <= 0)
+      return 0;
+    if (n > buffer.remaining())
+      n = buffer.remaining();
+    buffer.position(buffer.position() + (int) n);
+    return n;
+  }
+
+  public int available() throws IOException
+  {
+    return buffer.remaining();
+  }
+
+  public boolean markSupported()
+  {
+    return true;
+  }
+
+  public synchronized void mark(int readlimit)
+  {
+    markPosition = buffer.position();
+  }
+
+  public synchronized void reset() throws IOException
+  {
+    buffer.position(markPosition);
+  }
+
+  /**
+   * Returns the underlying buffer, where position 0 represents the start of
+   * the stream.
+   *
+   * @return The buffer used by this stream.
+   */
+  public ByteBuffer getBuffer()
+  {
+    return buffer;
+  }
+
+}
@@ -0,0 +1,106 @@
+package com.optimasc.streams.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input stream that reads from a {@link java.nio.channels.FileChannel} using
+ * positional reads. The position of the channel itself is never modified, so
+ * that <code>skip()</code>, <code>mark()</code> and <code>reset()</code> are
+ * constant time operations whatever the size of the file.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class ChannelInputStream extends InputStream
+{
+  /** The channel to read from */
+  protected FileChannel channel;
+  /** Current position in the channel */
+  protected long position;
+  /** The marked position in the channel */
+  protected long markPosition;
+  /** Single byte buffer used by read() */
+  protected ByteBuffer singleByte = ByteBuffer.allocate(1);
+
+  /**
+   * Creates a stream reading from the start of the specified channel.
+   *
+   * @param channel
+   *          The channel to read from.
+   */
+  public ChannelInputStream(FileChannel channel)
+  {
+    this.channel = channel;
+    position = 0;
+    markPosition = 0;
+  }
+
+  public int read() throws IOException
+  {
+    singleByte.clear();
+    if (channel.read(singleByte, position) <= 0)
+      return -1;
+    position++;
+    return singleByte.get(0) & 0xFF;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    int count;
+    if (len == 0)
+      return 0;
+    count = channel.read(ByteBuffer.wrap(b, off, len), position);
+    if (count <= 0)
+      return -1;
+    position += count;
+    return count;
+  }
+
+  public long skip(long n) throws IOException
+  {
+    long size = channel.size();
+    if (n <= 0)
+      return 0;
+    if (position + n > size)
+      n = size - position;
+    position += n;
+    return n;
+  }
+
+  public int available() throws IOException
+  {
+    long left = channel.size() - position;
+    if (left > Integer.MAX_VALUE)
+      return Integer.MAX_VALUE;
+    return (int) left;
+  }
+
+  public boolean markSupported()
+  {
+    return true;
+  }
+
+  public synchronized void mark(int readlimit)
+  {
+    markPosition = position;
+  }
+
+  public synchronized void reset() throws IOException
+  {
+    position = markPosition;
+  }
+
+  /**
+   * Returns the channel this stream reads from.
+   *
+   * @return The channel used by this stream.
+   */
+  public FileChannel getChannel()
+  {
+    return channel;
+  }
+
+}
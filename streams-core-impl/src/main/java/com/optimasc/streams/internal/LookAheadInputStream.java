@@ -0,0 +1,222 @@
+package com.optimasc.streams.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.optimasc.streams.DocumentStreamException;
+
+/**
+ * Input stream that permits forward only access to any input stream, such
+ * as a pipe or a network connection, while keeping the last bytes read in
+ * a fixed size window.
+ *
+ * <p>Seeking is done using <code>reset()</code> followed by <code>skip()</code>.
+ * The reset is only applied on the next operation, so that a reset followed
+ * by a skip to a position located after the current position only reads
+ * the missing bytes. Seeking backward is only possible within the window,
+ * otherwise an <code>IOException</code> is thrown.
+ *
+ * <p>As the size of the stream is not known, <code>available()</code>
+ * returns <code>Integer.MAX_VALUE</code> until the end of the stream
+ * has been reached.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class LookAheadInputStream extends InputStream
+{
+  /** Default size of the window in bytes */
+  public static final int DEFAULT_WINDOW_SIZE = 65536;
+
+  /** The stream to read from */
+  protected InputStream in;
+  /** Circular buffer containing the last bytes read from the stream */
+  protected byte[] window;
+  /** Current position in the stream */
+  protected long position;
+  /** Number of bytes read from the underlying stream */
+  protected long end;
+  /** The marked position in the stream */
+  protected long markPosition;
+  /** A reset was requested but not yet applied */
+  protected boolean resetPending;
+  /** The end of the underlying stream has been reached */
+  protected boolean endOfStream;
+
+  /**
+   * Creates a stream reading from the specified stream.
+   *
+   * @param in
+   *          The stream to read from.
+   * @param windowSize
+   *          The number of bytes before the last byte read that can be
+   *          accessed again.
+   */
+  public LookAheadInputStream(InputStream in, int windowSize)
+  {
+    this.in = in;
+    window = new byte[windowSize];
+    position = 0;
+    end = 0;
+    markPosition = 0;
+    resetPending = false;
+    endOfStream = false;
+  }
+
+  /**
+   * Reads more data from the underlying stream at the end of the window.
+   *
+   * @param length The maximum number of bytes to read.
+   * @return The number of bytes read, or -1 if the end of the stream is reached.
+   */
+  protected int fill(int length) throws IOException
+  {
+    int index = (int) (end % window.length);
+    int count;
+    if (endOfStream)
+      return -1;
+    count = in.read(window, index, Math.min(length, window.length - index));
+    if (count < 0)
+    {
+      endOfStream = true;
+      return -1;
+    }
+    end += count;
+    return count;
+  }
+
+  /**
+   * Sets the current position of the stream. If the position is beyond the
+   * end of the stream, the position is set to the end of the stream.
+   *
+   * @param target The new position.
+   * @throws IOException If the position is located before the window.
+   */
+  protected void seekTo(long target) throws IOException
+  {
+    resetPending = false;
+    if (target < end - Math.min(end, window.length))
+    {
+      throw new IOException(DocumentStreamException.ERR_BACKWARD_SEEK);
+    }
+    while (end < target)
+    {
+      if (fill((int) Math.min(target - end, window.length)) < 0)
+      {
+        position = end;
+        return;
+      }
+    }
+    position = target;
+  }
+
+  public int read() throws IOException
+  {
+    if (resetPending)
+      seekTo(markPosition);
+    while (position >= end)
+    {
+      if (fill(window.length) < 0)
+        return -1;
+    }
+    return window[(int) (position++ % window.length)] & 0xFF;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    int count;
+    int index;
+    int first;
+    if (resetPending)
+      seekTo(markPosition);
+    if (len == 0)
+      return 0;
+    while (position >= end)
+    {
+      if (fill(window.length) < 0)
+        return -1;
+    }
+    count = (int) Math.min(len, end - position);
+    index = (int) (position % window.length);
+    first = Math.min(count, window.length - index);
+    System.arraycopy(window, index, b, off, first);
+    if (count > first)
+    {
+      System.arraycopy(window, 0, b, off + first, count - first);
+    }
+    position += count;
+    return count;
+  }
+
+  public long skip(long n) throws IOException
+  {
+    long start = position;
+    if (resetPending)
+      start = markPosition;
+    if (n < 0)
+      n = 0;
+    seekTo(start + n);
+    return position - start;
+  }
+
+  /**
+   * Returns <code>Integer.MAX_VALUE</code> until the end of the stream has
+   * been reached, and afterwards the number of bytes left in the window.
+   */
+  public int available() throws IOException
+  {
+    if (endOfStream == false)
+      return Integer.MAX_VALUE;
+    if (resetPending)
+      return (int) (end - markPosition);
+    return (int) (end - position);
+  }
+
+  public boolean markSupported()
+  {
+    return true;
+  }
+
+  public synchronized void mark(int readlimit)
+  {
+    markPosition = position;
+    resetPending = false;
+  }
+
+  public synchronized void reset() throws IOException
+  {
+    resetPending = true;
+  }
+
+  /**
+   * Verifies if the current position is at the end of the stream, reading
+   * ahead one byte if required.
+   *
+   * @return true if no more data can be read from the stream.
+   */
+  public boolean isEndOfStream() throws IOException
+  {
+    long current = position;
+    if (resetPending)
+      current = markPosition;
+    if (current < end)
+      return false;
+    return fill(1) < 0;
+  }
+
+  /**
+   * Returns the size of the window.
+   *
+   * @return The number of bytes that can be accessed again after being read.
+   */
+  public int getWindowSize()
+  {
+    return window.length;
+  }
+
+  public void close() throws IOException
+  {
+    in.close();
+  }
+
+}
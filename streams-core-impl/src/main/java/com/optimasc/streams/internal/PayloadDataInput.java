@@ -0,0 +1,177 @@
+package com.optimasc.streams.internal;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import com.optimasc.streams.DocumentInfo;
+
+/**
+ * View on the data of the current element of a reader, which decodes
+ * values using the byte order of the document. Values are read directly
+ * from the reader, and reading beyond the data of the element throws an
+ * <code>EOFException</code>.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class PayloadDataInput implements DataInput
+{
+  /** The reader containing the data */
+  protected AbstractDocumentReader owner;
+  /** Temporary buffer used to decode values */
+  protected byte[] scratch = new byte[8];
+
+  /**
+   * Creates a view on the data of the specified reader.
+   *
+   * @param owner The reader containing the data.
+   */
+  public PayloadDataInput(AbstractDocumentReader owner)
+  {
+    this.owner = owner;
+  }
+
+  /** Returns true if the values are stored in little endian. */
+  protected boolean isLittleEndian()
+  {
+    return (owner.document != null) && (owner.document.getStreamType() == DocumentInfo.TYPE_LITTLE_ENDIAN);
+  }
+
+  /**
+   * Reads the specified number of bytes in the scratch buffer, and
+   * returns them as an unsigned value in the byte order of the document.
+   */
+  protected long readValue(int length) throws IOException
+  {
+    long value = 0;
+    int i;
+    owner.readPayload(scratch, 0, length);
+    if (isLittleEndian())
+    {
+      for (i = length - 1; i >= 0; i--)
+      {
+        value = (value << 8) | (scratch[i] & 0xFF);
+      }
+    }
+    else
+    {
+      for (i = 0; i < length; i++)
+      {
+        value = (value << 8) | (scratch[i] & 0xFF);
+      }
+    }
+    return value;
+  }
+
+  public void readFully(byte[] b) throws IOException
+  {
+    owner.readPayload(b, 0, b.length);
+  }
+
+  public void readFully(byte[] b, int off, int len) throws IOException
+  {
+    owner.readPayload(b, off, len);
+  }
+
+  public int skipBytes(int n) throws IOException
+  {
+    return (int) owner.skipPayload(n);
+  }
+
+  public boolean readBoolean() throws IOException
+  {
+    return readValue(1) != 0;
+  }
+
+  public byte readByte() throws IOException
+  {
+    return (byte) readValue(1);
+  }
+
+  public int readUnsignedByte() throws IOException
+  {
+    return (int) readValue(1);
+  }
+
+  public short readShort() throws IOException
+  {
+    return (short) readValue(2);
+  }
+
+  public int readUnsignedShort() throws IOException
+  {
+    return (int) readValue(2);
+  }
+
+  public char readChar() throws IOException
+  {
+    return (char) readValue(2);
+  }
+
+  public int readInt() throws IOException
+  {
+    return (int) readValue(4);
+  }
+
+  /**
+   * Reads four bytes and returns them as an unsigned value.
+   *
+   * @return The unsigned 32-bit value.
+   */
+  public long readUnsignedInt() throws IOException
+  {
+    return readValue(4);
+  }
+
+  public long readLong() throws IOException
+  {
+    return readValue(8);
+  }
+
+  public float readFloat() throws IOException
+  {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  public double readDouble() throws IOException
+  {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  /** Reads a line of ISO-8859-1 characters terminated by LF or CR LF. */
+  public String readLine() throws IOException
+  {
+    StringBuffer line = new StringBuffer();
+    int c;
+    // The size left is -1 while the end of data of unknown size has not been read
+    if (owner.dataSizeLeft == 0)
+      return null;
+    while (owner.dataSizeLeft != 0)
+    {
+      try
+      {
+        c = readUnsignedByte();
+      } catch (EOFException e)
+      {
+        if (line.length() == 0)
+          return null;
+        break;
+      }
+      if (c == '\n')
+        break;
+      line.append((char) c);
+    }
+    if ((line.length() > 0) && (line.charAt(line.length() - 1) == '\r'))
+      line.setLength(line.length() - 1);
+    return line.toString();
+  }
+
+  /** Reads a string in modified UTF-8, the length is stored in the byte order of the document. */
+  public String readUTF() throws IOException
+  {
+    return DataInputStream.readUTF(this);
+  }
+
+}
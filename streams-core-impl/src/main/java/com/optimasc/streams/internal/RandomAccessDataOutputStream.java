@@ -0,0 +1,72 @@
+package com.optimasc.streams.internal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import com.optimasc.io.SeekableDataOutputStream;
+
+/**
+ * Adapts a random access file for writers, without changing its existing
+ * content, so that writers can update a file in place. The position is
+ * the file pointer of the file.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class RandomAccessDataOutputStream extends SeekableDataOutputStream
+{
+  /** The file to write to */
+  protected RandomAccessFile file;
+
+  /**
+   * Creates a stream writing to the specified file, at its current
+   * file pointer.
+   *
+   * @param file
+   *          The file to write to.
+   */
+  public RandomAccessDataOutputStream(RandomAccessFile file)
+  {
+    this.file = file;
+  }
+
+  public void write(int b) throws IOException
+  {
+    file.write(b);
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    file.write(b, off, len);
+  }
+
+  public void write(byte[] b) throws IOException
+  {
+    write(b, 0, b.length);
+  }
+
+  public long getStreamPosition() throws IOException
+  {
+    return file.getFilePointer();
+  }
+
+  public void seek(long pos) throws IOException
+  {
+    file.seek(pos);
+  }
+
+  public long length() throws IOException
+  {
+    return file.length();
+  }
+
+  public void flush() throws IOException
+  {
+  }
+
+  public void close() throws IOException
+  {
+    file.close();
+  }
+
+}
@@ -2,6 +2,7 @@ package com.optimasc.streams.internal;
 
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Vector;
 
 import com.optimasc.archive.ArchiveEntry;
 import com.optimasc.text.BaseISO8601Date;
@@ -21,6 +22,11 @@ public class ResourceChunkInfo extends ChunkInfo implements ResourceType
   
   protected long    uncompressedSize;
   String  comment;
+  /** The standard attributes have been requested but not yet built. */
+  boolean standardAttributes;
+  
+  /** Hexadecimal digits used to encode the digest value. */
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
   
   public Boolean isEncrypted()
   {
@@ -71,6 +77,7 @@ public class ResourceChunkInfo extends ChunkInfo implements ResourceType
     comment = null;
     encryptionType = null;
     encryptionKeyLength = -1;
+    standardAttributes = false;
   }
 
   public void copy(ChunkInfo f)
@@ -90,6 +97,7 @@ public class ResourceChunkInfo extends ChunkInfo implements ResourceType
       comment = f1.comment;
       encryptionType = f1.encryptionType;
       encryptionKeyLength = f1.encryptionKeyLength;
+      standardAttributes = f1.standardAttributes;
     }
   }
 
@@ -219,12 +227,35 @@ public class ResourceChunkInfo extends ChunkInfo implements ResourceType
   
   
   
-  /** Sets the attributes for this resource. */
+  /** Sets the attributes for this resource. The attributes are only
+   *  built from the resource information on the first call to
+   *  {@link #getAttributes()} or {@link #toAttributes()}, so the
+   *  information should not be modified afterwards.
+   */
   public void addStandardAttributes()
   {
-    Calendar cal1 = Calendar.getInstance();
-    Calendar cal2 = Calendar.getInstance();
-    Calendar cal3 = Calendar.getInstance();
+    standardAttributes = true;
+  }
+  
+  public Vector toAttributes()
+  {
+    return getAttributes();
+  }
+
+  public Vector getAttributes()
+  {
+    if (standardAttributes)
+    {
+      standardAttributes = false;
+      buildStandardAttributes();
+    }
+    return attributes;
+  }
+  
+  /** Converts the resource information to attributes. */
+  protected void buildStandardAttributes()
+  {
+    Calendar cal = null;
     if (encrypted != null)
       attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_ENCRYPTION,ATTRIBUTE_NAME_ENCRYPTION,encrypted.toString()));
     if (encryptionType != null)
@@ -241,34 +272,39 @@ public class ResourceChunkInfo extends ChunkInfo implements ResourceType
     {
       attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_COMMENT,ATTRIBUTE_NAME_COMMENT,comment));
     }
+    if ((created != null) || (lastModified != null) || (lastAccessed != null))
+    {
+      cal = Calendar.getInstance();
+    }
     if (created != null)
     {
-      cal1.setTime(created);
-      attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_DATE_CREATED,ATTRIBUTE_NAME_DATE_CREATED,BaseISO8601Date.toString(cal1, true, false)));
+      cal.setTime(created);
+      attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_DATE_CREATED,ATTRIBUTE_NAME_DATE_CREATED,BaseISO8601Date.toString(cal, true, false)));
     }
     if (lastModified != null)
     {
-     cal2.setTime(lastModified);
-     attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_DATE_MODIFIED,ATTRIBUTE_NAME_DATE_MODIFIED,BaseISO8601Date.toString(cal2, true, false)));
+     cal.setTime(lastModified);
+     attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_DATE_MODIFIED,ATTRIBUTE_NAME_DATE_MODIFIED,BaseISO8601Date.toString(cal, true, false)));
     }
     if (lastAccessed != null)
     {
-     cal3.setTime(lastAccessed);
-     attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_DATE_ACCESSED,ATTRIBUTE_NAME_DATE_ACCESSED,BaseISO8601Date.toString(cal3, true, false)));
+     cal.setTime(lastAccessed);
+     attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_DATE_ACCESSED,ATTRIBUTE_NAME_DATE_ACCESSED,BaseISO8601Date.toString(cal, true, false)));
     }
-    attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_SIZE,ATTRIBUTE_NAME_SIZE,new Long(uncompressedSize).toString()));
+    attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_SIZE,ATTRIBUTE_NAME_SIZE,Long.toString(uncompressedSize)));
     if (digestType != null)
     {
       attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_HASH_TYPE,ATTRIBUTE_NAME_HASH_TYPE,digestType));
     }
     if (digest != null)
     {
-      StringBuffer s = new StringBuffer();
+      char[] s = new char[digest.length*2];
       for (int i =0; i < digest.length; i++)
       {
-        s.append(hexByte(digest[i]));
+        s[i*2] = HEX_DIGITS[(digest[i] >> 4) & 0x0F];
+        s[i*2+1] = HEX_DIGITS[digest[i] & 0x0F];
       }
-      attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_HASH_VALUE,ATTRIBUTE_NAME_HASH_VALUE,s.toString()));
+      attributes.addElement(new Attribute(ATTRIBUTE_NAMESPACE_HASH_VALUE,ATTRIBUTE_NAME_HASH_VALUE,new String(s)));
     }
   }
   
@@ -0,0 +1,81 @@
+package com.optimasc.streams.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.optimasc.io.SeekableDataOutputStream;
+
+/**
+ * Adapts an output stream that cannot seek, such as a socket or a pipe,
+ * for writers that only write forward. The position is the number of bytes
+ * written so far, and seeking is only possible to the current position.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class StreamingDataOutputStream extends SeekableDataOutputStream
+{
+  /** The stream to write to */
+  protected OutputStream out;
+  /** Number of bytes written to the stream */
+  protected long position;
+
+  /**
+   * Creates a stream writing to the specified stream.
+   *
+   * @param out
+   *          The stream to write to.
+   */
+  public StreamingDataOutputStream(OutputStream out)
+  {
+    this.out = out;
+    position = 0;
+  }
+
+  public void write(int b) throws IOException
+  {
+    out.write(b);
+    position++;
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    out.write(b, off, len);
+    position += len;
+  }
+
+  public void write(byte[] b) throws IOException
+  {
+    write(b, 0, b.length);
+  }
+
+  public long getStreamPosition() throws IOException
+  {
+    return position;
+  }
+
+  /** Only the current position can be reached, any other position
+   *  throws an <code>IOException</code>.
+   */
+  public void seek(long pos) throws IOException
+  {
+    if (pos != position)
+      throw new IOException("Seek on a streaming output");
+  }
+
+  public long length() throws IOException
+  {
+    return position;
+  }
+
+  public void flush() throws IOException
+  {
+    out.flush();
+  }
+
+  public void close() throws IOException
+  {
+    out.close();
+  }
+
+}
@@ -0,0 +1,124 @@
+package com.optimasc.streams.internal;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Vector;
+
+import com.optimasc.streams.Attribute;
+import com.optimasc.text.BaseISO8601Date;
+
+import junit.framework.TestCase;
+
+public class ResourceChunkInfoTest extends TestCase
+{
+
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+  }
+
+  protected void tearDown() throws Exception
+  {
+    super.tearDown();
+  }
+
+  /** Resource information which counts how many times its standard
+   *  attributes are built.
+   */
+  static class CountingResourceChunkInfo extends ResourceChunkInfo
+  {
+    int builds;
+
+    protected void buildStandardAttributes()
+    {
+      builds++;
+      super.buildStandardAttributes();
+    }
+  }
+
+  /** Returns the attributes which were previously built when calling
+   *  addStandardAttributes(), from the values set by fillResource().
+   */
+  protected Vector expectedAttributes(Date created, Date modified, String comment, long size, byte[] digest)
+  {
+    Vector v = new Vector();
+    Calendar cal = Calendar.getInstance();
+    StringBuffer hash = new StringBuffer();
+    v.addElement(new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_ENCRYPTION,ResourceType.ATTRIBUTE_NAME_ENCRYPTION,"false"));
+    v.addElement(new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_COMPRESSION_TYPE,ResourceType.ATTRIBUTE_NAME_COMPRESSION_TYPE,"Deflate"));
+    v.addElement(new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_COMMENT,ResourceType.ATTRIBUTE_NAME_COMMENT,comment));
+    cal.setTime(created);
+    v.addElement(new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_DATE_CREATED,ResourceType.ATTRIBUTE_NAME_DATE_CREATED,BaseISO8601Date.toString(cal, true, false)));
+    cal.setTime(modified);
+    v.addElement(new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_DATE_MODIFIED,ResourceType.ATTRIBUTE_NAME_DATE_MODIFIED,BaseISO8601Date.toString(cal, true, false)));
+    v.addElement(new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_SIZE,ResourceType.ATTRIBUTE_NAME_SIZE,Long.toString(size)));
+    v.addElement(new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_HASH_TYPE,ResourceType.ATTRIBUTE_NAME_HASH_TYPE,"CRC-32"));
+    for (int i = 0; i < digest.length; i++)
+    {
+      hash.append(Integer.toHexString(0x100 | (digest[i] & 0xFF)).substring(1).toUpperCase());
+    }
+    v.addElement(new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_HASH_VALUE,ResourceType.ATTRIBUTE_NAME_HASH_VALUE,hash.toString()));
+    return v;
+  }
+
+  protected void fillResource(ResourceChunkInfo chunk, Date created, Date modified, String comment, long size, byte[] digest)
+  {
+    chunk.setEncrypted(Boolean.FALSE);
+    chunk.setCompression("Deflate");
+    chunk.setComment(comment);
+    chunk.setCreatedDate(created);
+    chunk.setLastModifiedDate(modified);
+    chunk.setSize(size);
+    chunk.setDigestType("CRC-32");
+    chunk.setDigest(digest);
+    chunk.addStandardAttributes();
+  }
+
+  /** The standard attributes are only built on first access, are equal
+   *  to the ones previously built by addStandardAttributes() and are
+   *  built again after the chunk is reset or copied.
+   */
+  public void testLazyAttributes()
+  {
+    Date created = new Date(1483945607000L);
+    Date modified = new Date(1483945608000L);
+    byte[] digest = new byte[]{(byte)0xBA,0x26,(byte)0xAB,0x07};
+    CountingResourceChunkInfo chunk = new CountingResourceChunkInfo();
+    CountingResourceChunkInfo copy = new CountingResourceChunkInfo();
+
+    chunk.reset();
+    fillResource(chunk, created, modified, "This is a comment.", 1579064, digest);
+    assertEquals(0, chunk.builds);
+    assertEquals(expectedAttributes(created, modified, "This is a comment.", 1579064, digest), chunk.getAttributes());
+    assertEquals(1, chunk.builds);
+    assertEquals(expectedAttributes(created, modified, "This is a comment.", 1579064, digest), chunk.toAttributes());
+    assertEquals(1, chunk.builds);
+
+    /* A reset chunk builds the attributes of its new values only */
+    chunk.reset();
+    digest = new byte[]{0x00,0x0F,(byte)0xF0,0x7F};
+    fillResource(chunk, modified, created, "Another comment.", 0, digest);
+    assertEquals(1, chunk.builds);
+    assertEquals(expectedAttributes(modified, created, "Another comment.", 0, digest), chunk.getAttributes());
+    assertEquals(2, chunk.builds);
+
+    /* A copy of a chunk whose attributes are not yet built builds them itself */
+    chunk.reset();
+    fillResource(chunk, created, modified, "This is a comment.", 1579064, digest);
+    copy.reset();
+    copy.copy(chunk);
+    assertEquals(0, copy.builds);
+    assertEquals(expectedAttributes(created, modified, "This is a comment.", 1579064, digest), copy.getAttributes());
+    assertEquals(1, copy.builds);
+    assertEquals(2, chunk.builds);
+    assertEquals(expectedAttributes(created, modified, "This is a comment.", 1579064, digest), chunk.getAttributes());
+    assertEquals(3, chunk.builds);
+
+    /* A copy of a chunk whose attributes are built takes them as is */
+    copy.reset();
+    copy.copy(chunk);
+    assertEquals(expectedAttributes(created, modified, "This is a comment.", 1579064, digest), copy.getAttributes());
+    assertEquals(1, copy.builds);
+  }
+
+}
@@ -39,5 +39,19 @@ public interface DocumentStreamConstants
      * Indicates an event is an end of a node / group.
      */
     public static final int END_GROUP=10;
+    /**
+     * Indicates an event is a complete leaf element, which replaces the 
+     * START_ELEMENT, DATA and END_ELEMENT events when the 
+     * {@link #PROPERTY_COMPACT_ELEMENTS} property is set.
+     */
+    public static final int ELEMENT=11;
+
+    /**
+     * Property of type Boolean indicating that each leaf element is reported 
+     * as a single ELEMENT event, on which the identifier, attributes and data
+     * are all available. Groups are still reported using START_GROUP and 
+     * END_GROUP events. The default value is false.
+     */
+    public static final String PROPERTY_COMPACT_ELEMENTS = "http://optimasc.com/streams/properties/compact-elements";
     
 }
@@ -23,6 +23,7 @@ public class DocumentStreamException extends Exception {
   public static final String ERR_BLOCK_INVALID_HEADER =   "Invalid, missing data or corrupt header in the chunk";
   public static final String ERR_IO =   "I/O Error while accessing stream";
   public static final String ERR_END_OF_STREAM =   "I/O Error unexpected end of stream encountered";
+  public static final String ERR_BACKWARD_SEEK =   "Backward seek beyond the look-ahead window of a streaming input";
   public static final String ERR_BLOCK_NOT_CLOSED = "Chunk/Group is never closed for element ";
   public static final String ERR_INVALID_STATE = "Trying to write data to a non-element";
   public static final String ERR_INVALID_LINE_ENDING = "Invalid line ending in Text stream";
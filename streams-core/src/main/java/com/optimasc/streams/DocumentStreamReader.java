@@ -1,7 +1,11 @@
 package com.optimasc.streams;
 
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 
 
@@ -45,12 +49,12 @@ import java.io.InputStream;
  *     </tr>
  *     <tr>
  *       <td> START_GROUP  </td>
- *       <td> next(), getId(), getAttributeXXX() 
+ *       <td> next(), getId(), getAttributeXXX(), nextTag(), skipCurrentGroup() 
  *       </td>
  *     </tr>
  *     <tr>
  *       <td> START_ELEMENT  </td>
- *       <td> next(), getId(), getAttributeXXX() 
+ *       <td> next(), getId(), getAttributeXXX(), nextTag() 
  *       </td>
  *     </tr>
  *     <tr>
@@ -60,7 +64,11 @@ import java.io.InputStream;
  *     </tr>
  *     <tr>
  *       <td> DATA  </td>
- *       <td> next(), getDataSize(), getData() </td>
+ *       <td> next(), getDataSize(), getDataOffset(), getData(), nextTag() </td>
+ *     </tr>
+ *     <tr>
+ *       <td> ELEMENT  </td>
+ *       <td> next(), getId(), getAttributeXXX(), getDataSize(), getDataOffset(), getData(), nextTag() </td>
  *     </tr>
  *     <tr>
  *       <td> START_DOCUMENT  </td>
@@ -88,6 +96,17 @@ public interface DocumentStreamReader
    */
   public Object getProperty(java.lang.String name) throws java.lang.IllegalArgumentException;
 
+  /**
+   * Set the value of a feature/property of the underlying implementation. The
+   * properties should be set before the first call to {@link #next()}.
+   * 
+   * @param name The name of the property, may not be null
+   * @param value The value of the property
+   * @throws IllegalArgumentException if name is null, if the property is not 
+   *   supported or if the value is invalid.
+   */
+  public void setProperty(java.lang.String name, Object value) throws java.lang.IllegalArgumentException;
+
   /**
    * Get next parsing event. A processor will always return all contiguous
    * binary data in a single chunk.
@@ -99,6 +118,43 @@ public interface DocumentStreamReader
    */
   public int next() throws DocumentStreamException, IOException;
 
+  /**
+   * Skips all START_DOCUMENT, DATA and END_ELEMENT events until a START_ELEMENT, 
+   * ELEMENT, START_GROUP, END_GROUP or END_DOCUMENT event is reached. The data that has not been
+   * read is skipped.
+   * 
+   * @return the integer code corresponding to the current parse event
+   * @throws DocumentStreamException  if there is an error processing the underlying source
+   * @throws IOException If there is an I/O Error.
+   */
+  public int nextTag() throws DocumentStreamException, IOException;
+
+  /**
+   * Gets the next parsing events and stores their type, identifier, offset, 
+   * size and nesting depth in a batch, until the batch is full or the 
+   * END_DOCUMENT event is reached. The data of the elements is skipped.
+   * Upon return, the current event is the last event stored in the batch.
+   * 
+   * @param batch The batch to fill, its count is set to the number of events stored.
+   * @return the number of events stored in the batch, 0 if there are no more events.
+   * @throws DocumentStreamException  if there is an error processing the underlying source
+   * @throws IOException If there is an I/O Error.
+   */
+  public int nextBatch(EventBatch batch) throws DocumentStreamException, IOException;
+
+  /**
+   * Skips the group of the current START_GROUP event with all the elements and
+   * groups it contains, the current event then becomes the END_GROUP event of 
+   * this group. When the format indicates the size of the group, this is done
+   * with a single seek, otherwise the contents of the group are parsed and 
+   * ignored.
+   * 
+   * @throws IllegalStateException if this is not a START_GROUP
+   * @throws DocumentStreamException  if there is an error processing the underlying source
+   * @throws IOException If there is an I/O Error.
+   */
+  public void skipCurrentGroup() throws DocumentStreamException, IOException;
+
   
   /**
    * Returns an identifier for the current START_ELEMENT, START_GROUP, END_ELEMENT or
@@ -222,8 +278,71 @@ public interface DocumentStreamReader
    */
    public int getData(byte[] target, int targetStart, int length)  throws DocumentStreamException, IOException;
 
+  /**
+   * Gets the data associated with the DATA event into a buffer.
+   * Data is copied into "target" starting at its current position, up to the 
+   * number of bytes remaining in "target" or the number of bytes left in this 
+   * DATA event, whichever is smaller. The position of "target" is advanced by
+   * the number of bytes copied.
+   *
+   * <p>When the reader input is a buffer or a file channel, the data is copied
+   * directly from the source into "target", without going through an intermediate
+   * array.
+   *
+   * @param target the destination buffer to receive the copied data
+   * @return the number of bytes actually copied, 0 if there is no more data
+   * @throws DocumentStreamException if the underlying data source is not well-formed
+   * @throws NullPointerException is if target is null
+   * @throws IOException If there is an I/O Error.
+   */
+   public int getData(ByteBuffer target)  throws DocumentStreamException, IOException;
+
+  /**
+   * Returns a read-only view of the data left in the DATA event, without
+   * copying it. The returned buffer shares its content with the input
+   * source, which is either the buffer set with {@link #setInput(ByteBuffer)}
+   * or a memory mapped region of the channel set with {@link #setInput(FileChannel)}.
+   * The data returned is considered as read.
+   *
+   * <p>If the data left is larger than the maximum capacity of a buffer,
+   * the call must be repeated until all data has been retrieved.
+   *
+   * @return the view on the data, with its byte order set to the document byte order.
+   * @throws DocumentStreamException if the underlying data source is not well-formed
+   * @throws UnsupportedOperationException if the input is not a buffer or a file channel,
+   *   or if the data is not stored as is in the input, or if the size of the data is
+   *   not known
+   * @throws IOException If there is an I/O Error.
+   */
+   public ByteBuffer getDataSlice()  throws DocumentStreamException, IOException;
+
+  /**
+   * Writes all the data left in the DATA event to a channel. 
+   * When the reader input is a file channel set with {@link #setInput(FileChannel)},
+   * the data is transferred directly from the file to the target channel using
+   * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which
+   * permits the operating system to copy the data without going through the 
+   * application. The data written is considered as read.
+   *
+   * <p>If the target channel stops accepting data, the transfer stops and
+   * the data that was not written can still be read.
+   *
+   * @param target the channel where the data is written to, which must be
+   *   in blocking mode if it is a selectable channel
+   * @return the number of bytes actually written
+   * @throws DocumentStreamException if the underlying data source is not well-formed
+   * @throws IllegalArgumentException if target is a selectable channel in non-blocking mode
+   * @throws NullPointerException is if target is null
+   * @throws IOException If there is an I/O Error.
+   */
+   public long transferData(WritableByteChannel target)  throws DocumentStreamException, IOException;
+
   /**
    * Returns the total number of bytes available for this DATA event.  
+   * When reading a stream, the size of the data may only be known once
+   * all of it has been read, the data is then read until the get methods
+   * return less data than requested.
+   * @return the size of the data, or -1 if it is not known.
    * @throws DocumentStreamException 
    * @throws java.lang.IllegalStateException if this state is not
    * a valid DATA state.
@@ -231,6 +350,29 @@ public interface DocumentStreamReader
    */
   public long getDataSize() throws DocumentStreamException, IOException;
 
+  /**
+   * Returns the offset of the data of the current element from the start of
+   * the stream.  
+   * @return the offset of the data, or -1 if it is not known.
+   * @throws java.lang.IllegalStateException if this state is not
+   * a START_ELEMENT, DATA or ELEMENT state.
+   */
+  public long getDataOffset();
+
+  /**
+   * Returns a view on the data left in the DATA or ELEMENT event, which
+   * decodes the values in the byte order of the document. The data read 
+   * through the view is considered as read, and reading beyond the data
+   * of the event throws an <code>EOFException</code>. 
+   * 
+   * <p>The view remains valid for the following DATA and ELEMENT events.
+   *
+   * @return the view on the data.
+   * @throws java.lang.IllegalStateException if this state is not
+   * a valid DATA or ELEMENT state.
+   */
+  public DataInput getDataInput();
+
 
   /**
    * Return input encoding if this is a character based stream if known or null if unknown.
@@ -311,8 +453,12 @@ public interface DocumentStreamReader
    *  resets the parser state and sets the event type to the initial value 
    *  START_DOCUMENT.
    *  
-   *  <p>It is to note that the input stream requires to support 
-   *  <code>reset()</code> and <code>available()</code>.
+   *  <p>If the input stream does not support <code>mark()</code>, it is 
+   *  read in streaming mode as with {@link #setStreamingInput(InputStream, int)}
+   *  using a default look-ahead window. An input stream that supports 
+   *  <code>mark()</code> must also support <code>available()</code>, it 
+   *  is never read in streaming mode, which must then be requested with
+   *  {@link #setStreamingInput(InputStream, int)}.
    * 
    * @param is [in] The input stream that will be used for parsing the data.
    * @param inputEncoding [in] The input encoding, or <code>null</code> if
@@ -320,5 +466,40 @@ public interface DocumentStreamReader
    */
   public void setInput(InputStream is, String inputEncoding) throws DocumentStreamException;
 
+  /** Sets the buffer the parser is going to process. The remaining bytes of 
+   *  the buffer represent the complete document. This call resets the parser 
+   *  state and sets the event type to the initial value START_DOCUMENT.
+   *  
+   *  <p>The buffer can be a memory mapped region, the data is never copied
+   *  when accessed with {@link #getDataSlice()}.
+   * 
+   * @param buffer [in] The buffer containing the data to parse.
+   */
+  public void setInput(ByteBuffer buffer) throws DocumentStreamException;
+
+  /** Sets the input stream the parser is going to process in streaming mode. 
+   *  The stream is only read forward, and only the last bytes read are kept
+   *  in a look-ahead window, so that data can be parsed as it arrives from a 
+   *  pipe or a network connection. This call resets the parser state and 
+   *  sets the event type to the initial value START_DOCUMENT.
+   *  
+   *  <p>Formats that need to go back further than the size of the window,
+   *  report a {@link DocumentStreamException#ERR_BACKWARD_SEEK} error, 
+   *  and formats that verify the end of the document skip this verification.
+   * 
+   * @param is [in] The input stream that will be used for parsing the data.
+   * @param windowSize [in] The size in bytes of the look-ahead window.
+   */
+  public void setStreamingInput(InputStream is, int windowSize) throws DocumentStreamException;
+
+  /** Sets the file channel the parser is going to process. The channel is
+   *  accessed using positional reads and memory mapping, its position is not 
+   *  modified. This call resets the parser state and sets the event type to 
+   *  the initial value START_DOCUMENT.
+   * 
+   * @param channel [in] The file channel containing the data to parse.
+   */
+  public void setInput(FileChannel channel) throws DocumentStreamException;
+
 
 }
@@ -0,0 +1,51 @@
+package com.optimasc.streams;
+
+/**
+ * Container filled by {@link DocumentStreamReader#nextBatch(EventBatch)}
+ * with the information on several consecutive parsing events. The
+ * information on event <code>i</code> is stored at index <code>i</code>
+ * of each array, for indexes 0 to <code>count - 1</code>.
+ *
+ * @author Carl Eric Codere
+ */
+public class EventBatch
+{
+  /** The event types */
+  public final int[] type;
+  /** The identifiers of the events, null for START_DOCUMENT and END_DOCUMENT events */
+  public final Object[] id;
+  /** The offset of the data of the element or group, or -1 if not known */
+  public final long[] offset;
+  /** The size of the data of the element or group, or -1 if not known */
+  public final long[] size;
+  /** The number of groups containing the element or group, 0 at the root level */
+  public final int[] depth;
+  /** The number of events stored in the arrays */
+  public int count;
+
+  /**
+   * Creates a container for up to the specified number of events.
+   *
+   * @param capacity The maximum number of events returned in a batch.
+   */
+  public EventBatch(int capacity)
+  {
+    type = new int[capacity];
+    id = new Object[capacity];
+    offset = new long[capacity];
+    size = new long[capacity];
+    depth = new int[capacity];
+    count = 0;
+  }
+
+  /**
+   * Returns the maximum number of events that can be stored.
+   *
+   * @return The capacity of this batch.
+   */
+  public int getCapacity()
+  {
+    return type.length;
+  }
+
+}
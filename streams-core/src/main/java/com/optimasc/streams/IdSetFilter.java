@@ -0,0 +1,96 @@
+package com.optimasc.streams;
+
+import java.util.Hashtable;
+
+/**
+ * Stream filter that accepts or rejects elements according to a set of
+ * identifiers. Contrary to other filters, the readers can query this
+ * filter with {@link #acceptId(Object, boolean)} as soon as the identifier
+ * of an element has been read, and avoid validating or decoding the
+ * elements that will be skipped.
+ *
+ * <p>The identifiers are compared using <code>equals()</code>, so they must
+ * be of the same type as the one returned by {@link DocumentStreamReader#getId()}
+ * for the format being read.
+ *
+ * <p>Groups are only filtered when excluding identifiers, when including
+ * identifiers, all groups are accepted so that the elements they contain
+ * can be reached.
+ *
+ * @author Carl Eric Codere
+ */
+public class IdSetFilter implements StreamFilter
+{
+  /** The identifiers of the set */
+  protected Hashtable ids;
+  /** Indicates if the identifiers are the ones accepted or rejected */
+  protected boolean include;
+
+  /**
+   * Creates a filter from a set of identifiers.
+   *
+   * @param ids The identifiers of the set.
+   * @param include true if only the identifiers of the set are accepted,
+   *   false if the identifiers of the set are rejected.
+   */
+  public IdSetFilter(Object[] ids, boolean include)
+  {
+    this.include = include;
+    this.ids = new Hashtable();
+    for (int i = 0; i < ids.length; i++)
+    {
+      this.ids.put(ids[i], ids[i]);
+    }
+  }
+
+  /**
+   * Creates a filter that only accepts the elements with the specified
+   * identifiers.
+   *
+   * @param ids The identifiers of the elements to accept.
+   * @return The filter.
+   */
+  public static IdSetFilter include(Object[] ids)
+  {
+    return new IdSetFilter(ids, true);
+  }
+
+  /**
+   * Creates a filter that rejects the elements and groups with the
+   * specified identifiers.
+   *
+   * @param ids The identifiers of the elements and groups to reject.
+   * @return The filter.
+   */
+  public static IdSetFilter exclude(Object[] ids)
+  {
+    return new IdSetFilter(ids, false);
+  }
+
+  /**
+   * Verifies if the element or group with the specified identifier is
+   * accepted.
+   *
+   * @param id The identifier of the element or group.
+   * @param group true if this is a group, false if this is an element.
+   * @return true if the element or group is accepted, otherwise false.
+   */
+  public boolean acceptId(Object id, boolean group)
+  {
+    if (id == null)
+      return true;
+    if (include)
+    {
+      if (group)
+        return true;
+      return ids.containsKey(id);
+    }
+    return ids.containsKey(id) == false;
+  }
+
+  public boolean accept(DocumentStreamReader reader)
+  {
+    return acceptId(reader.getId(), reader.getEventType() == DocumentStreamConstants.START_GROUP);
+  }
+
+}
@@ -112,6 +112,11 @@ public class JPEGReader extends AbstractDocumentReader
       {
         int b1 = dataReader.readUnsignedByte();
         dataHeader.size++;
+        // In streaming mode, the scan must fit in the window to go back to it
+        if ((header.size + dataHeader.size) >= getLookAheadLimit())
+        {
+          errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_BACKWARD_SEEK));
+        }
         if (b1 == JPEGUtilities.JPEG_MARKER)
         {
           b1 = dataReader.readUnsignedByte();
@@ -143,6 +148,12 @@ public class JPEGReader extends AbstractDocumentReader
       int w = dataReader.readUnsignedShort();
       if (w == JPEGUtilities.JPEG_MAGIC_SOI_SIGNATURE)
       {
+        // The file tailer cannot be checked in streaming mode
+        if (getLookAheadLimit() != Long.MAX_VALUE)
+        {
+          dataReader.seek(oldpos);
+          return document;
+        }
         // check the file tailer
         dataReader.seek(length-2);
         w = dataReader.readUnsignedShort();
@@ -223,8 +234,8 @@ public class JPEGReader extends AbstractDocumentReader
      */
     if (endOfDocument)
     {
-      /** The 2 bytes represent the EOI marker */
-        if ((reader.getStreamPosition()+2) < (reader.length()))
+      /** The 2 bytes represent the EOI marker, the length is not known in streaming mode */
+        if (((reader.getStreamPosition()+2) < (reader.length())) && (getLookAheadLimit() == Long.MAX_VALUE))
         {
           errorHandler.warning(new DocumentStreamException(
               DocumentStreamException.ERR_EXTRA_DATA));
@@ -45,6 +45,38 @@ public class JPEGReaderTest extends TestCase
     }
   }
   
+  public void testStreaming() throws FileNotFoundException
+  {
+    try
+    {
+      InputStream is = getClass().getResourceAsStream("/res/rembrant.jpg");
+      JPEGReader reader = new JPEGReader();
+      reader.setStreamingInput(new TestUtilities.ForwardOnlyInputStream(is), 65536);
+      TestUtilities.parse(reader, null);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+  }
+
+  /** The image scan is larger than the window, so it cannot be read again. */
+  public void testStreamingWindowTooSmall() throws FileNotFoundException
+  {
+    boolean exceptionThrown = false;
+    try
+    {
+      InputStream is = getClass().getResourceAsStream("/res/rembrant.jpg");
+      JPEGReader reader = new JPEGReader();
+      reader.setStreamingInput(new TestUtilities.ForwardOnlyInputStream(is), 4096);
+      TestUtilities.parse(reader, null);
+    } catch (DocumentStreamException e)
+    {
+      assertEquals(DocumentStreamException.ERR_BACKWARD_SEEK, e.getMessage());
+      exceptionThrown = true;
+    }
+    assertTrue(exceptionThrown);
+  }
+  
   public void testTwo() throws FileNotFoundException
   {
     boolean exceptionThrown = false;
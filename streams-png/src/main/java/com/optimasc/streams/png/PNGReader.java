@@ -20,6 +20,12 @@ public class PNGReader extends AbstractDocumentReader
 {
   public byte[] byteBuffer = new byte[PNGUtilities.MAGIC_HEADER.length];
   protected ChunkUtilities chunkValidator;
+  /** CRC-32 of the chunk whose data is verified as it is read */
+  protected CRC32 streamCrc = new CRC32();
+  /** Indicates that the CRC-32 of the current chunk is verified as its data is read */
+  protected boolean crcPending;
+  /** Number of bytes of data of the current chunk not yet included in streamCrc */
+  protected long crcDataLeft;
 
   public PNGReader()
   {
@@ -36,6 +42,7 @@ public class PNGReader extends AbstractDocumentReader
     String chunkID = null;
     CRC32 crc = new CRC32();
     header.reset();
+    crcPending = false;
     try 
     {
     dataLength = dataReader.readUnsignedInt();
@@ -73,7 +80,20 @@ public class PNGReader extends AbstractDocumentReader
     
     /*********************************** Integrity checking *********************************/
 
-    /** Check the validity of the CRC-32 */
+    /** Check the validity of the CRC-32, only if the chunk will not be skipped. */
+    if (isSkipped(chunkID, ChunkInfo.TYPE_CHUNK))
+    {
+      return;
+    }
+    /** In streaming mode, a chunk that cannot be read twice is verified as its data is read. */
+    if ((dataLength + 8) > getLookAheadLimit())
+    {
+      streamCrc.reset();
+      streamCrc.update(byteBuffer, 0, 4);
+      crcDataLeft = dataLength;
+      crcPending = true;
+      return;
+    }
     dataReader.seek(dataReader.getStreamPosition()+dataLength);
     crc32 = dataReader.readUnsignedInt();
     /** The chunk type is included in the CRC-32 calculation so subtract 4 bytes */
@@ -104,6 +124,62 @@ public class PNGReader extends AbstractDocumentReader
   
   
 
+  protected void read(byte[] target, int targetOffset, int length)
+      throws DocumentStreamException
+  {
+    super.read(target, targetOffset, length);
+    if (crcPending)
+    {
+      streamCrc.update(target, targetOffset, length);
+      crcDataLeft -= length;
+      if (crcDataLeft == 0)
+      {
+        crcPending = false;
+        verifyStreamCrc();
+      }
+    }
+  }
+
+  protected void skipData(long size) throws DocumentStreamException, IOException
+  {
+    int blockLength;
+    /* The data is read to compute its CRC-32, it would be read by the stream anyway */
+    if (crcPending && (size > 0))
+    {
+      if (transferBuffer == null)
+        transferBuffer = new byte[8192];
+      while (crcPending && (size > 0))
+      {
+        blockLength = (int) Math.min(Math.min(size, crcDataLeft), transferBuffer.length);
+        read(transferBuffer, 0, blockLength);
+        size -= blockLength;
+      }
+    }
+    super.skipData(size);
+  }
+
+  /** Compares the CRC-32 that follows the data of the current chunk with 
+   *  the one computed as the data was read, without moving past it.
+   */
+  protected void verifyStreamCrc() throws DocumentStreamException
+  {
+    long crc32;
+    try
+    {
+      long position = reader.getStreamPosition();
+      crc32 = reader.readUnsignedInt();
+      reader.seek(position);
+    } catch (IOException e)
+    {
+      errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_IO,e));
+      return;
+    }
+    if (streamCrc.getValue() != crc32)
+    {
+      errorHandler.error(new DocumentStreamException(DocumentStreamException.ERR_CORRUPT_STREAM,currentChunk.id.toString()));
+    }
+  }
+
   protected DocumentInfo readDocumentHeader(SeekableDataInputStream dataReader) throws DocumentStreamException, IOException
   {
     long length = 0;
@@ -1,6 +1,12 @@
 package com.optimasc.streams.png;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 
 import com.optimasc.streams.ElementInfo;
@@ -8,6 +14,8 @@ import com.optimasc.streams.TestUtilities;
 import com.optimasc.streams.DefaultStreamFilter;
 import com.optimasc.streams.DocumentStreamException;
 import com.optimasc.streams.DocumentStreamReader;
+import com.optimasc.streams.DocumentStreamConstants;
+import com.optimasc.streams.IdSetFilter;
 
 import junit.framework.TestCase;
 
@@ -56,5 +64,173 @@ public class PNGReaderTest extends TestCase
     }
   }
 
+  /** Test decoding the image header in big endian. */
+  public void testDataInput() throws FileNotFoundException
+  {
+    byte[] data = new byte[13];
+    try
+    {
+      DocumentStreamReader reader = new PNGReader();
+      reader.setInput(getClass().getResourceAsStream("/res/rembrant.png"), null);
+      DocumentStreamReader rawReader = new PNGReader();
+      rawReader.setInput(getClass().getResourceAsStream("/res/rembrant.png"), null);
+      while (reader.next() != DocumentStreamConstants.DATA)
+        ;
+      while (rawReader.next() != DocumentStreamConstants.DATA)
+        ;
+      assertEquals("IHDR", reader.getId().toString());
+      rawReader.getData(data, 0, data.length);
+      DataInput input = reader.getDataInput();
+      assertEquals(((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF), input.readInt());
+      assertEquals(((data[4] & 0xFF) << 24) | ((data[5] & 0xFF) << 16) | ((data[6] & 0xFF) << 8) | (data[7] & 0xFF), input.readInt());
+      assertEquals(data[8] & 0xFF, input.readUnsignedByte());
+      assertEquals(((data[9] & 0xFF) << 8) | (data[10] & 0xFF), input.readUnsignedShort());
+      assertEquals(2, input.skipBytes(10));
+      try
+      {
+        input.readByte();
+        fail();
+      } catch (EOFException e)
+      {
+      }
+      // The next element must be correctly positioned
+      while (reader.next() != DocumentStreamConstants.DATA)
+        ;
+      assertEquals("tIME", reader.getId().toString());
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (IOException e)
+    {
+      fail();
+    }
+  }
+
+  /** Test that only the included chunks return their data. */
+  public void testIdSetFilter() throws FileNotFoundException
+  {
+    int count = 0;
+    try
+    {
+      InputStream is = getClass().getResourceAsStream("/res/rembrant.png");
+      DocumentStreamReader reader = new PNGReader();
+      reader.setInput(is, null);
+      reader.setFilter(IdSetFilter.include(new Object[]{"IHDR","tIME"}));
+      while (reader.hasNext())
+      {
+        if (reader.next() == DocumentStreamConstants.DATA)
+        {
+          assertEquals(elements[count].id, reader.getId().toString());
+          count++;
+        }
+      }
+      assertEquals(2, count);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (IOException e)
+    {
+      fail();
+    }
+  }
+
+  /** Test parsing a stream that does not support mark, the CRC of the 
+   *  image data is larger than the window and is verified as it is read. 
+   */
+  public void testStreaming() throws FileNotFoundException
+  {
+
+    try
+    {
+      InputStream is = getClass().getResourceAsStream("/res/rembrant.png");
+      DocumentStreamReader reader = new PNGReader();
+      reader.setInput(new TestUtilities.ForwardOnlyInputStream(is), null);
+      TestUtilities.parse(reader,elements);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+  }
+
+  /** Parses the document from a stream that does not support mark, reading
+   *  the specified number of bytes of the data of each chunk. 
+   */
+  protected void parseStreaming(byte[] data, int length) throws DocumentStreamException, IOException
+  {
+    byte[] buffer = new byte[length];
+    DocumentStreamReader reader = new PNGReader();
+    reader.setInput(new TestUtilities.ForwardOnlyInputStream(new ByteArrayInputStream(data)), null);
+    reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+    while (reader.hasNext())
+    {
+      if ((reader.next() == DocumentStreamConstants.DATA) && (length > 0))
+      {
+        reader.getData(buffer, 0, (int) Math.min(length, reader.getDataSize()));
+      }
+    }
+  }
+
+  /** Test that in streaming mode, a corrupted chunk larger than the window
+   *  is reported, whether its data is read, partially read or skipped. 
+   */
+  public void testStreamingCrc() throws IOException
+  {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    InputStream is = getClass().getResourceAsStream("/res/rembrant.png");
+    int b;
+    int i;
+    while ((b = is.read()) != -1)
+    {
+      os.write(b);
+    }
+    is.close();
+    byte[] data = os.toByteArray();
+    try
+    {
+      parseStreaming(data, 478106);
+      parseStreaming(data, 100);
+      parseStreaming(data, 0);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    // Corrupt a byte of the image data
+    for (i = 0; i < data.length; i++)
+    {
+      if ((data[i] == 'I') && (data[i + 1] == 'D') && (data[i + 2] == 'A') && (data[i + 3] == 'T'))
+        break;
+    }
+    data[i + 200000] ^= 0x55;
+    int[] lengths = new int[] { 478106, 100, 0 };
+    for (i = 0; i < lengths.length; i++)
+    {
+      try
+      {
+        parseStreaming(data, lengths[i]);
+        fail();
+      } catch (DocumentStreamException e)
+      {
+        assertEquals(DocumentStreamException.ERR_CORRUPT_STREAM, e.getMessage().substring(0, DocumentStreamException.ERR_CORRUPT_STREAM.length()));
+      }
+    }
+  }
+
+  /** Test that a stream supporting mark is not read in streaming mode, 
+   *  even if no data is available yet. 
+   */
+  public void testMarkedStream() throws FileNotFoundException
+  {
+    InputStream is = getClass().getResourceAsStream("/res/rembrant.png");
+    DocumentStreamReader reader = new PNGReader();
+    try
+    {
+      reader.setInput(new BufferedInputStream(new TestUtilities.ForwardOnlyInputStream(is)), null);
+      fail();
+    } catch (DocumentStreamException e)
+    {
+      assertEquals(DocumentStreamException.ERR_INVALID_STREAM, e.getMessage().substring(0, DocumentStreamException.ERR_INVALID_STREAM.length()));
+    }
+  }
+
 
 }
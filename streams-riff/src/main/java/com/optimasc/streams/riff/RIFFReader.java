@@ -22,9 +22,16 @@ public class RIFFReader extends AbstractDocumentReader
 {
   public static final String MIME_TYPE = "application/x-riff";
 
+  /** Maximum number of different identifiers that are shared */
+  protected static final int IDENTIFIER_CACHE_SIZE = 256;
+
   public byte[] byteBuffer = new byte[4];
   protected boolean bigEndian;
   RIFFUtilities riffValidator;
+  /** The identifiers already read, indexed by hash of their four bytes */
+  protected String[] identifiers = new String[IDENTIFIER_CACHE_SIZE];
+  /** The four bytes of each identifier in identifiers */
+  protected int[] identifierValues = new int[IDENTIFIER_CACHE_SIZE];
 
   public RIFFReader()
   {
@@ -33,6 +40,47 @@ public class RIFFReader extends AbstractDocumentReader
     bigEndian = false;
   }
 
+  /**
+   * Returns the identifier contained in byteBuffer. Each identifier is
+   * only allocated the first time it is read, so that the chunks are
+   * read without any allocation once all their identifiers are known.
+   *
+   * @return The identifier as a string.
+   */
+  protected String readIdentifier()
+  {
+    int value = ByteBufferIO.getIntBig(byteBuffer, 0);
+    int mask = IDENTIFIER_CACHE_SIZE - 1;
+    int slot = (value ^ (value >>> 8) ^ (value >>> 16) ^ (value >>> 24)) & mask;
+    String chunkID;
+    for (int i = 0; i < IDENTIFIER_CACHE_SIZE; i++)
+    {
+      chunkID = identifiers[(slot + i) & mask];
+      if (chunkID == null)
+      {
+        slot = (slot + i) & mask;
+        break;
+      }
+      if (identifierValues[(slot + i) & mask] == value)
+        return chunkID;
+    }
+    try
+    {
+      chunkID = new String(byteBuffer, "UTF-8");
+    } catch (UnsupportedEncodingException e)
+    {
+      // UTF-8 is always supported
+      throw new IllegalStateException(e.getMessage());
+    }
+    // When the cache is full, the identifier is not shared
+    if (identifiers[slot] == null)
+    {
+      identifiers[slot] = chunkID;
+      identifierValues[slot] = value;
+    }
+    return chunkID;
+  }
+
   protected void readChunkHeader(SeekableDataInputStream dataReader, ChunkInfo header)
       throws DocumentStreamException, IOException
   {
@@ -41,15 +89,7 @@ public class RIFFReader extends AbstractDocumentReader
     header.reset();
     // Read the chunk identifier
     dataReader.readFully(byteBuffer, 0, 4);
-    String chunkID = null;
-    try
-    {
-      chunkID = new String(byteBuffer, "UTF-8");
-    } catch (UnsupportedEncodingException e)
-    {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
+    String chunkID = readIdentifier();
 
     // Read the data length
     dataLength = dataReader.readUnsignedInt() & 0xFFFFFFFFL;
@@ -58,14 +98,7 @@ public class RIFFReader extends AbstractDocumentReader
     {
       header.type = ChunkInfo.TYPE_GROUP;
       dataReader.readFully(byteBuffer, 0, 4);
-      try
-      {
-        chunkID = new String(byteBuffer, "UTF-8");
-      } catch (UnsupportedEncodingException e)
-      {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      }
+      chunkID = readIdentifier();
       // Group elements should never be odd
       if ((dataLength & 0x01) == 0x01)
       {
@@ -1,9 +1,15 @@
 package com.optimasc.streams.riff;
 
 import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import com.optimasc.streams.ElementInfo;
 import com.optimasc.streams.TestUtilities;
@@ -11,7 +17,11 @@ import com.optimasc.streams.DefaultStreamFilter;
 import com.optimasc.streams.DocumentStreamConstants;
 import com.optimasc.streams.DocumentStreamException;
 import com.optimasc.streams.DocumentStreamReader;
+import com.optimasc.streams.EventBatch;
+import com.optimasc.streams.IdSetFilter;
 import com.optimasc.streams.StreamFilter;
+import com.optimasc.streams.internal.ChannelInputStream;
+import com.optimasc.streams.internal.ChunkInfo;
 
 import junit.framework.TestCase;
 
@@ -164,6 +174,21 @@ public class RIFFReaderTest extends TestCase implements StreamFilter
    * @throws FileNotFoundException
    */
   
+  /** Test parsing from a stream that is only read forward, with a small window. */
+  public void testStreaming() throws FileNotFoundException
+  {
+    try
+    {
+      InputStream is = getClass().getResourceAsStream("/res/sample1.avi");
+      RIFFReader reader = new RIFFReader();
+      reader.setStreamingInput(new TestUtilities.ForwardOnlyInputStream(is), 1024);
+      TestUtilities.parse(reader,elements);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+  }
+
   public void testTwo() throws FileNotFoundException
   {
 
@@ -263,6 +288,421 @@ public class RIFFReaderTest extends TestCase implements StreamFilter
   }
   
 
+  /** Reads a complete resource in memory. */
+  protected byte[] readResource(String name) throws IOException
+  {
+    InputStream is = getClass().getResourceAsStream(name);
+    byte[] data = new byte[is.available()];
+    int offset = 0;
+    int count;
+    while ((offset < data.length) && ((count = is.read(data, offset, data.length - offset)) > 0))
+    {
+      offset += count;
+    }
+    is.close();
+    return data;
+  }
+
+  /** Test that the data of a buffer input is the same when accessed 
+   *  without copy. 
+   */
+  public void testFour() throws FileNotFoundException
+  {
+    byte[] buffer = new byte[1024*1024];
+    try
+    {
+      RIFFReader streamReader = new RIFFReader();
+      streamReader.setInput(getClass().getResourceAsStream("/res/sample1.avi"), null);
+      RIFFReader bufferReader = new RIFFReader();
+      bufferReader.setInput(ByteBuffer.wrap(readResource("/res/sample1.avi")));
+      
+      while (streamReader.hasNext())
+      {
+        int id = streamReader.next();
+        assertEquals(id, bufferReader.next());
+        if (id == DocumentStreamConstants.DATA)
+        {
+          int size = (int)streamReader.getDataSize();
+          assertEquals(size, bufferReader.getDataSize());
+          streamReader.getData(buffer, 0, size);
+          ByteBuffer slice = bufferReader.getDataSlice();
+          assertTrue(slice.isReadOnly());
+          assertEquals(size, slice.remaining());
+          for (int i = 0; i < size; i++)
+          {
+            assertEquals(buffer[i], slice.get(i));
+          }
+        }
+      }
+      assertFalse(bufferReader.hasNext());
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    catch (IOException e)
+    {
+      fail();
+    }
+  }
+
+  /** Reader that accesses a channel as if it was too large to be mapped at once. */
+  static class UnmappedRIFFReader extends RIFFReader
+  {
+    public void setUnmappedInput(FileChannel channel) throws DocumentStreamException
+    {
+      sourceBuffer = null;
+      streamInput = null;
+      setInputStream(new ChannelInputStream(channel));
+      sourceChannel = channel;
+    }
+  }
+
+  /** Test that the data of a channel that is not mapped is read in small
+   *  buffers at the correct position, whether it is completely read or not,
+   *  and that a view on the data can still be requested. 
+   */
+  public void testUnmappedChannel() throws FileNotFoundException
+  {
+    byte[] buffer = new byte[1024*1024];
+    ByteBuffer target = ByteBuffer.allocateDirect(8192);
+    int dataNr = 0;
+    try
+    {
+      RIFFReader streamReader = new RIFFReader();
+      streamReader.setInput(getClass().getResourceAsStream("/res/sample1.avi"), null);
+      RandomAccessFile file = new RandomAccessFile(new File(getClass().getResource("/res/sample1.avi").getFile()), "r");
+      UnmappedRIFFReader channelReader = new UnmappedRIFFReader();
+      channelReader.setUnmappedInput(file.getChannel());
+      while (streamReader.hasNext())
+      {
+        int id = streamReader.next();
+        assertEquals(id, channelReader.next());
+        if (id == DocumentStreamConstants.DATA)
+        {
+          int size = (int)streamReader.getDataSize();
+          assertEquals(size, channelReader.getDataSize());
+          streamReader.getData(buffer, 0, size);
+          if ((dataNr % 3) == 2)
+          {
+            ByteBuffer slice = channelReader.getDataSlice();
+            assertEquals(size, slice.remaining());
+            for (int i = 0; i < size; i++)
+            {
+              assertEquals(buffer[i], slice.get(i));
+            }
+          }
+          else
+          {
+            // Only read the start of every other chunk
+            int offset = 0;
+            int end = ((dataNr % 3) == 0) ? size : Math.min(size, 100);
+            while (offset < end)
+            {
+              target.clear();
+              target.limit(Math.min(target.capacity(), end - offset));
+              int count = channelReader.getData(target);
+              assertEquals(target.limit(), count);
+              for (int i = 0; i < count; i++)
+              {
+                assertEquals(buffer[offset + i], target.get(i));
+              }
+              offset += count;
+            }
+          }
+          dataNr++;
+        }
+      }
+      assertFalse(channelReader.hasNext());
+      assertTrue(dataNr > 3);
+      file.close();
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    catch (IOException e)
+    {
+      fail();
+    }
+  }
+
+  /** Test that the same elements as testTwo are skipped using an identifier filter */
+  public void testIdSetFilter() throws FileNotFoundException
+  {
+    int groupNr = 0;
+    int elements = 0;
+    try
+    {
+      InputStream is = getClass().getResourceAsStream("/res/sample1.avi");
+      RIFFReader reader = new RIFFReader();
+      reader.setInput(is, null);
+      reader.setFilter(IdSetFilter.exclude(new Object[]{"movi","JUNK"}));
+      while (reader.hasNext())
+      {
+        int id = reader.next();
+        if ((id == DocumentStreamConstants.START_GROUP) || (id == DocumentStreamConstants.END_GROUP))
+        {
+          assertEquals(sample1GroupNames[groupNr],reader.getId().toString());
+          groupNr++;
+        }
+        if (id == DocumentStreamConstants.DATA)
+        {
+          assertFalse(reader.getId().toString().equals("JUNK"));
+          elements++;
+        }
+      }
+      assertEquals(sample1GroupNames.length, groupNr);
+      // avih, strh, strf, strn, idx1
+      assertEquals(5, elements);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    catch (IOException e)
+    {
+      fail();
+    }
+  }
+
+  /** Test skipping the movi group, and navigating only on the tags */
+  public void testSkipCurrentGroup() throws FileNotFoundException
+  {
+    StringBuffer tags = new StringBuffer();
+    try
+    {
+      InputStream is = getClass().getResourceAsStream("/res/sample1.avi");
+      RIFFReader reader = new RIFFReader();
+      reader.setInput(is, null);
+      while (reader.hasNext())
+      {
+        int id = reader.nextTag();
+        switch (id)
+        {
+        case DocumentStreamConstants.START_GROUP:
+          tags.append("<" + reader.getId().toString() + ">");
+          if (reader.getId().toString().equals("movi"))
+          {
+            reader.skipCurrentGroup();
+            assertEquals(DocumentStreamConstants.END_GROUP, reader.getEventType());
+            assertEquals("movi", reader.getId().toString());
+            tags.append("</" + reader.getId().toString() + ">");
+          }
+          break;
+        case DocumentStreamConstants.END_GROUP:
+          tags.append("</" + reader.getId().toString() + ">");
+          break;
+        case DocumentStreamConstants.START_ELEMENT:
+          tags.append(reader.getId().toString());
+          break;
+        }
+      }
+      assertEquals("<hdrl>avih<strl>strhstrfstrn</strl></hdrl>JUNK<movi></movi>idx1", tags.toString());
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    catch (IOException e)
+    {
+      fail();
+    }
+  }
+
+  /** Test that the events returned in batches are the same as the ones returned by next() */
+  public void testNextBatch() throws FileNotFoundException
+  {
+    int depth = 0;
+    int total = 0;
+    EventBatch batch = new EventBatch(5);
+    try
+    {
+      RIFFReader reader = new RIFFReader();
+      reader.setInput(getClass().getResourceAsStream("/res/sample1.avi"), null);
+      RIFFReader batchReader = new RIFFReader();
+      batchReader.setInput(getClass().getResourceAsStream("/res/sample1.avi"), null);
+      while (batchReader.nextBatch(batch) > 0)
+      {
+        for (int i = 0; i < batch.count; i++)
+        {
+          int id = reader.next();
+          assertEquals(id, batch.type[i]);
+          if (id == DocumentStreamConstants.END_GROUP)
+            depth--;
+          if ((id != DocumentStreamConstants.START_DOCUMENT) && (id != DocumentStreamConstants.END_DOCUMENT))
+          {
+            assertEquals(reader.getId(), batch.id[i]);
+            assertEquals(depth, batch.depth[i]);
+          }
+          if (id == DocumentStreamConstants.DATA)
+          {
+            assertEquals(reader.getDataSize(), batch.size[i]);
+            assertEquals(reader.getDataOffset(), batch.offset[i]);
+          }
+          if (id == DocumentStreamConstants.START_GROUP)
+            depth++;
+          total++;
+        }
+      }
+      assertFalse(reader.hasNext());
+      assertEquals(0, depth);
+      assertTrue(total > 13 * 3);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    catch (IOException e)
+    {
+      fail();
+    }
+  }
+
+  /** Chunk that counts the number of instances created. */
+  static class CountingChunkInfo extends ChunkInfo
+  {
+    static int allocations = 0;
+
+    public CountingChunkInfo()
+    {
+      super();
+      allocations++;
+    }
+
+    public Object clone()
+    {
+      ChunkInfo chunk = new CountingChunkInfo();
+      chunk.copy(this);
+      return chunk;
+    }
+  }
+
+  /** Reader that allocates counting chunks. */
+  static class CountingRIFFReader extends RIFFReader
+  {
+    protected ChunkInfo newChunkInfo()
+    {
+      return new CountingChunkInfo();
+    }
+  }
+
+  /** Test that once all nesting levels have been visited, no chunk
+   *  information is allocated anymore whatever the number of events. 
+   */
+  public void testChunkAllocations() throws FileNotFoundException
+  {
+    int allocations = -1;
+    int events = 0;
+    try
+    {
+      InputStream is = getClass().getResourceAsStream("/res/sample1.avi");
+      CountingChunkInfo.allocations = 0;
+      RIFFReader reader = new CountingRIFFReader();
+      reader.setInput(is, null);
+      while (reader.hasNext())
+      {
+        int id = reader.next();
+        // The movi group is at the first nesting level which has already been visited. 
+        if ((id == DocumentStreamConstants.START_GROUP) && (reader.getId().toString().equals("movi")))
+        {
+          allocations = CountingChunkInfo.allocations;
+        }
+        if (allocations != -1)
+        {
+          events++;
+        }
+      }
+      assertTrue(events > 13 * 3);
+      assertEquals(allocations, CountingChunkInfo.allocations);
+      // Two nesting levels, the current chunk, the next chunk.
+      assertTrue(CountingChunkInfo.allocations <= 4);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    catch (IOException e)
+    {
+      fail();
+    }
+  }
+
+  /** The thread management bean, or null if the allocated memory cannot be measured */
+  private Object threadBean;
+  /** The com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long) method */
+  private Method getAllocated;
+  /** The arguments of getAllocated, the identifier of the current thread */
+  private Object[] threadId;
+
+  /** Returns the number of bytes allocated by the current thread, or -1 if
+   *  this is not supported by the virtual machine, this requires 
+   *  com.sun.management.ThreadMXBean which is accessed by reflection.
+   */
+  private long getAllocatedBytes()
+  {
+    try
+    {
+      if (threadBean == null)
+      {
+        Class factory = Class.forName("java.lang.management.ManagementFactory");
+        Object bean = factory.getMethod("getThreadMXBean", new Class[0]).invoke(null, new Object[0]);
+        Class beanClass = Class.forName("com.sun.management.ThreadMXBean");
+        if (beanClass.isInstance(bean) == false)
+          return -1;
+        Method getId = Thread.class.getMethod("getId", new Class[0]);
+        getAllocated = beanClass.getMethod("getThreadAllocatedBytes", new Class[] { Long.TYPE });
+        threadId = new Object[] { getId.invoke(Thread.currentThread(), new Object[0]) };
+        threadBean = bean;
+      }
+      return ((Long) getAllocated.invoke(threadBean, threadId)).longValue();
+    } catch (Exception e)
+    {
+      return -1;
+    }
+  }
+
+  /** Reads events until the specified number of events have been read. */
+  private static void readEvents(RIFFReader reader, int count) throws DocumentStreamException, IOException
+  {
+    for (int i = 0; i < count; i++)
+    {
+      reader.next();
+    }
+  }
+
+  /** Test that once all nesting levels and identifiers have been seen,
+   *  reading events does not allocate any memory, as measured by the
+   *  virtual machine when it supports it.
+   */
+  public void testAllocationFree() throws DocumentStreamException, IOException
+  {
+    int chunkCount = 50000;
+    // Each chunk has an 8 byte header and 2 bytes of data
+    ByteBuffer buffer = ByteBuffer.allocate(12 + 12 + chunkCount * 10);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put("RIFF".getBytes()).putInt(buffer.capacity() - 8).put("TEST".getBytes());
+    buffer.put("LIST".getBytes()).putInt(buffer.capacity() - 20).put("list".getBytes());
+    for (int i = 0; i < chunkCount; i++)
+    {
+      buffer.put(((i & 1) == 0 ? "dat0" : "dat1").getBytes()).putInt(2).putShort((short) i);
+    }
+    buffer.flip();
+    RIFFReader reader = new RIFFReader();
+    reader.setInput(buffer);
+    // Each chunk gives 3 events
+    readEvents(reader, 1000);
+    // Measure the cost of the measurement itself, once its code is prepared
+    long overhead = 0;
+    for (int i = 0; i < 50; i++)
+    {
+      long start = getAllocatedBytes();
+      overhead = Math.max(overhead, getAllocatedBytes() - start);
+    }
+    long start = getAllocatedBytes();
+    readEvents(reader, (chunkCount - 500) * 3);
+    long allocated = getAllocatedBytes() - start;
+    assertTrue(reader.hasNext());
+    if (start != -1)
+    {
+      assertTrue("Allocated " + allocated + " bytes", allocated <= overhead);
+    }
+  }
+
   public boolean accept(DocumentStreamReader reader)
   {
     if (reader.getEventType()==DocumentStreamConstants.START_GROUP)
@@ -401,6 +401,12 @@ public class TIFFReader extends AbstractDocumentReader
     return false;
   }
 
+  /** The groups are parsed to determine their end. */
+  protected boolean skipGroup(ChunkInfo group)
+  {
+    return false;
+  }
+
   /**
    * Determine if this is the end of the document. For TIFF files the end of
    * document is determined by being the last image in the TIFF document and by
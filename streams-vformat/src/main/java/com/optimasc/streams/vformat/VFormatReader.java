@@ -3,6 +3,8 @@ package com.optimasc.streams.vformat;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Vector;
 
 import com.optimasc.io.SeekableDataInputStream;
@@ -82,7 +84,10 @@ public class VFormatReader extends AbstractDocumentReader
         header.size = 0;
         header.offset = 0;
         header.id = values[INDEX_VALUE];
-        parseAttributes(header.getAttributes(), values[INDEX_PARAMS]);
+        if (isSkipped(header.id, header.type) == false)
+        {
+          parseAttributes(header.getAttributes(), values[INDEX_PARAMS]);
+        }
       } else
       {
         try
@@ -98,7 +103,10 @@ public class VFormatReader extends AbstractDocumentReader
         header.size = utf8buffer.length;
         header.offset = 0;
         header.id = values[INDEX_NAME];
-        parseAttributes(header.getAttributes(), values[INDEX_PARAMS]);
+        if (isSkipped(header.id, header.type) == false)
+        {
+          parseAttributes(header.getAttributes(), values[INDEX_PARAMS]);
+        }
       }
     } catch (IllegalArgumentException e)
     {
@@ -516,7 +524,8 @@ public class VFormatReader extends AbstractDocumentReader
 
   protected void skipData(long size) throws DocumentStreamException
   {
-    // Do nothing - since the data is in an internal buffer.
+    // The data is in an internal buffer.
+    internalPosition += size;
   }
 
   // Read from the internal buffer instead from the actual stream.
@@ -527,6 +536,42 @@ public class VFormatReader extends AbstractDocumentReader
     internalPosition += length;
   }
 
+  // Copy from the internal buffer instead of the actual stream.
+  protected void read(ByteBuffer target, int length) throws DocumentStreamException
+  {
+    target.put(utf8buffer, internalPosition, length);
+    internalPosition += length;
+  }
+
+  // Return a view on the internal buffer instead of the actual stream.
+  protected ByteBuffer sliceData(int length) throws DocumentStreamException
+  {
+    ByteBuffer slice = ByteBuffer.wrap(utf8buffer, internalPosition, length).slice();
+    internalPosition += length;
+    return slice.asReadOnlyBuffer();
+  }
+
+  // Write from the internal buffer instead of the actual stream.
+  protected long transfer(WritableByteChannel target, long length) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.wrap(utf8buffer, internalPosition, (int) length);
+    while (buffer.hasRemaining())
+    {
+      // The target does not accept any more data
+      if (target.write(buffer) <= 0)
+        break;
+    }
+    length -= buffer.remaining();
+    internalPosition += length;
+    return length;
+  }
+
+  // Groups have no size, they are parsed to determine their end.
+  protected boolean skipGroup(ChunkInfo group)
+  {
+    return false;
+  }
+
   // The only way to determine if a group is finished is to actually read
   // ahead and if the end is found then the group is finished. 
   protected boolean isGroupEnd(ChunkInfo current, ChunkInfo info) throws DocumentStreamException, IOException
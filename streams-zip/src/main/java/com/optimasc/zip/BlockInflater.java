@@ -0,0 +1,460 @@
+package com.optimasc.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.optimasc.streams.DocumentStreamException;
+
+/**
+ * Decoder of raw deflate data that indicates where each block starts, and
+ * gives access to the last 32 KiB of uncompressed data, so that the
+ * decompression can later be resumed from the start of any block. This
+ * information is not available from {@link java.util.zip.Inflater}.
+ *
+ * <p>The data is read from a file channel using positional reads. The
+ * decompression can also start at any bit of the data, which
+ * {@link java.util.zip.Inflater} does not support either.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+final class BlockInflater
+{
+  /** Size of the deflate window */
+  static final int WINDOW_SIZE = 32768;
+
+  /** Maximum length of a Huffman code */
+  private static final int MAX_BITS = 15;
+
+  /** Waiting for the header of the next block */
+  private static final int MODE_HEADER = 0;
+  /** In a stored block */
+  private static final int MODE_STORED = 1;
+  /** In a block compressed with Huffman codes */
+  private static final int MODE_HUFFMAN = 2;
+  /** The last block has been decoded */
+  private static final int MODE_DONE = 3;
+
+  /** Base lengths for the length symbols 257 to 285 */
+  private static final short[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+      35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+  /** Extra bits for the length symbols 257 to 285 */
+  private static final short[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+      3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+  /** Base distances for the distance symbols 0 to 29 */
+  private static final short[] DISTANCE_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129,
+      193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+  /** Extra bits for the distance symbols 0 to 29 */
+  private static final short[] DISTANCE_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+      7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+  /** Order of the code length code lengths in a dynamic block header */
+  private static final short[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3,
+      13, 2, 14, 1, 15 };
+
+  /** The fixed literal and length code */
+  private static final Huffman FIXED_LENGTH_CODE;
+  /** The fixed distance code */
+  private static final Huffman FIXED_DISTANCE_CODE;
+
+  static
+  {
+    short[] lengths = new short[288];
+    int i;
+    for (i = 0; i < 144; i++)
+      lengths[i] = 8;
+    for (; i < 256; i++)
+      lengths[i] = 9;
+    for (; i < 280; i++)
+      lengths[i] = 7;
+    for (; i < 288; i++)
+      lengths[i] = 8;
+    FIXED_LENGTH_CODE = new Huffman(lengths, 0, 288);
+    for (i = 0; i < 30; i++)
+      lengths[i] = 5;
+    FIXED_DISTANCE_CODE = new Huffman(lengths, 0, 30);
+  }
+
+  /** Canonical Huffman code, decoded one bit at a time. */
+  private static final class Huffman
+  {
+    /** Number of symbols of each code length */
+    final short[] count = new short[MAX_BITS + 1];
+    /** The symbols ordered by code */
+    final short[] symbol;
+    /** Indicates that some lengths are used by more codes than possible */
+    final boolean oversubscribed;
+
+    Huffman(short[] lengths, int off, int n)
+    {
+      short[] offsets = new short[MAX_BITS + 1];
+      int left = 1;
+      int i;
+      symbol = new short[n];
+      for (i = 0; i < n; i++)
+        count[lengths[off + i]]++;
+      for (i = 1; i <= MAX_BITS; i++)
+      {
+        left = (left << 1) - count[i];
+        if (left < 0)
+          break;
+      }
+      oversubscribed = left < 0;
+      for (i = 1; i < MAX_BITS; i++)
+        offsets[i + 1] = (short) (offsets[i] + count[i]);
+      for (i = 0; i < n; i++)
+      {
+        if (lengths[off + i] != 0)
+          symbol[offsets[lengths[off + i]]++] = (short) i;
+      }
+    }
+  }
+
+  /** The channel containing the compressed data */
+  private final FileChannel channel;
+  /** Position of the next byte to read in the channel */
+  private long position;
+  /** Number of compressed bytes not yet read from the channel */
+  private long compressedLeft;
+  /** Buffer of compressed data */
+  private final byte[] input = new byte[8192];
+  /** Position of the next byte to use in input */
+  private int inputPosition;
+  /** Number of valid bytes in input */
+  private int inputLength;
+  /** Number of compressed bytes given to the bit buffer */
+  private long bytesUsed;
+  /** Bits not yet used, the next bit is the lowest one */
+  private int bitBuffer;
+  /** Number of bits in bitBuffer */
+  private int bitCount;
+
+  /** One of the MODE_XXX constants */
+  private int mode = MODE_HEADER;
+  /** Indicates that the current block is the last one */
+  private boolean lastBlock;
+  /** In a stored block, the number of bytes left */
+  private int storedLeft;
+  /** The literal and length code of the current block */
+  private Huffman lengthCode;
+  /** The distance code of the current block */
+  private Huffman distanceCode;
+  /** Number of bytes of the current match not yet copied */
+  private int copyLength;
+  /** Distance of the current match */
+  private int copyDistance;
+
+  /** The last uncompressed bytes */
+  private final byte[] window = new byte[WINDOW_SIZE];
+  /** Position of the next byte in window */
+  private int windowPosition;
+  /** Number of uncompressed bytes returned */
+  private long total;
+  /** Number of bytes of the dictionary set before the first block */
+  private int dictionaryLength;
+
+  /**
+   * Creates a decoder of the deflate data located in a channel.
+   *
+   * @param channel The channel containing the data.
+   * @param offset The offset of the data in the channel.
+   * @param compressedSize The size of the data.
+   */
+  BlockInflater(FileChannel channel, long offset, long compressedSize)
+  {
+    this.channel = channel;
+    this.position = offset;
+    this.compressedLeft = compressedSize;
+  }
+
+  /**
+   * Creates a decoder that resumes the decompression at the start of a
+   * block, which is not necessarily located at the start of a byte.
+   *
+   * @param channel The channel containing the data.
+   * @param offset The offset of the data in the channel.
+   * @param compressedSize The size of the data.
+   * @param bitPosition The position of the block in bits, relative to offset.
+   * @param dictionary The uncompressed data preceding the block, at most 32 KiB.
+   * @throws IOException If the data cannot be read.
+   */
+  BlockInflater(FileChannel channel, long offset, long compressedSize, long bitPosition,
+      byte[] dictionary) throws IOException
+  {
+    this(channel, offset + (bitPosition >>> 3), compressedSize - (bitPosition >>> 3));
+    bytesUsed = bitPosition >>> 3;
+    // Skip the bits of the first byte that precede the block
+    bits((int) (bitPosition & 7));
+    System.arraycopy(dictionary, 0, window, 0, dictionary.length);
+    windowPosition = dictionary.length & (WINDOW_SIZE - 1);
+    dictionaryLength = dictionary.length;
+  }
+
+  /**
+   * Indicates if the decoder is located at the start of a block, which
+   * is the case after {@link #inflate(byte[], int, int)} returned
+   * because a block ended.
+   */
+  boolean isBlockStart()
+  {
+    return (mode == MODE_HEADER) && (copyLength == 0);
+  }
+
+  /**
+   * Returns the position of the next bit to decode, relative to the start
+   * of the compressed data.
+   */
+  long getBitPosition()
+  {
+    return (bytesUsed * 8) - bitCount;
+  }
+
+  /**
+   * Returns the number of uncompressed bytes returned.
+   */
+  long getTotalOut()
+  {
+    return total;
+  }
+
+  /**
+   * Returns the last uncompressed bytes returned, at most 32 KiB, which
+   * are needed to resume the decompression at the current position.
+   */
+  byte[] getWindow()
+  {
+    int length = (int) Math.min(total + dictionaryLength, WINDOW_SIZE);
+    byte[] result = new byte[length];
+    int start = (windowPosition - length) & (WINDOW_SIZE - 1);
+    int first = Math.min(length, WINDOW_SIZE - start);
+    System.arraycopy(window, start, result, 0, first);
+    System.arraycopy(window, 0, result, first, length - first);
+    return result;
+  }
+
+  private static IOException corrupt()
+  {
+    return new IOException(DocumentStreamException.ERR_CORRUPT_STREAM);
+  }
+
+  private int readByte() throws IOException
+  {
+    if (inputPosition == inputLength)
+    {
+      if (compressedLeft <= 0)
+        throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+      ByteBuffer buffer = ByteBuffer.wrap(input, 0, (int) Math.min(input.length, compressedLeft));
+      while (buffer.hasRemaining())
+      {
+        if (channel.read(buffer, position + buffer.position()) < 0)
+          throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+      }
+      inputLength = buffer.position();
+      inputPosition = 0;
+      position += inputLength;
+      compressedLeft -= inputLength;
+    }
+    bytesUsed++;
+    return input[inputPosition++] & 0xFF;
+  }
+
+  private int bits(int need) throws IOException
+  {
+    int value;
+    while (bitCount < need)
+    {
+      bitBuffer |= readByte() << bitCount;
+      bitCount += 8;
+    }
+    value = bitBuffer & ((1 << need) - 1);
+    bitBuffer >>>= need;
+    bitCount -= need;
+    return value;
+  }
+
+  private int decode(Huffman h) throws IOException
+  {
+    int code = 0;
+    int first = 0;
+    int index = 0;
+    int count;
+    for (int length = 1; length <= MAX_BITS; length++)
+    {
+      code |= bits(1);
+      count = h.count[length];
+      if ((code - count) < first)
+        return h.symbol[index + (code - first)];
+      index += count;
+      first += count;
+      first <<= 1;
+      code <<= 1;
+    }
+    throw corrupt();
+  }
+
+  /** Reads the header of the next block. */
+  private void readBlockHeader() throws IOException
+  {
+    int type;
+    lastBlock = bits(1) == 1;
+    type = bits(2);
+    switch (type)
+    {
+      case 0:
+        // The length is byte aligned
+        bitBuffer = 0;
+        bitCount = 0;
+        storedLeft = readByte() | (readByte() << 8);
+        if ((readByte() | (readByte() << 8)) != (~storedLeft & 0xFFFF))
+          throw corrupt();
+        mode = MODE_STORED;
+        break;
+      case 1:
+        lengthCode = FIXED_LENGTH_CODE;
+        distanceCode = FIXED_DISTANCE_CODE;
+        mode = MODE_HUFFMAN;
+        break;
+      case 2:
+        readDynamicCodes();
+        mode = MODE_HUFFMAN;
+        break;
+      default:
+        throw corrupt();
+    }
+  }
+
+  /** Reads the codes of a block compressed with dynamic Huffman codes. */
+  private void readDynamicCodes() throws IOException
+  {
+    short[] lengths = new short[320];
+    int lengthCount = bits(5) + 257;
+    int distanceCount = bits(5) + 1;
+    int codeCount = bits(4) + 4;
+    int index;
+    int symbol;
+    int length;
+    int repeat;
+    if ((lengthCount > 286) || (distanceCount > 30))
+      throw corrupt();
+    for (index = 0; index < codeCount; index++)
+      lengths[CODE_LENGTH_ORDER[index]] = (short) bits(3);
+    Huffman codeLengthCode = new Huffman(lengths, 0, 19);
+    if (codeLengthCode.oversubscribed)
+      throw corrupt();
+    index = 0;
+    while (index < (lengthCount + distanceCount))
+    {
+      symbol = decode(codeLengthCode);
+      if (symbol < 16)
+      {
+        lengths[index++] = (short) symbol;
+        continue;
+      }
+      length = 0;
+      if (symbol == 16)
+      {
+        if (index == 0)
+          throw corrupt();
+        length = lengths[index - 1];
+        repeat = 3 + bits(2);
+      } else if (symbol == 17)
+      {
+        repeat = 3 + bits(3);
+      } else
+      {
+        repeat = 11 + bits(7);
+      }
+      if ((index + repeat) > (lengthCount + distanceCount))
+        throw corrupt();
+      while (repeat-- > 0)
+        lengths[index++] = (short) length;
+    }
+    // The end of block code must be present
+    if (lengths[256] == 0)
+      throw corrupt();
+    lengthCode = new Huffman(lengths, 0, lengthCount);
+    distanceCode = new Huffman(lengths, lengthCount, distanceCount);
+    if (lengthCode.oversubscribed || distanceCode.oversubscribed)
+      throw corrupt();
+  }
+
+  /**
+   * Decompresses data, returning early when a block ends so that the
+   * caller can record the start of the next block.
+   *
+   * @return The number of bytes decompressed, which is 0 when a block ends
+   *   before any byte is decompressed, or -1 if the last block has been
+   *   decoded.
+   * @throws IOException If the data is not valid deflate data.
+   */
+  int inflate(byte[] b, int off, int len) throws IOException
+  {
+    int count = 0;
+    int symbol;
+    byte value;
+    while (count < len)
+    {
+      if (copyLength > 0)
+      {
+        value = window[(windowPosition - copyDistance) & (WINDOW_SIZE - 1)];
+        copyLength--;
+      } else if (mode == MODE_HUFFMAN)
+      {
+        symbol = decode(lengthCode);
+        if (symbol < 256)
+        {
+          value = (byte) symbol;
+        } else
+        {
+          if (symbol == 256)
+          {
+            mode = lastBlock ? MODE_DONE : MODE_HEADER;
+            // Return at the end of each block
+            if (mode == MODE_HEADER)
+              return count;
+          } else
+          {
+            symbol -= 257;
+            if (symbol >= 29)
+              throw corrupt();
+            copyLength = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+            symbol = decode(distanceCode);
+            if (symbol >= 30)
+              throw corrupt();
+            copyDistance = DISTANCE_BASE[symbol] + bits(DISTANCE_EXTRA[symbol]);
+            if (copyDistance > (total + dictionaryLength))
+              throw corrupt();
+          }
+          continue;
+        }
+      } else if (mode == MODE_STORED)
+      {
+        if (storedLeft == 0)
+        {
+          mode = lastBlock ? MODE_DONE : MODE_HEADER;
+          if (mode == MODE_HEADER)
+            return count;
+          continue;
+        }
+        value = (byte) readByte();
+        storedLeft--;
+      } else if (mode == MODE_HEADER)
+      {
+        readBlockHeader();
+        continue;
+      } else
+      {
+        break;
+      }
+      window[windowPosition] = value;
+      windowPosition = (windowPosition + 1) & (WINDOW_SIZE - 1);
+      total++;
+      b[off + count++] = value;
+    }
+    if ((count == 0) && (mode == MODE_DONE) && (len > 0))
+      return -1;
+    return count;
+  }
+
+}
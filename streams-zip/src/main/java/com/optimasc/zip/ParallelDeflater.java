@@ -0,0 +1,526 @@
+package com.optimasc.zip;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Vector;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates the data of the ZIP entries, optionally using several threads in
+ * the same way as pigz. The data is then split in blocks that are each
+ * compressed by their own raw deflater, primed with the last 32 KB of the
+ * previous block as dictionary and ended with a sync flush so that the
+ * compressed block ends on a byte boundary. The compressed blocks are
+ * written in order, so that they form a single deflate stream, and the
+ * CRC-32 of the blocks are combined.
+ *
+ * <p>Sync flushes only exist from Java 7 onwards, the method is then called
+ * by reflection. If it is not available, or if a single thread is used, the
+ * data is compressed as one stream by the calling thread.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+final class ParallelDeflater
+{
+  /** Size of the window of deflate streams */
+  static final int WINDOW_SIZE = 32768;
+  /** Default size of the uncompressed blocks compressed by each thread */
+  static final int DEFAULT_BLOCK_SIZE = 131072;
+  /** Value of Deflater.SYNC_FLUSH */
+  private static final int SYNC_FLUSH = 2;
+  /** The Deflater.deflate(byte[], int, int, int) method, or null if it is not available */
+  private static final Method syncDeflate = findSyncDeflate();
+
+  /** The compression level */
+  private final int level;
+  /** The number of threads that compress the blocks */
+  private final int threadCount;
+  /** The size of the uncompressed blocks */
+  private final int blockSize;
+
+  /** Where the compressed data is written */
+  private OutputStream out;
+  /** Number of uncompressed bytes of the current data */
+  private long totalIn;
+  /** Number of compressed bytes of the current data */
+  private long totalOut;
+  /** CRC-32 of the uncompressed data written so far */
+  private long crcValue;
+
+  /** The deflater used when the data is compressed by the calling thread */
+  private Deflater deflater;
+  /** The CRC-32 of the data compressed by the calling thread */
+  private CRC32 crc;
+  /** The output buffer of the deflater */
+  private byte[] buffer;
+
+  /** The block being filled */
+  private Block current;
+  /** The last bytes of the previous block, used as dictionary of the next one */
+  private byte[] dictionary;
+  /** Length of the dictionary, 0 at the start of the data */
+  private int dictionaryLength;
+  /** The blocks that have not been written yet, in order */
+  private final Vector pending = new Vector();
+  /** The blocks that have not been compressed yet, in order */
+  private final Vector queue = new Vector();
+  /** The threads compressing the blocks, or null if they are not started */
+  private Worker[] workers;
+  /** Set when the threads must stop */
+  private boolean stopped;
+  /** The first error of a compression thread */
+  private Exception failure;
+
+  /**
+   * Creates a deflater.
+   *
+   * @param level The compression level, from 0 to 9, or
+   *   <code>Deflater.DEFAULT_COMPRESSION</code>.
+   * @param threadCount The number of threads that compress the data.
+   * @param blockSize The size of the uncompressed blocks compressed by each
+   *   thread, which must be greater than the window size.
+   */
+  ParallelDeflater(int level, int threadCount, int blockSize)
+  {
+    if (((level < 0) || (level > 9)) && (level != Deflater.DEFAULT_COMPRESSION))
+      throw new IllegalArgumentException("Invalid compression level.");
+    if (threadCount < 1)
+      throw new IllegalArgumentException("Invalid number of threads.");
+    if (blockSize <= WINDOW_SIZE)
+      throw new IllegalArgumentException("Invalid block size.");
+    this.level = level;
+    this.threadCount = threadCount;
+    this.blockSize = blockSize;
+  }
+
+  /** Returns the deflate method taking a flush mode, or null. */
+  private static Method findSyncDeflate()
+  {
+    try
+    {
+      return Deflater.class.getMethod("deflate", new Class[] { byte[].class, Integer.TYPE,
+          Integer.TYPE, Integer.TYPE });
+    } catch (NoSuchMethodException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Returns true if the blocks are compressed by several threads.
+   *
+   * @return true if several threads are used.
+   */
+  boolean isParallel()
+  {
+    return (threadCount > 1) && (syncDeflate != null);
+  }
+
+  /**
+   * Starts the compression of new data, as a new deflate stream.
+   *
+   * @param out Where the compressed data is written.
+   */
+  void start(OutputStream out)
+  {
+    this.out = out;
+    totalIn = 0;
+    totalOut = 0;
+    crcValue = 0;
+    if (isParallel())
+    {
+      current = null;
+      dictionaryLength = 0;
+      return;
+    }
+    if (deflater == null)
+    {
+      deflater = new Deflater(level, true);
+      crc = new CRC32();
+      buffer = new byte[8192];
+    }
+    deflater.reset();
+    crc.reset();
+  }
+
+  /**
+   * Compresses data.
+   *
+   * @param b The uncompressed data.
+   * @param off The offset of the data.
+   * @param len The number of bytes to compress.
+   * @throws IOException If the compressed data cannot be written.
+   */
+  void write(byte[] b, int off, int len) throws IOException
+  {
+    int count;
+    totalIn += len;
+    if (isParallel() == false)
+    {
+      crc.update(b, off, len);
+      deflater.setInput(b, off, len);
+      while (deflater.needsInput() == false)
+      {
+        writeDeflated();
+      }
+      return;
+    }
+    while (len > 0)
+    {
+      if (current == null)
+        current = newBlock();
+      count = Math.min(len, blockSize - current.length);
+      System.arraycopy(b, off, current.input, current.length, count);
+      current.length += count;
+      off += count;
+      len -= count;
+      if (current.length == blockSize)
+      {
+        submit(false);
+      }
+    }
+  }
+
+  /**
+   * Ends the deflate stream, and writes all the remaining compressed data.
+   *
+   * @throws IOException If the compressed data cannot be written.
+   */
+  void finish() throws IOException
+  {
+    if (isParallel() == false)
+    {
+      deflater.finish();
+      while (deflater.finished() == false)
+      {
+        writeDeflated();
+      }
+      crcValue = crc.getValue();
+      return;
+    }
+    if (current == null)
+      current = newBlock();
+    submit(true);
+  }
+
+  /**
+   * Returns the number of uncompressed bytes of the current data.
+   *
+   * @return The uncompressed size.
+   */
+  long getBytesRead()
+  {
+    return totalIn;
+  }
+
+  /**
+   * Returns the number of compressed bytes written for the current data,
+   * only valid once it is finished.
+   *
+   * @return The compressed size.
+   */
+  long getBytesWritten()
+  {
+    return totalOut;
+  }
+
+  /**
+   * Returns the CRC-32 of the uncompressed data, only valid once it is
+   * finished.
+   *
+   * @return The CRC-32 of the data.
+   */
+  long getCrc()
+  {
+    return crcValue;
+  }
+
+  /**
+   * Stops the compression threads and releases the deflater, the instance
+   * cannot be used anymore afterwards.
+   */
+  void end()
+  {
+    synchronized (this)
+    {
+      stopped = true;
+      queue.removeAllElements();
+      notifyAll();
+    }
+    if (deflater != null)
+    {
+      deflater.end();
+      deflater = null;
+    }
+  }
+
+  /** Writes the data available from the deflater of the calling thread. */
+  private void writeDeflated() throws IOException
+  {
+    int count = deflater.deflate(buffer, 0, buffer.length);
+    if (count > 0)
+    {
+      out.write(buffer, 0, count);
+      totalOut += count;
+    }
+  }
+
+  /** Allocates a block, primed with the end of the previous block. */
+  private Block newBlock()
+  {
+    Block block = new Block();
+    block.input = new byte[blockSize];
+    if (dictionaryLength > 0)
+    {
+      block.dictionary = dictionary;
+      block.dictionaryLength = dictionaryLength;
+    }
+    return block;
+  }
+
+  /**
+   * Queues the current block for compression, and writes the blocks
+   * that are compressed. Only a limited number of blocks are kept in memory,
+   * the calling thread waits when there are too many of them.
+   */
+  private void submit(boolean last) throws IOException
+  {
+    Block block = current;
+    block.last = last;
+    current = null;
+    if (last)
+    {
+      dictionaryLength = 0;
+    } else
+    {
+      // Copy the end of the block, since its buffer is owned by the compression thread
+      dictionaryLength = Math.min(block.length, WINDOW_SIZE);
+      dictionary = new byte[dictionaryLength];
+      System.arraycopy(block.input, block.length - dictionaryLength, dictionary, 0, dictionaryLength);
+    }
+    synchronized (this)
+    {
+      checkFailure();
+      if (workers == null)
+      {
+        workers = new Worker[threadCount];
+        for (int i = 0; i < workers.length; i++)
+        {
+          workers[i] = new Worker();
+          workers[i].setDaemon(true);
+          workers[i].start();
+        }
+      }
+      pending.addElement(block);
+      queue.addElement(block);
+      notifyAll();
+    }
+    if (last)
+      writeBlocks(0);
+    else
+      writeBlocks(threadCount * 2);
+  }
+
+  /**
+   * Writes the compressed blocks in order, until at most the specified
+   * number of blocks are still pending.
+   */
+  private void writeBlocks(int maxPending) throws IOException
+  {
+    Block block;
+    while (true)
+    {
+      synchronized (this)
+      {
+        while (true)
+        {
+          checkFailure();
+          if (pending.isEmpty())
+            return;
+          block = (Block) pending.firstElement();
+          if (block.done)
+            break;
+          if (pending.size() <= maxPending)
+            return;
+          try
+          {
+            wait();
+          } catch (InterruptedException e)
+          {
+            throw new InterruptedIOException();
+          }
+        }
+        pending.removeElementAt(0);
+      }
+      out.write(block.output, 0, block.outputLength);
+      totalOut += block.outputLength;
+      crcValue = ZIPCRC32.combine(crcValue, block.crc, block.length);
+    }
+  }
+
+  /** Throws the error of a compression thread, if there was one. */
+  private void checkFailure() throws IOException
+  {
+    if (failure instanceof IOException)
+      throw (IOException) failure;
+    if (failure != null)
+    {
+      IOException ioe = new IOException(failure.getMessage());
+      ioe.initCause(failure);
+      throw ioe;
+    }
+  }
+
+  /** Returns the next block to compress, or null if the thread must stop. */
+  private synchronized Block takeBlock()
+  {
+    while ((queue.isEmpty()) && (stopped == false) && (failure == null))
+    {
+      try
+      {
+        wait();
+      } catch (InterruptedException e)
+      {
+        return null;
+      }
+    }
+    if ((stopped) || (failure != null))
+      return null;
+    Block block = (Block) queue.firstElement();
+    queue.removeElementAt(0);
+    return block;
+  }
+
+  /** Marks a block as compressed. */
+  private synchronized void setDone(Block block)
+  {
+    block.done = true;
+    notifyAll();
+  }
+
+  /** Records the first error, which stops the compression. */
+  private synchronized void setFailure(Exception e)
+  {
+    if (failure == null)
+      failure = e;
+    notifyAll();
+  }
+
+  /** Compresses a block, which ends the stream if it is the last one. */
+  private static void compress(Deflater deflater, CRC32 crc, Block block) throws IOException
+  {
+    int space;
+    int count;
+    crc.reset();
+    crc.update(block.input, 0, block.length);
+    block.crc = crc.getValue();
+    block.output = new byte[block.length + (block.length >> 10) + 64];
+    deflater.reset();
+    if (block.dictionaryLength > 0)
+      deflater.setDictionary(block.dictionary, 0, block.dictionaryLength);
+    deflater.setInput(block.input, 0, block.length);
+    if (block.last)
+      deflater.finish();
+    while (true)
+    {
+      if (block.outputLength == block.output.length)
+      {
+        byte[] output = new byte[block.output.length * 2];
+        System.arraycopy(block.output, 0, output, 0, block.outputLength);
+        block.output = output;
+      }
+      space = block.output.length - block.outputLength;
+      if (block.last)
+      {
+        block.outputLength += deflater.deflate(block.output, block.outputLength, space);
+        if (deflater.finished())
+          break;
+      } else
+      {
+        // The flush is complete once there is space left in the output buffer
+        count = syncDeflate(deflater, block.output, block.outputLength, space);
+        block.outputLength += count;
+        if (count < space)
+          break;
+      }
+    }
+    // The input is no longer needed
+    block.input = null;
+    block.dictionary = null;
+  }
+
+  /** Calls Deflater.deflate(b, off, len, SYNC_FLUSH). */
+  private static int syncDeflate(Deflater deflater, byte[] b, int off, int len) throws IOException
+  {
+    try
+    {
+      return ((Integer) syncDeflate.invoke(deflater, new Object[] { b, new Integer(off),
+          new Integer(len), new Integer(SYNC_FLUSH) })).intValue();
+    } catch (IllegalAccessException e)
+    {
+      IOException ioe = new IOException(e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    } catch (InvocationTargetException e)
+    {
+      IOException ioe = new IOException(e.getTargetException().getMessage());
+      ioe.initCause(e.getTargetException());
+      throw ioe;
+    }
+  }
+
+  /** A block of data compressed by one thread. */
+  private static final class Block
+  {
+    /** The uncompressed data */
+    byte[] input;
+    /** Length of the uncompressed data */
+    int length;
+    /** The dictionary of the block, or null */
+    byte[] dictionary;
+    /** Length of the dictionary */
+    int dictionaryLength;
+    /** true if this block ends the stream */
+    boolean last;
+    /** The compressed data */
+    byte[] output;
+    /** Length of the compressed data */
+    int outputLength;
+    /** The CRC-32 of the uncompressed data */
+    long crc;
+    /** Set once the block is compressed */
+    boolean done;
+  }
+
+  /** Thread compressing blocks until it is stopped. */
+  private class Worker extends Thread
+  {
+    public void run()
+    {
+      // Each thread reuses its own deflater for all its blocks
+      Deflater blockDeflater = new Deflater(level, true);
+      CRC32 blockCrc = new CRC32();
+      Block block;
+      try
+      {
+        while ((block = takeBlock()) != null)
+        {
+          compress(blockDeflater, blockCrc, block);
+          setDone(block);
+        }
+      } catch (Exception e)
+      {
+        setFailure(e);
+      } finally
+      {
+        blockDeflater.end();
+      }
+    }
+  }
+
+}
@@ -54,7 +54,7 @@ public class ZIPCRC32
       crc = hashValue & 0xFFFFFFFFL;
 
       for(i = 0; i < len; i++)
-        crc = (crc >> 8) ^ (long)(crc32table[(int) (input[i+offset] ^ (crc & 0xFF))] & 0xFFFFFFFFL);
+        crc = (crc >> 8) ^ (long)(crc32table[(int) ((input[i+offset] & 0xFF) ^ (crc & 0xFF))] & 0xFFFFFFFFL);
       hashValue = crc & 0xFFFFFFFFL;
     }
 
@@ -83,4 +83,70 @@ public class ZIPCRC32
       return 4;
     }
 
+    /** Returns the CRC-32 of two concatenated blocks of data, from
+     *  the CRC-32 of each block, as done by crc32_combine() in zlib.
+     *
+     * @param crc1 The CRC-32 of the first block.
+     * @param crc2 The CRC-32 of the second block.
+     * @param len2 The length of the second block.
+     * @return The CRC-32 of the concatenated blocks.
+     */
+    public static long combine(long crc1, long crc2, long len2)
+    {
+      long[] even = new long[32];
+      long[] odd = new long[32];
+      long row;
+      int n;
+
+      if (len2 <= 0)
+        return crc1;
+      /* Operator for one zero bit in odd */
+      odd[0] = 0xEDB88320L;
+      row = 1;
+      for (n = 1; n < 32; n++)
+      {
+        odd[n] = row;
+        row <<= 1;
+      }
+      /* Operators for two and then four zero bits */
+      gf2MatrixSquare(even, odd);
+      gf2MatrixSquare(odd, even);
+      /* Apply len2 zeros to crc1, the first square puts the operator for one
+       * zero byte, eight zero bits, in even */
+      do
+      {
+        gf2MatrixSquare(even, odd);
+        if ((len2 & 1) != 0)
+          crc1 = gf2MatrixTimes(even, crc1);
+        len2 >>= 1;
+        if (len2 == 0)
+          break;
+        gf2MatrixSquare(odd, even);
+        if ((len2 & 1) != 0)
+          crc1 = gf2MatrixTimes(odd, crc1);
+        len2 >>= 1;
+      } while (len2 != 0);
+      return (crc1 ^ crc2) & 0xFFFFFFFFL;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec)
+    {
+      long sum = 0;
+      int i = 0;
+      while (vec != 0)
+      {
+        if ((vec & 1) != 0)
+          sum ^= mat[i];
+        vec >>>= 1;
+        i++;
+      }
+      return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat)
+    {
+      for (int n = 0; n < 32; n++)
+        square[n] = gf2MatrixTimes(mat, mat[n]);
+    }
+
 }
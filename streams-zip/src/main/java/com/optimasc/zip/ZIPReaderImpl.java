@@ -5,9 +5,15 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Hashtable;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import com.optimasc.date.DOSDate;
 import com.optimasc.date.DateConverter;
@@ -32,18 +38,130 @@ import com.optimasc.streams.internal.ResourceChunkInfo;
  * <p>The standard resource attributes
  * {@link com.optimasc.streams.internal.ResourceType} are available.
  *
+ * <p>When the {@link #PROPERTY_INFLATE_DATA} property is set, the data of
+ * stored and deflated entries is returned uncompressed, and its CRC-32 is
+ * verified as it is read. As the uncompressed data is not present in the
+ * input, {@link #getDataSlice()} is then not supported for these entries.
+ *
+ * <p>When the input is not seekable, or when the {@link #PROPERTY_STREAMING}
+ * property is set, the entries are read from their local headers in file
+ * order, without ever seeking backwards. The central directory is then not 
+ * used. The size of the data of an entry whose sizes are only stored in
+ * the data descriptor that follows it is not known, {@link #getDataSize()}
+ * then returns -1, and the end of the data is found while it is read. 
+ *
  * 
  * @author Carl Eric Codere
  * 
  */
 public class ZIPReaderImpl extends AbstractDocumentReader
 {
+  /**
+   * Property indicating how the position of the data of each entry is 
+   * located from its local file header, the value is an Integer containing
+   * one of the <code>RESOLVE_XXX</code> constants. The default value is
+   * {@link #RESOLVE_EACH}.
+   */
+  public static final String PROPERTY_HEADER_RESOLUTION = "http://optimasc.com/streams/properties/zip/header-resolution";
+  /** The local header of each entry is read when the entry is reached in the central directory */
+  public static final int RESOLVE_EACH = 0;
+  /** All the local headers are read in ascending order when the document is opened */
+  public static final int RESOLVE_SORTED = 1;
+  /** The local header of an entry is only read when its data is accessed */
+  public static final int RESOLVE_LAZY = 2;
+  /**
+   * Property indicating if the data of the entries that are stored or 
+   * compressed with deflate is returned uncompressed, the value is a Boolean.
+   * In that case, the size of the data is the uncompressed size. The 
+   * default value is false.
+   */
+  public static final String PROPERTY_INFLATE_DATA = "http://optimasc.com/streams/properties/zip/inflate-data";
+  /**
+   * Property indicating if the entries are read from their local headers 
+   * in file order, instead of from the central directory, the value is a 
+   * Boolean. This mode is always used when the input is not seekable. The 
+   * default value is false.
+   */
+  public static final String PROPERTY_STREAMING = "http://optimasc.com/streams/properties/zip/streaming";
+
   protected ZIPUtilities zipValidator;
   protected byte[] filenameBuffer = new byte[65535];
   protected byte[] extraFieldBuffer = new byte[65535];
   protected byte[] commentBuffer = new byte[65535];
   protected byte[] readBuffer = new byte[64];
-  protected long centralDirectoryEntryOffset;
+  /** The complete central directory */
+  protected byte[] directory;
+  /** Number of bytes of the central directory in directory */
+  protected int directoryLength;
+  /** Position of the next central directory entry in directory */
+  protected int directoryPosition;
+
+  /** Size of the fixed part of a central directory file header */
+  protected static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+  /** Size of the fixed part of the end of central directory record */
+  protected static final int CENTRAL_DIRECTORY_END_SIZE = 22;
+  /** Size of the ZIP64 end of central directory record */
+  protected static final int ZIP64_CENTRAL_DIRECTORY_END_SIZE = 56;
+  /** Size of the ZIP64 end of central directory locator */
+  protected static final int ZIP64_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+  /** Size of the fixed part of a local file header */
+  protected static final int LOCAL_HEADER_SIZE = 30;
+  /** Size of the blocks read when resolving the local headers in ascending order */
+  protected static final int RESOLVE_BLOCK_SIZE = 65536;
+
+  /** One of the RESOLVE_XXX constants */
+  protected int headerResolution = RESOLVE_EACH;
+  /** In RESOLVE_SORTED mode, the offsets of the local headers in ascending order */
+  protected long[] localHeaderOffsets;
+  /** In RESOLVE_SORTED mode, the offsets of the data for each entry of localHeaderOffsets */
+  protected long[] dataOffsets;
+  /** The offset of the local header of the current entry */
+  protected long localHeaderOffset;
+  /** In RESOLVE_LAZY mode, indicates that the data of the current entry has not been located */
+  protected boolean dataPending;
+  /** In RESOLVE_LAZY mode, number of bytes of data skipped before the data was located */
+  protected long pendingSkip;
+
+  /** Indicates if stored and deflated entries are returned uncompressed */
+  protected boolean inflateData;
+  /** Indicates that the data of the current entry is returned uncompressed */
+  protected boolean inflating;
+  /** The compression method of the current entry */
+  protected int entryCompression;
+  /** The CRC-32 of the current entry from the central directory */
+  protected long entryCrc;
+  /** The general purpose bit flags of the current entry */
+  protected int entryFlags;
+  /** The uncompressed size of the current entry */
+  protected long entrySize;
+  /** The DOS date of the current entry in the upper 16 bits, and its DOS time in the lower 16 bits */
+  protected int entryDateTime;
+  /** Number of bytes of compressed data of the current entry not yet read */
+  protected long compressedLeft;
+  /** Number of bytes of uncompressed data of the current entry not yet returned */
+  protected long inflatedLeft;
+  /** Inflater reused for all the entries, allocated on first use */
+  protected Inflater inflater;
+  /** CRC-32 of the uncompressed data returned for the current entry */
+  protected CRC32 inflatedCrc = new CRC32();
+  /** Buffer containing the compressed data given to the inflater */
+  protected byte[] inflateBuffer;
+  /** Indicates if the local headers are read even if the input is seekable */
+  protected boolean streamingRequested;
+  /** Indicates that the entries are read from their local headers, in file order */
+  protected boolean streaming;
+  /** In streaming mode, the offset just after the data of the current entry, or its data descriptor if it was read */
+  protected long nextEntryOffset;
+  /** In streaming mode, indicates that the data descriptor of the current entry has not been read */
+  protected boolean descriptorPending;
+  /** In streaming mode, indicates that the sizes in the data descriptor of the current entry are 8 bytes long */
+  protected boolean descriptorZip64;
+  /** In streaming mode, the uncompressed size of the data of unknown size read so far */
+  protected long scannedSize;
+  /** In streaming mode, the start of the stored data of unknown size read ahead in inflateBuffer */
+  protected int scanStart;
+  /** In streaming mode, the end of the stored data of unknown size read ahead in inflateBuffer */
+  protected int scanEnd;
   /** Local header entries */
   protected Hashtable entries;
 
@@ -57,73 +175,89 @@ public class ZIPReaderImpl extends AbstractDocumentReader
   protected void readChunkHeader(SeekableDataInputStream dataReader, ChunkInfo header)
       throws DocumentStreamException, IOException
   {
-
-    long dataLength;
-    int w;
+    int p;
     int compression;
-    long lw;
     long compressedSize;
     long crc32;
     int flags;
     int fileNameLength;
     int extraFieldLength;
     int commentLength;
+    int index;
     long relativeOffset;
     long uncompressedSize;
     int time, date;
     String encoding;
     String filename = null;
     String fileComment;
-    byte[] intBuffer = new byte[4];
 
     long id;
     header.reset();
-    reader.seek(centralDirectoryEntryOffset);
+    if (streaming)
+    {
+      readLocalChunkHeader(dataReader, header);
+      return;
+    }
+    p = directoryPosition;
+    if ((p + CENTRAL_DIRECTORY_HEADER_SIZE) > directoryLength)
+    {
+      errorHandler.fatalError(new DocumentStreamException(
+          DocumentStreamException.ERR_BLOCK_INVALID_HEADER));
+    }
     // Read the chunk identifier
-    id = dataReader.readUnsignedInt() & 0xFFFFFFFFL;
+    id = getIntLittle(directory, p) & 0xFFFFFFFFL;
     if (id != ZIPUtilities.MAGIC_CENTRAL_DIRECTORY_HEADER)
     {
       errorHandler.fatalError(new DocumentStreamException(
           DocumentStreamException.ERR_BLOCK_INVALID_ID));
     }
     
-        // Version made by
-    w = dataReader.readUnsignedShort();
-    // Version needed to extract 
-    w = dataReader.readUnsignedShort();
+    // Version made by at offset 4, version needed to extract at offset 6
     // General purpose bit flag 
-    flags = dataReader.readUnsignedShort();
+    flags = getShortLittle(directory, p + 8) & 0xFFFF;
     // Compression method
-    compression = dataReader.readUnsignedShort();
+    compression = getShortLittle(directory, p + 10) & 0xFFFF;
     // Last modification file time    
-    time = dataReader.readUnsignedShort();
+    time = getShortLittle(directory, p + 12) & 0xFFFF;
     // Last modification file date    
-    date = dataReader.readUnsignedShort();
+    date = getShortLittle(directory, p + 14) & 0xFFFF;
     // CRC-32 - read little endian and store in big endian
-    crc32 = dataReader.readUnsignedInt();
-
+    crc32 = getIntLittle(directory, p + 16) & 0xFFFFFFFFL;
     // compressed size
-    compressedSize = dataReader.readUnsignedInt();
+    compressedSize = getIntLittle(directory, p + 20) & 0xFFFFFFFFL;
     // uncompressed size
-    uncompressedSize = dataReader.readUnsignedInt();
+    uncompressedSize = getIntLittle(directory, p + 24) & 0xFFFFFFFFL;
     // filename length
-    fileNameLength = dataReader.readUnsignedShort();
+    fileNameLength = getShortLittle(directory, p + 28) & 0xFFFF;
     // extra field length
-    extraFieldLength = dataReader.readUnsignedShort();
+    extraFieldLength = getShortLittle(directory, p + 30) & 0xFFFF;
     // file comment length
-    commentLength = dataReader.readUnsignedShort();
-    // disk number start
-    w = dataReader.readUnsignedShort();
-    // internal attributes
-    w = dataReader.readUnsignedShort();
-    // external attributes
-    lw = dataReader.readUnsignedInt();
-    // external attributes
-    relativeOffset = dataReader.readUnsignedInt();
-
-    dataReader.read(filenameBuffer, 0, fileNameLength);
-    dataReader.read(extraFieldBuffer, 0, extraFieldLength);
-    dataReader.read(commentBuffer, 0, commentLength);
+    commentLength = getShortLittle(directory, p + 32) & 0xFFFF;
+    // disk number start, internal attributes and external attributes at offsets 34, 36 and 38 
+    // relative offset of local header
+    relativeOffset = getIntLittle(directory, p + 42) & 0xFFFFFFFFL;
+
+    p += CENTRAL_DIRECTORY_HEADER_SIZE;
+    if ((p + fileNameLength + extraFieldLength + commentLength) > directoryLength)
+    {
+      errorHandler.fatalError(new DocumentStreamException(
+          DocumentStreamException.ERR_BLOCK_INVALID_HEADER));
+    }
+    // The values that do not fit are stored in the ZIP64 extra field, in this order
+    index = 0;
+    if (uncompressedSize == ZIPUtilities.ZIP64_LIMIT)
+    {
+      uncompressedSize = getZip64Value(directory, p + fileNameLength, extraFieldLength, index++);
+    }
+    if (compressedSize == ZIPUtilities.ZIP64_LIMIT)
+    {
+      compressedSize = getZip64Value(directory, p + fileNameLength, extraFieldLength, index++);
+    }
+    if (relativeOffset == ZIPUtilities.ZIP64_LIMIT)
+    {
+      relativeOffset = getZip64Value(directory, p + fileNameLength, extraFieldLength, index++);
+    }
+    System.arraycopy(directory, p + fileNameLength, extraFieldBuffer, 0, extraFieldLength);
 
     encoding = "ISO-8859-1";
     /* PKWare supports native UTF-8 encoding */
@@ -133,12 +267,13 @@ public class ZIPReaderImpl extends AbstractDocumentReader
     }
     try
     {
-      filename = new String(filenameBuffer, 0, fileNameLength, encoding);
-      fileComment = new String(commentBuffer, 0, commentLength, encoding);
+      filename = new String(directory, p, fileNameLength, encoding);
+      fileComment = new String(directory, p + fileNameLength + extraFieldLength, commentLength, encoding);
     } catch (UnsupportedEncodingException e)
     {
       errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_IO));
     }
+    directoryPosition = p + fileNameLength + extraFieldLength + commentLength;
 
     /* Determine if we need to complete the local header or simply create a new complete entry. */
     ResourceChunkInfo extHeader = (ResourceChunkInfo) entries.get(filename);
@@ -146,39 +281,477 @@ public class ZIPReaderImpl extends AbstractDocumentReader
     {
       extHeader = new ResourceChunkInfo();
       extHeader.reset();
+      extHeader.id = filename;
+    }
+    switch (headerResolution)
+    {
+      case RESOLVE_SORTED:
+        extHeader.offset = getSortedDataOffset(relativeOffset);
+        break;
+      case RESOLVE_LAZY:
+        extHeader.offset = ChunkInfo.UNDEFINED_VALUE;
+        break;
+      default:
+        extHeader.offset = getFileDataOffset(relativeOffset);
+        break;
+    }
+    setEntry(header, extHeader, flags, compression, crc32, compressedSize, uncompressedSize,
+        date, time, extraFieldLength);
+    localHeaderOffset = relativeOffset;
+    if (headerResolution == RESOLVE_LAZY)
+    {
+      dataPending = true;
+      pendingSkip = 0;
+    } else
+    {
+      reader.seek(header.offset);
     }
 
+  }
+
+  /**
+   * Completes the information on an entry, whose identifier and offset are
+   * already set, copies it to the header, and prepares the decompression of
+   * its data when needed.
+   * 
+   * @param header The header of the chunk to fill.
+   * @param extHeader The information on the entry.
+   * @param extraFieldLength The length of the extra field in extraFieldBuffer.
+   */
+  protected void setEntry(ChunkInfo header, ResourceChunkInfo extHeader, int flags, int compression,
+      long crc32, long compressedSize, long uncompressedSize, int date, int time, int extraFieldLength)
+      throws DocumentStreamException
+  {
+    byte[] intBuffer = new byte[4];
     if ((flags & ZIPUtilities.ENCRYPTED_BIT) == ZIPUtilities.ENCRYPTED_BIT)
     {
       extHeader.setEncrypted(new Boolean(true));
     }
-    extHeader.offset = getFileDataOffset(relativeOffset);
     extHeader.size = compressedSize;
     extHeader.type = ChunkInfo.TYPE_CHUNK;
     extHeader.setSize(uncompressedSize);
     extHeader.setCompression(ZIPUtilities.compressionToString(compression));
     extHeader.setDigestType("CCITT CRC-32");
-    extHeader.setLastModifiedDate(DOSDate.DOSDateAndTimeToCalendar(date, time).getTime());
-    // Write the value in big endian
-    intBuffer[0] = (byte) ((crc32 >>> 24) & 0xFF);
-    intBuffer[1] = (byte) ((crc32 >>> 16) & 0xFF);
-    intBuffer[2] = (byte) ((crc32 >>> 8) & 0xFF);
-    intBuffer[3] = (byte) ((crc32 >>> 0) & 0xFF);
-    extHeader.setDigest(intBuffer);
-
-    if (extraFieldLength != 0)
+    /* Entries that will be skipped by the filter do not need to be decoded further */
+    if (isSkipped(extHeader.id, ChunkInfo.TYPE_CHUNK) == false)
     {
-      parseExtField(extraFieldBuffer, extraFieldLength, extHeader);
-    }
+      extHeader.setLastModifiedDate(DOSDate.DOSDateAndTimeToCalendar(date, time).getTime());
+      // The CRC-32 of data of unknown size is only known from its data descriptor
+      if (uncompressedSize != ChunkInfo.UNDEFINED_VALUE)
+      {
+        // Write the value in big endian
+        intBuffer[0] = (byte) ((crc32 >>> 24) & 0xFF);
+        intBuffer[1] = (byte) ((crc32 >>> 16) & 0xFF);
+        intBuffer[2] = (byte) ((crc32 >>> 8) & 0xFF);
+        intBuffer[3] = (byte) ((crc32 >>> 0) & 0xFF);
+        extHeader.setDigest(intBuffer);
+      }
 
-    centralDirectoryEntryOffset = reader.getStreamPosition();
-    reader.seek(header.offset);
+      if (extraFieldLength != 0)
+      {
+        parseExtField(extraFieldBuffer, extraFieldLength, extHeader);
+      }
+    }
 
     /* Convert the data to attributes */
     extHeader.addStandardAttributes();
     /* Copy the data to the actual header. */
     header.copy(extHeader);
+    entryCompression = compression;
+    entryCrc = crc32;
+    entryFlags = flags;
+    entrySize = uncompressedSize;
+    entryDateTime = (date << 16) | time;
+    inflating = inflateData && ((flags & ZIPUtilities.ENCRYPTED_BIT) == 0) &&
+        ((compression == ZIPUtilities.COMPRESSION_NONE) || (compression == ZIPUtilities.COMPRESSION_DEFLATE));
+    if (inflating)
+    {
+      // The size of the data is the uncompressed size
+      header.size = uncompressedSize;
+      compressedLeft = compressedSize;
+      inflatedLeft = uncompressedSize;
+      inflatedCrc.reset();
+      if (compression == ZIPUtilities.COMPRESSION_DEFLATE)
+      {
+        if (inflater == null)
+          inflater = new Inflater(true);
+        else
+          inflater.reset();
+      }
+    }
+  }
+
+  /**
+   * In streaming mode, reads the local header of the next entry, the 
+   * stream is then positioned at the start of its data. When the sizes 
+   * are only stored in the data descriptor, the size of the data is set
+   * to ChunkInfo.UNDEFINED_VALUE, and the data is read by 
+   * {@link #readUnsized(byte[], int, int)}.
+   */
+  protected void readLocalChunkHeader(SeekableDataInputStream dataReader, ChunkInfo header)
+      throws DocumentStreamException, IOException
+  {
+    int compression;
+    long compressedSize;
+    long crc32;
+    int flags;
+    int fileNameLength;
+    int extraFieldLength;
+    long uncompressedSize;
+    long offset;
+    long dataOffset;
+    int time, date;
+    String encoding;
+    String filename = null;
 
+    offset = nextEntryOffset;
+    reader.seek(offset);
+    reader.readFully(readBuffer, 0, LOCAL_HEADER_SIZE);
+    if (getIntLittle(readBuffer, 0) != ZIPUtilities.MAGIC_LOCAL_HEADER)
+    {
+      errorHandler.fatalError(new DocumentStreamException(
+          DocumentStreamException.ERR_BLOCK_INVALID_ID));
+    }
+    // Version needed to extract at offset 4
+    flags = getShortLittle(readBuffer, 6) & 0xFFFF;
+    compression = getShortLittle(readBuffer, 8) & 0xFFFF;
+    time = getShortLittle(readBuffer, 10) & 0xFFFF;
+    date = getShortLittle(readBuffer, 12) & 0xFFFF;
+    crc32 = getIntLittle(readBuffer, 14) & 0xFFFFFFFFL;
+    compressedSize = getIntLittle(readBuffer, 18) & 0xFFFFFFFFL;
+    uncompressedSize = getIntLittle(readBuffer, 22) & 0xFFFFFFFFL;
+    fileNameLength = getShortLittle(readBuffer, 26) & 0xFFFF;
+    extraFieldLength = getShortLittle(readBuffer, 28) & 0xFFFF;
+    reader.readFully(filenameBuffer, 0, fileNameLength);
+    reader.readFully(extraFieldBuffer, 0, extraFieldLength);
+    dataOffset = reader.getStreamPosition();
+
+    // The local header contains both sizes in the ZIP64 extra field, the data descriptor then has 8 byte sizes
+    descriptorZip64 = findTag(ZIPUtilities.CHUNK_ZIP64, extraFieldBuffer, 0, extraFieldLength) != -1;
+    if (uncompressedSize == ZIPUtilities.ZIP64_LIMIT)
+    {
+      uncompressedSize = getZip64Value(extraFieldBuffer, 0, extraFieldLength, 0);
+    }
+    if (compressedSize == ZIPUtilities.ZIP64_LIMIT)
+    {
+      compressedSize = getZip64Value(extraFieldBuffer, 0, extraFieldLength, 1);
+    }
+
+    encoding = "ISO-8859-1";
+    /* PKWare supports native UTF-8 encoding */
+    if ((flags & ZIPUtilities.UTF8_ENCODING_BIT) == ZIPUtilities.UTF8_ENCODING_BIT)
+    {
+      encoding = "UTF-8";
+    }
+    try
+    {
+      filename = new String(filenameBuffer, 0, fileNameLength, encoding);
+    } catch (UnsupportedEncodingException e)
+    {
+      errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_IO));
+    }
+
+    descriptorPending = false;
+    nextEntryOffset = dataOffset + compressedSize;
+    if ((flags & ZIPUtilities.DATA_DESCRIPTOR_BIT) == ZIPUtilities.DATA_DESCRIPTOR_BIT)
+    {
+      if (compressedSize != 0)
+      {
+        // The sizes are known, the descriptor is skipped with the data
+        descriptorPending = true;
+      } else
+      {
+        // The sizes and the CRC-32 are only known from the data descriptor, read at the end of the data
+        if ((compression != ZIPUtilities.COMPRESSION_DEFLATE) && (compression != ZIPUtilities.COMPRESSION_NONE))
+        {
+          errorHandler.fatalError(new DocumentStreamException(
+              DocumentStreamException.ERR_BLOCK_INVALID_SIZE, filename));
+        }
+        compressedSize = ChunkInfo.UNDEFINED_VALUE;
+        uncompressedSize = ChunkInfo.UNDEFINED_VALUE;
+        scannedSize = 0;
+        scanStart = 0;
+        scanEnd = 0;
+      }
+    }
+
+    ResourceChunkInfo extHeader = new ResourceChunkInfo();
+    extHeader.reset();
+    extHeader.id = filename;
+    extHeader.offset = dataOffset;
+    setEntry(header, extHeader, flags, compression, crc32, compressedSize, uncompressedSize,
+        date, time, extraFieldLength);
+    if ((compressedSize == ChunkInfo.UNDEFINED_VALUE) && (compression == ZIPUtilities.COMPRESSION_DEFLATE))
+    {
+      // The end of deflated data is found by decompressing it, even if it is returned compressed
+      if (inflater == null)
+        inflater = new Inflater(true);
+      else
+        inflater.reset();
+    }
+    localHeaderOffset = offset;
+    dataPending = false;
+  }
+
+  /**
+   * Reads the data descriptor located at the current position, and copies
+   * its CRC-32 at offset 0 of readBuffer, followed by the compressed and
+   * uncompressed sizes.
+   * 
+   * @return The length of the data descriptor.
+   */
+  protected int readDataDescriptor() throws IOException
+  {
+    int length = 0;
+    int sizeLength = descriptorZip64 ? 8 : 4;
+    // The signature of the data descriptor is optional
+    reader.readFully(readBuffer, 0, 4);
+    if (getIntLittle(readBuffer, 0) == ZIPUtilities.MAGIC_DATA_DESCRIPTOR)
+    {
+      reader.readFully(readBuffer, 0, 4);
+      length = 4;
+    }
+    reader.readFully(readBuffer, 4, sizeLength * 2);
+    return length + 4 + (sizeLength * 2);
+  }
+
+  /**
+   * Returns a size of the data descriptor read by {@link #readDataDescriptor()}.
+   * 
+   * @param index 0 for the compressed size, 1 for the uncompressed size.
+   */
+  protected long getDescriptorSize(int index)
+  {
+    if (descriptorZip64)
+      return getLongLittle(readBuffer, 4 + (index * 8));
+    return getIntLittle(readBuffer, 4 + (index * 4)) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Reads the next bytes of the data of an entry whose sizes are only 
+   * stored in the data descriptor that follows it. The end of deflated data
+   * is indicated by the deflate stream, and the end of stored data by a data
+   * descriptor signature followed by sizes equal to the size of the data 
+   * read so far. The data descriptor is read and verified once the end of 
+   * the data has been reached.
+   */
+  protected int readUnsized(byte[] target, int targetOffset, int length)
+      throws DocumentStreamException, IOException
+  {
+    int count;
+    long compressedSize;
+    if (inflateBuffer == null)
+      inflateBuffer = new byte[8192];
+    if (entryCompression == ZIPUtilities.COMPRESSION_NONE)
+    {
+      count = readStoredUnsized(target, targetOffset, length);
+      scannedSize += count;
+    } else
+    {
+      count = readDeflatedUnsized(target, targetOffset, length);
+    }
+    if (inflating)
+    {
+      inflatedCrc.update(target, targetOffset, count);
+    }
+    if (count < length)
+    {
+      if (entryCompression == ZIPUtilities.COMPRESSION_NONE)
+      {
+        // The data descriptor was already read to find the end of the data
+        compressedSize = scannedSize;
+      } else
+      {
+        compressedSize = reader.getStreamPosition() - currentChunk.offset;
+        // Without ZIP64 extra field, the sizes take 8 bytes only if they do not fit in 32 bits
+        if ((compressedSize >= ZIPUtilities.ZIP64_LIMIT) || (scannedSize >= ZIPUtilities.ZIP64_LIMIT))
+          descriptorZip64 = true;
+        nextEntryOffset = reader.getStreamPosition() + readDataDescriptor();
+      }
+      entryCrc = getIntLittle(readBuffer, 0) & 0xFFFFFFFFL;
+      if ((getDescriptorSize(0) != compressedSize) || (getDescriptorSize(1) != scannedSize))
+      {
+        errorHandler.fatalError(new DocumentStreamException(
+            DocumentStreamException.ERR_CORRUPT_STREAM, currentChunk.id.toString()));
+      }
+      if (inflating && (inflatedCrc.getValue() != entryCrc))
+      {
+        errorHandler.error(new DocumentStreamException(
+            DocumentStreamException.ERR_CORRUPT_STREAM, currentChunk.id.toString()));
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Reads the next bytes of deflated data of unknown size, either 
+   * uncompressed or as is. Once the end of the deflate stream has been
+   * reached, the stream is positioned just after the compressed data.
+   */
+  protected int readDeflatedUnsized(byte[] target, int targetOffset, int length)
+      throws DocumentStreamException, IOException
+  {
+    int count = 0;
+    int blockLength;
+    try
+    {
+      while ((count < length) && (inflater.finished() == false))
+      {
+        if (inflating)
+        {
+          if (inflater.needsInput())
+          {
+            blockLength = reader.read(inflateBuffer, 0, inflateBuffer.length);
+            if (blockLength < 0)
+            {
+              errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_END_OF_STREAM));
+            }
+            inflater.setInput(inflateBuffer, 0, blockLength);
+          }
+          blockLength = inflater.inflate(target, targetOffset + count, length - count);
+          count += blockLength;
+          scannedSize += blockLength;
+        } else
+        {
+          // The compressed data is returned, it is only decompressed to find its end
+          blockLength = reader.read(target, targetOffset + count, length - count);
+          if (blockLength < 0)
+          {
+            errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_END_OF_STREAM));
+          }
+          inflater.setInput(target, targetOffset + count, blockLength);
+          count += blockLength;
+          do
+          {
+            blockLength = inflater.inflate(inflateBuffer, 0, inflateBuffer.length);
+            scannedSize += blockLength;
+          } while (blockLength != 0);
+          if (inflater.finished())
+            count -= inflater.getRemaining();
+        }
+        if ((blockLength == 0) && inflater.needsDictionary())
+        {
+          errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_CORRUPT_STREAM, currentChunk.id.toString()));
+        }
+        if (inflater.finished())
+        {
+          // The data read after the end of the deflate stream belongs to the data descriptor
+          reader.seek(reader.getStreamPosition() - inflater.getRemaining());
+        }
+      }
+    } catch (DataFormatException e)
+    {
+      errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_CORRUPT_STREAM, e));
+    }
+    return count;
+  }
+
+  /**
+   * Reads the next bytes of stored data of unknown size. The data is read
+   * ahead in inflateBuffer, so that a complete data descriptor can be 
+   * verified at each position without seeking backwards. Once the data
+   * descriptor has been found, it is copied at offset 0 of readBuffer as
+   * done by {@link #readDataDescriptor()}, and the stream is positioned 
+   * just after it.
+   */
+  protected int readStoredUnsized(byte[] target, int targetOffset, int length)
+      throws DocumentStreamException, IOException
+  {
+    int count = 0;
+    int index;
+    int end;
+    int descriptorLength;
+    long size;
+    while (count < length)
+    {
+      size = scannedSize + count;
+      // Enough data must be read ahead for the longest data descriptor that can follow
+      descriptorLength = getDescriptorLength(size + scanEnd - scanStart);
+      if ((scanEnd - scanStart) < descriptorLength)
+      {
+        // Keep the data read ahead at the start of the buffer, and read more
+        System.arraycopy(inflateBuffer, scanStart, inflateBuffer, 0, scanEnd - scanStart);
+        scanEnd -= scanStart;
+        scanStart = 0;
+        index = reader.read(inflateBuffer, scanEnd, inflateBuffer.length - scanEnd);
+        if (index < 0)
+        {
+          errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_END_OF_STREAM));
+          break;
+        }
+        scanEnd += index;
+        continue;
+      }
+      end = scanStart + Math.min(length - count, scanEnd - scanStart - descriptorLength + 1);
+      index = scanStart;
+      while ((index < end) && (isDataDescriptor(index, size + index - scanStart) == false))
+      {
+        index++;
+      }
+      System.arraycopy(inflateBuffer, scanStart, target, targetOffset + count, index - scanStart);
+      count += index - scanStart;
+      scanStart = index;
+      if (index < end)
+      {
+        descriptorLength = getDescriptorLength(size + count);
+        descriptorZip64 = descriptorLength == 24;
+        System.arraycopy(inflateBuffer, index + 4, readBuffer, 0, descriptorLength - 4);
+        nextEntryOffset = currentChunk.offset + scannedSize + count + descriptorLength;
+        reader.seek(nextEntryOffset);
+        break;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the length of the data descriptor with a signature that follows
+   * stored data of the specified size.
+   */
+  protected int getDescriptorLength(long size)
+  {
+    // Without ZIP64 extra field, the sizes take 8 bytes only if they do not fit in 32 bits
+    if (descriptorZip64 || (size >= ZIPUtilities.ZIP64_LIMIT))
+      return 24;
+    return 16;
+  }
+
+  /**
+   * Verifies if a data descriptor with a signature and the specified sizes
+   * is located at an index of inflateBuffer.
+   */
+  protected boolean isDataDescriptor(int index, long size)
+  {
+    if (getIntLittle(inflateBuffer, index) != ZIPUtilities.MAGIC_DATA_DESCRIPTOR)
+      return false;
+    if (getDescriptorLength(size) == 24)
+      return (getLongLittle(inflateBuffer, index + 8) == size) && (getLongLittle(inflateBuffer, index + 16) == size);
+    return ((getIntLittle(inflateBuffer, index + 8) & 0xFFFFFFFFL) == size) &&
+        ((getIntLittle(inflateBuffer, index + 12) & 0xFFFFFFFFL) == size);
+  }
+
+  /**
+   * In streaming mode, skips the data descriptor of the current entry if
+   * needed, and verifies if it is followed by another entry.
+   */
+  protected boolean isStreamEnd() throws DocumentStreamException, IOException
+  {
+    try
+    {
+      reader.seek(nextEntryOffset);
+      if (descriptorPending)
+      {
+        descriptorPending = false;
+        nextEntryOffset += readDataDescriptor();
+      }
+      reader.readFully(readBuffer, 0, 4);
+    } catch (EOFException e)
+    {
+      return true;
+    }
+    // The central directory or the archive extra data record follow the last entry
+    reader.seek(nextEntryOffset);
+    return getIntLittle(readBuffer, 0) != ZIPUtilities.MAGIC_LOCAL_HEADER;
   }
 
   /* From an offset to the local file header, return the absolute offset into
@@ -187,69 +760,414 @@ public class ZIPReaderImpl extends AbstractDocumentReader
    */
   protected long getFileDataOffset(long localHeaderOffset) throws DocumentStreamException, IOException
   {
-    long dataLength;
-    int w;
-    long lw;
-    long compressedSize;
-    int flags;
-    int fileNameLength;
-    int extraFieldLength;
-    long id;
     long offset;
     long pos;
 
     pos = reader.getStreamPosition();
     reader.seek(localHeaderOffset);
+    reader.readFully(readBuffer, 0, LOCAL_HEADER_SIZE);
+    offset = getFileDataOffset(readBuffer, 0, localHeaderOffset);
+    reader.seek(pos);
+    return offset;
+  }
 
-    // Read the chunk identifier
-    id = reader.readUnsignedInt();
-    if (id != ZIPUtilities.MAGIC_LOCAL_HEADER)
+  /**
+   * Returns the absolute offset of the file data from a local file header
+   * that has already been read.
+   * 
+   * @param buffer The buffer containing the fixed part of the local file header.
+   * @param p The offset of the local file header in the buffer.
+   * @param localHeaderOffset The offset of the local file header in the file.
+   * @return The offset of the data in the file.
+   */
+  protected long getFileDataOffset(byte[] buffer, int p, long localHeaderOffset) throws DocumentStreamException
+  {
+    int fileNameLength;
+    int extraFieldLength;
+
+    if (getIntLittle(buffer, p) != ZIPUtilities.MAGIC_LOCAL_HEADER)
     {
       errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_IO));
     }
-
-    // Read the entire values to retrieve the name of the file
-
-    // Version
-    w = reader.readUnsignedShort();
-    // General purpose bit flag 
-    flags = reader.readUnsignedShort();
-    // Compression method
-    w = reader.readUnsignedShort();
-    // Last modification file time    
-    w = reader.readUnsignedShort();
-    // Last modification file date    
-    w = reader.readUnsignedShort();
-    // CRC-32
-    lw = reader.readUnsignedInt();
-    // compressed size
-    compressedSize = reader.readUnsignedInt();
-    // uncompressed size
-    lw = reader.readUnsignedInt();
     // filename length
-    fileNameLength = reader.readUnsignedShort();
+    fileNameLength = getShortLittle(buffer, p + 26) & 0xFFFF;
     // extra field length
-    extraFieldLength = reader.readUnsignedShort();
+    extraFieldLength = getShortLittle(buffer, p + 28) & 0xFFFF;
+    // The data descriptor, if present, is located after the data
+    return localHeaderOffset + LOCAL_HEADER_SIZE + fileNameLength + extraFieldLength;
+  }
 
-    offset = reader.getStreamPosition() + fileNameLength + extraFieldLength;
+  /**
+   * Returns a value stored in the ZIP64 extended information extra field.
+   * 
+   * @param buffer The buffer containing the extra field data.
+   * @param off The offset of the extra field data in the buffer.
+   * @param len The length of the extra field data.
+   * @param index The index of the 64-bit value to return, only the values 
+   *   that do not fit in the header are present in the field.
+   * @return The value.
+   */
+  protected long getZip64Value(byte[] buffer, int off, int len, int index) throws DocumentStreamException
+  {
+    int offset = findTag(ZIPUtilities.CHUNK_ZIP64, buffer, off, off + len);
+    if ((offset == -1) || ((getShortLittle(buffer, offset) & 0xFFFF) < ((index + 1) * 8)) ||
+        ((offset + 2 + ((index + 1) * 8)) > (off + len)))
+    {
+      errorHandler.fatalError(new DocumentStreamException(
+          DocumentStreamException.ERR_BLOCK_INVALID_HEADER));
+    }
+    return getLongLittle(buffer, offset + 2 + (index * 8));
+  }
 
-    if ((flags & ZIPUtilities.DATA_DESCRIPTOR_BIT) == ZIPUtilities.DATA_DESCRIPTOR_BIT)
+  /**
+   * Returns the offset of the local header of the central directory entry
+   * located at the specified position in the directory.
+   */
+  protected long getLocalHeaderOffset(int p) throws DocumentStreamException
+  {
+    int index = 0;
+    long offset = getIntLittle(directory, p + 42) & 0xFFFFFFFFL;
+    if (offset == ZIPUtilities.ZIP64_LIMIT)
     {
-      // DATA descriptor signature is optional.
-      id = reader.readUnsignedInt();
-      if (id != ZIPUtilities.MAGIC_DATA_DESCRIPTOR)
-      {
-        offset += 8;
-      } else
+      // The uncompressed and compressed sizes precede the offset in the ZIP64 extra field
+      if ((getIntLittle(directory, p + 24) & 0xFFFFFFFFL) == ZIPUtilities.ZIP64_LIMIT)
+        index++;
+      if ((getIntLittle(directory, p + 20) & 0xFFFFFFFFL) == ZIPUtilities.ZIP64_LIMIT)
+        index++;
+      offset = getZip64Value(directory, p + CENTRAL_DIRECTORY_HEADER_SIZE + (getShortLittle(directory, p + 28) & 0xFFFF),
+          getShortLittle(directory, p + 30) & 0xFFFF, index);
+    }
+    return offset;
+  }
+
+  /**
+   * Reads the local headers of all the entries of the central directory in 
+   * ascending order of offset, so that the file is read forward only, and 
+   * headers located in the same block are read at once.
+   */
+  protected void resolveLocalHeaders(SeekableDataInputStream dataReader) throws DocumentStreamException, IOException
+  {
+    long length = dataReader.length();
+    byte[] block = new byte[RESOLVE_BLOCK_SIZE];
+    long blockStart = 0;
+    int blockLength = 0;
+    long offset;
+    int count = 0;
+    int p = 0;
+    int i;
+
+    // Count the entries of the directory
+    while (((p + CENTRAL_DIRECTORY_HEADER_SIZE) <= directoryLength) &&
+        (getIntLittle(directory, p) == ZIPUtilities.MAGIC_CENTRAL_DIRECTORY_HEADER))
+    {
+      p += CENTRAL_DIRECTORY_HEADER_SIZE + (getShortLittle(directory, p + 28) & 0xFFFF) +
+          (getShortLittle(directory, p + 30) & 0xFFFF) + (getShortLittle(directory, p + 32) & 0xFFFF);
+      count++;
+    }
+    localHeaderOffsets = new long[count];
+    dataOffsets = new long[count];
+    p = 0;
+    for (i = 0; i < count; i++)
+    {
+      localHeaderOffsets[i] = getLocalHeaderOffset(p);
+      p += CENTRAL_DIRECTORY_HEADER_SIZE + (getShortLittle(directory, p + 28) & 0xFFFF) +
+          (getShortLittle(directory, p + 30) & 0xFFFF) + (getShortLittle(directory, p + 32) & 0xFFFF);
+    }
+    Arrays.sort(localHeaderOffsets);
+    for (i = 0; i < count; i++)
+    {
+      offset = localHeaderOffsets[i];
+      if ((offset + LOCAL_HEADER_SIZE) > (blockStart + blockLength))
       {
-        offset += 12;
+        if ((offset + LOCAL_HEADER_SIZE) > length)
+        {
+          errorHandler.fatalError(new DocumentStreamException(
+              DocumentStreamException.ERR_BLOCK_INVALID_HEADER));
+        }
+        blockStart = offset;
+        blockLength = (int) Math.min(block.length, length - offset);
+        dataReader.seek(blockStart);
+        dataReader.readFully(block, 0, blockLength);
       }
+      dataOffsets[i] = getFileDataOffset(block, (int) (offset - blockStart), offset);
     }
+  }
 
-    reader.seek(pos);
+  /**
+   * Returns the offset of the data from the local headers read by
+   * {@link #resolveLocalHeaders(SeekableDataInputStream)}.
+   */
+  protected long getSortedDataOffset(long localHeaderOffset) throws DocumentStreamException, IOException
+  {
+    int index = Arrays.binarySearch(localHeaderOffsets, localHeaderOffset);
+    if (index < 0)
+      return getFileDataOffset(localHeaderOffset);
+    return dataOffsets[index];
+  }
+
+  /**
+   * In RESOLVE_LAZY mode, reads the local header of the current entry if
+   * this has not been done yet, and positions the stream in its data.
+   */
+  protected void locateData() throws DocumentStreamException, IOException
+  {
+    if (dataPending == false)
+      return;
+    dataPending = false;
+    currentChunk.offset = getFileDataOffset(localHeaderOffset);
+    reader.seek(currentChunk.offset + pendingSkip);
+  }
+
+  public long getDataOffset()
+  {
+    long offset = super.getDataOffset();
+    if (dataPending)
+    {
+      try
+      {
+        locateData();
+      } catch (IOException e)
+      {
+        return offset;
+      } catch (DocumentStreamException e)
+      {
+        return offset;
+      }
+      offset = currentChunk.offset;
+    }
     return offset;
   }
 
+  protected void skipData(long size) throws DocumentStreamException, IOException
+  {
+    if (inflating)
+    {
+      // The remaining data of the entry is not needed, it is not decompressed
+      if (size >= inflatedLeft)
+      {
+        inflatedLeft = 0;
+        return;
+      }
+      if (transferBuffer == null)
+        transferBuffer = new byte[8192];
+      while (size > 0)
+      {
+        int blockLength = (int) Math.min(size, transferBuffer.length);
+        read(transferBuffer, 0, blockLength);
+        size -= blockLength;
+      }
+      return;
+    }
+    // The data of the entry will not need to be located if it is never read
+    if (dataPending)
+    {
+      pendingSkip += size;
+      return;
+    }
+    super.skipData(size);
+  }
+
+  protected void read(byte[] target, int targetOffset, int length) throws DocumentStreamException
+  {
+    try
+    {
+      locateData();
+    } catch (IOException e)
+    {
+      errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_IO, e));
+    }
+    if (inflating)
+    {
+      readInflated(target, targetOffset, length);
+      return;
+    }
+    super.read(target, targetOffset, length);
+  }
+
+  protected void read(ByteBuffer target, int length) throws DocumentStreamException, IOException
+  {
+    locateData();
+    super.read(target, length);
+  }
+
+  /**
+   * Reads the uncompressed data of the current entry, and verifies the 
+   * CRC-32 once all the data has been read. The deflated data must end
+   * with the last uncompressed byte, and must use all the compressed data.
+   */
+  protected void readInflated(byte[] target, int targetOffset, int length) throws DocumentStreamException
+  {
+    int count = 0;
+    int blockLength;
+    if (length > inflatedLeft)
+    {
+      errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_END_OF_STREAM));
+    }
+    if (entryCompression == ZIPUtilities.COMPRESSION_NONE)
+    {
+      super.read(target, targetOffset, length);
+    } else
+    {
+      if (inflateBuffer == null)
+        inflateBuffer = new byte[8192];
+      try
+      {
+        while (count < length)
+        {
+          if (inflater.needsInput())
+          {
+            fillInflater();
+          }
+          blockLength = inflater.inflate(target, targetOffset + count, length - count);
+          if ((blockLength == 0) && (inflater.finished() || inflater.needsDictionary()))
+          {
+            errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_CORRUPT_STREAM, currentChunk.id.toString()));
+          }
+          count += blockLength;
+        }
+        if (length == inflatedLeft)
+        {
+          // The end of the deflated data may follow the last uncompressed byte
+          while (inflater.finished() == false)
+          {
+            if (inflater.needsInput())
+            {
+              fillInflater();
+            }
+            if ((inflater.inflate(readBuffer, 0, 1) != 0) || inflater.needsDictionary())
+            {
+              errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_CORRUPT_STREAM, currentChunk.id.toString()));
+            }
+          }
+          if ((inflater.getRemaining() != 0) || (compressedLeft != 0))
+          {
+            errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_CORRUPT_STREAM, currentChunk.id.toString()));
+          }
+        }
+      } catch (DataFormatException e)
+      {
+        errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_CORRUPT_STREAM, e));
+      }
+    }
+    inflatedCrc.update(target, targetOffset, length);
+    inflatedLeft -= length;
+    if ((inflatedLeft == 0) && (inflatedCrc.getValue() != entryCrc))
+    {
+      errorHandler.error(new DocumentStreamException(DocumentStreamException.ERR_CORRUPT_STREAM, currentChunk.id.toString()));
+    }
+  }
+
+  /**
+   * Gives the next block of compressed data of the current entry to the 
+   * inflater.
+   */
+  protected void fillInflater() throws DocumentStreamException
+  {
+    int blockLength;
+    if (compressedLeft <= 0)
+    {
+      errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_CORRUPT_STREAM, currentChunk.id.toString()));
+    }
+    blockLength = (int) Math.min(compressedLeft, inflateBuffer.length);
+    super.read(inflateBuffer, 0, blockLength);
+    compressedLeft -= blockLength;
+    inflater.setInput(inflateBuffer, 0, blockLength);
+  }
+
+  protected boolean isDataSliceable()
+  {
+    // The uncompressed data is not present in the input
+    return (inflating == false) && super.isDataSliceable();
+  }
+
+  protected ByteBuffer sliceData(int length) throws DocumentStreamException, IOException
+  {
+    if (inflating)
+    {
+      throw new UnsupportedOperationException("The uncompressed data is not present in the input.");
+    }
+    locateData();
+    return super.sliceData(length);
+  }
+
+  protected long transfer(WritableByteChannel target, long length) throws DocumentStreamException, IOException
+  {
+    int blockLength;
+    long count = length;
+    locateData();
+    if (inflating)
+    {
+      // The uncompressed data cannot be read again, so it is completely written
+      if (transferBuffer == null)
+        transferBuffer = new byte[8192];
+      ByteBuffer buffer = ByteBuffer.wrap(transferBuffer);
+      while (length > 0)
+      {
+        blockLength = (int) Math.min(length, transferBuffer.length);
+        read(transferBuffer, 0, blockLength);
+        buffer.clear();
+        buffer.limit(blockLength);
+        while (buffer.hasRemaining())
+        {
+          target.write(buffer);
+        }
+        length -= blockLength;
+      }
+      return count;
+    }
+    return super.transfer(target, length);
+  }
+
+  public void close() throws DocumentStreamException
+  {
+    if (inflater != null)
+    {
+      inflater.end();
+      inflater = null;
+    }
+    super.close();
+  }
+
+  public Object getProperty(String name) throws IllegalArgumentException
+  {
+    if (PROPERTY_HEADER_RESOLUTION.equals(name))
+      return new Integer(headerResolution);
+    if (PROPERTY_INFLATE_DATA.equals(name))
+      return new Boolean(inflateData);
+    if (PROPERTY_STREAMING.equals(name))
+      return new Boolean(streamingRequested);
+    return super.getProperty(name);
+  }
+
+  public void setProperty(String name, Object value) throws IllegalArgumentException
+  {
+    if (PROPERTY_HEADER_RESOLUTION.equals(name))
+    {
+      if ((value instanceof Integer) == false)
+        throw new IllegalArgumentException("Property value must be an Integer.");
+      int mode = ((Integer) value).intValue();
+      if ((mode != RESOLVE_EACH) && (mode != RESOLVE_SORTED) && (mode != RESOLVE_LAZY))
+        throw new IllegalArgumentException("Invalid header resolution mode.");
+      headerResolution = mode;
+      return;
+    }
+    if (PROPERTY_INFLATE_DATA.equals(name))
+    {
+      if ((value instanceof Boolean) == false)
+        throw new IllegalArgumentException("Property value must be a Boolean.");
+      inflateData = ((Boolean) value).booleanValue();
+      return;
+    }
+    if (PROPERTY_STREAMING.equals(name))
+    {
+      if ((value instanceof Boolean) == false)
+        throw new IllegalArgumentException("Property value must be a Boolean.");
+      streamingRequested = ((Boolean) value).booleanValue();
+      return;
+    }
+    super.setProperty(name, value);
+  }
+
   /**
    * Parse the actual extra data fields, and fill up the ResourceChunkInfo
    * attributes accordingly.
@@ -479,6 +1397,11 @@ public class ZIPReaderImpl extends AbstractDocumentReader
 
     reader.read(filenameBuffer, 0, fileNameLength);
     reader.read(extraFieldBuffer, 0, extraFieldLength);
+    // The local header contains both sizes in the ZIP64 extra field
+    if (compressedSize == ZIPUtilities.ZIP64_LIMIT)
+    {
+      compressedSize = getZip64Value(extraFieldBuffer, 0, extraFieldLength, 1);
+    }
 
     encoding = "ISO-8859-1";
     /* PKWare supports native UTF-8 encoding */
@@ -521,6 +1444,92 @@ public class ZIPReaderImpl extends AbstractDocumentReader
     return true;
   }
 
+  /**
+   * Locates the central directory using the end of central directory record,
+   * which is searched backwards from the end of the file, and reads the 
+   * complete central directory.
+   * 
+   * @return true if the central directory has been read, false if the 
+   *   record was not found or is invalid.
+   */
+  protected boolean locateCentralDirectory(SeekableDataInputStream dataReader) throws DocumentStreamException, IOException
+  {
+    long length = dataReader.length();
+    long directoryOffset;
+    long directorySize;
+    long recordOffset;
+    long zip64RecordOffset;
+    int tailLength;
+    byte[] tail;
+    int i;
+    // The length of the stream is not known in streaming mode
+    if ((getLookAheadLimit() != Long.MAX_VALUE) || (length < CENTRAL_DIRECTORY_END_SIZE))
+      return false;
+    // The record is at the end of the file, only followed by a comment of at most 65535 bytes
+    tailLength = (int) Math.min(length, CENTRAL_DIRECTORY_END_SIZE + 65535);
+    tail = new byte[tailLength];
+    dataReader.seek(length - tailLength);
+    dataReader.readFully(tail, 0, tailLength);
+    for (i = tailLength - CENTRAL_DIRECTORY_END_SIZE; i >= 0; i--)
+    {
+      if ((getIntLittle(tail, i) == ZIPUtilities.MAGIC_CENTRAL_DIRECTORY_END) &&
+          ((i + CENTRAL_DIRECTORY_END_SIZE + (getShortLittle(tail, i + 20) & 0xFFFF)) <= tailLength))
+      {
+        directorySize = getIntLittle(tail, i + 12) & 0xFFFFFFFFL;
+        directoryOffset = getIntLittle(tail, i + 16) & 0xFFFFFFFFL;
+        recordOffset = length - tailLength + i;
+        // A ZIP64 archive has a locator to the ZIP64 record just before this record
+        if ((i >= ZIP64_CENTRAL_DIRECTORY_LOCATOR_SIZE) &&
+            (getIntLittle(tail, i - ZIP64_CENTRAL_DIRECTORY_LOCATOR_SIZE) == ZIPUtilities.MAGIC_ZIP64_CENTRAL_DIRECTORY_LOCATOR))
+        {
+          zip64RecordOffset = getLongLittle(tail, i - ZIP64_CENTRAL_DIRECTORY_LOCATOR_SIZE + 8);
+          if ((zip64RecordOffset < 0) || 
+              ((zip64RecordOffset + ZIP64_CENTRAL_DIRECTORY_END_SIZE) > (recordOffset - ZIP64_CENTRAL_DIRECTORY_LOCATOR_SIZE)))
+            return false;
+          dataReader.seek(zip64RecordOffset);
+          dataReader.readFully(readBuffer, 0, ZIP64_CENTRAL_DIRECTORY_END_SIZE);
+          if (getIntLittle(readBuffer, 0) != ZIPUtilities.MAGIC_ZIP64_CENTRAL_DIRECTORY_END)
+            return false;
+          directorySize = getLongLittle(readBuffer, 40);
+          directoryOffset = getLongLittle(readBuffer, 48);
+          recordOffset = zip64RecordOffset;
+        }
+        // The directory must be located before this record
+        if ((directoryOffset < 0) || (directorySize < 0) || ((directoryOffset + directorySize) > recordOffset))
+          return false;
+        return readCentralDirectory(dataReader, directoryOffset, directorySize);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the central directory in memory with a single read.
+   * 
+   * @param offset The offset of the central directory in the file.
+   * @param size The size of the central directory.
+   * @return true if the data starts with a central directory entry or if 
+   *   the directory is empty.
+   */
+  protected boolean readCentralDirectory(SeekableDataInputStream dataReader, long offset, long size) throws DocumentStreamException, IOException
+  {
+    if (size > Integer.MAX_VALUE)
+    {
+      errorHandler.fatalError(new DocumentStreamException(DocumentStreamException.ERR_BLOCK_INVALID_SIZE));
+    }
+    if ((directory == null) || (directory.length < size))
+    {
+      directory = new byte[(int) size];
+    }
+    dataReader.seek(offset);
+    dataReader.readFully(directory, 0, (int) size);
+    directoryLength = (int) size;
+    directoryPosition = 0;
+    if ((directoryLength >= 4) && (getIntLittle(directory, 0) != ZIPUtilities.MAGIC_CENTRAL_DIRECTORY_HEADER))
+      return false;
+    return true;
+  }
+
   protected DocumentInfo readDocumentHeader(SeekableDataInputStream dataReader) throws DocumentStreamException, IOException
   {
     int type;
@@ -540,27 +1549,45 @@ public class ZIPReaderImpl extends AbstractDocumentReader
         return null;
       DocumentInfo document = new DocumentInfo(null, ZIPUtilities.MIME_TYPE, type,
           dataReader.length());
-      dataReader.seek(pos);
-
-      /* Read the entry */
-      offset = reader.getStreamPosition();
-      while (readEntry(dataReader) == true)
+      entries.clear();
+      // The central directory cannot be reached without seeking backwards
+      streaming = streamingRequested || (getLookAheadLimit() != Long.MAX_VALUE);
+      if (streaming)
       {
-        offset = reader.getStreamPosition();
+        dataReader.seek(pos);
+        nextEntryOffset = pos;
+        descriptorPending = false;
+        dataPending = false;
+        return document;
       }
-      // Now check if we need to skip this data or not
-      id = dataReader.readUnsignedInt();
-      if (id == ZIPUtilities.MAGIC_ARCHIVE_EXTRA_DATA)
+      if (locateCentralDirectory(dataReader) == false)
       {
-        dataReader.seek(offset + dataReader.readUnsignedInt());
-      } else
+        /* The central directory is damaged or missing, read all the local
+         * headers to find where it should be located. */
+        dataReader.seek(pos);
+        offset = reader.getStreamPosition();
+        while (readEntry(dataReader) == true)
+        {
+          offset = reader.getStreamPosition();
+        }
+        // Now check if we need to skip this data or not
+        id = dataReader.readUnsignedInt();
+        if (id == ZIPUtilities.MAGIC_ARCHIVE_EXTRA_DATA)
+        {
+          dataReader.seek(offset + dataReader.readUnsignedInt());
+        } else
+        {
+          // Seek back to old position. 
+          reader.seek(reader.getStreamPosition() - 4);
+        }
+        offset = reader.getStreamPosition();
+        readCentralDirectory(dataReader, offset, dataReader.length() - offset);
+      }
+      if (headerResolution == RESOLVE_SORTED)
       {
-        // Seek back to old position. 
-        reader.seek(reader.getStreamPosition() - 4);
+        resolveLocalHeaders(dataReader);
       }
-      centralDirectoryEntryOffset = reader.getStreamPosition();
-
-      /* Now find offset to */
+      dataPending = false;
       return document;
 
     } catch (EOFException e)
@@ -571,18 +1598,12 @@ public class ZIPReaderImpl extends AbstractDocumentReader
 
   protected boolean isDocumentEnd(ChunkInfo current) throws DocumentStreamException, IOException
   {
-    long id;
-    long pos;
-    // Read the chunk identifier
-    pos = reader.getStreamPosition();
-    reader.seek(centralDirectoryEntryOffset);
-    // Read the chunk identifier
-    id = reader.readUnsignedInt();
-    if (id != ZIPUtilities.MAGIC_CENTRAL_DIRECTORY_HEADER)
-    {
+    if (streaming)
+      return isStreamEnd();
+    if ((directoryPosition + 4) > directoryLength)
+      return true;
+    if (getIntLittle(directory, directoryPosition) != ZIPUtilities.MAGIC_CENTRAL_DIRECTORY_HEADER)
       return true;
-    }
-    reader.seek(pos);
     return false;
   }
 
@@ -64,6 +64,13 @@ public class ZIPUtilities extends ChunkUtilities
    public static final int CHUNK_NTFS_ATTRIBUTES = 0x000A;
    public static final int CHUNK_STRONG_ENCRYPTION = 0x0017;
    public static final int CHUNK_UNIX_TIMESTAMP = 0x5455;
+   /** ZIP64 extended information extra field */
+   public static final int CHUNK_ZIP64 = 0x0001;
+   
+   /** Values of 32-bit fields greater or equal to this value are stored in the ZIP64 extra field */
+   public static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+   /** Entry counts greater or equal to this value are stored in the ZIP64 end of central directory record */
+   public static final int ZIP64_LIMIT_ENTRIES = 0xFFFF;
    
    public static final int ENCRYPTION_DES       = 0x6601;
    public static final int ENCRYPTION_RC2       = 0x6602;
@@ -146,6 +153,26 @@ public class ZIPUtilities extends ChunkUtilities
      return null;
    }
 
+   /** Converts a standard string value as returned by
+    *  {@link #compressionToString(int)} to the pkzip compatible
+    *  compression value.
+    * 
+    * @param compression The algorithm, the comparison ignores case.
+    * @return The compression value, COMPRESSION_NONE if the string 
+    *   is NULL or empty, or -1 if unknown.
+    */
+   public static int stringToCompression(String compression)
+   {
+     if (compression == null)
+       return COMPRESSION_NONE;
+     for (int i = 0; i < compressionStrings.length; i++)
+     {
+       if (compression.equalsIgnoreCase(compressionStrings[i]))
+         return compressionValues[i];
+     }
+     return -1;
+   }
+
 
   public String chunkIDToObject(Object id) throws IllegalArgumentException
   {
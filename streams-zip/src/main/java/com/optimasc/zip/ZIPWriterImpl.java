@@ -1,27 +1,63 @@
 package com.optimasc.zip;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Vector;
-import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import com.optimasc.date.DOSDate;
 import com.optimasc.date.DOSDateTime;
+import com.optimasc.io.SeekableDataOutputStream;
 import com.optimasc.streams.internal.ChunkInfo;
 import com.optimasc.streams.internal.AbstractDocumentWriter;
 import com.optimasc.streams.internal.ResourceChunkInfo;
+import com.optimasc.streams.internal.RandomAccessDataOutputStream;
+import com.optimasc.streams.internal.ResourceType;
+import com.optimasc.streams.internal.StreamingDataOutputStream;
+import com.optimasc.streams.Attribute;
 import com.optimasc.streams.DocumentStreamException;
 import com.optimasc.nio.charset.CanonicalChars;
 
-/** Implements a simple 32-bit ZIP file writer. The actual
- *  data by this implementation is not compressed internally, 
- *  so everything must be done manually before hand.
+/** Implements a simple ZIP file writer. By default the actual
+ *  data is not compressed internally, but the entries written without
+ *  attributes can be deflated by the writer with {@link #setCompression(int, int)},
+ *  optionally on several threads with {@link #setThreadCount(int)}.
+ *  
+ *  The ZIP64 extensions are used automatically for the entries
+ *  and the central directory when a size or offset does not fit in 
+ *  32 bits or when there are more than 65534 entries. As the size of
+ *  an entry is only known once its data is written, room for the ZIP64 
+ *  extra field is always reserved in the local headers.
+ *  
+ *  When the output is not seekable, or when requested with 
+ *  {@link #setStreaming(boolean)}, the local headers are never rewritten:
+ *  they have the data descriptor flag set and zero sizes and CRC-32, and
+ *  each entry is followed by a data descriptor. The ZIP64 extra field is
+ *  then not reserved, and the sizes in the data descriptor only take 8 
+ *  bytes if they do not fit in 32 bits, as done by java.util.zip.
+ *  As most streaming readers, such as java.util.zip.ZipInputStream, only
+ *  accept data descriptors after deflated data, the entries written 
+ *  without attributes are always deflated in this mode, and stored 
+ *  entries must have the ATTRIBUTE_NAME_SIZE and ATTRIBUTE_NAME_HASH_VALUE
+ *  attributes, which are written in their local header instead.
+ *  
+ *  The central directory record of each entry is encoded as soon as the
+ *  entry is complete, and kept in a buffer that moves to a temporary file
+ *  once it is large, so that the memory used does not grow with the
+ *  number of entries.
+ *  
+ *  Entries can be added to an existing archive with 
+ *  {@link #setAppendOutput(RandomAccessFile)}, in which case only the new
+ *  entries and the central directory are written.
  *  
  *  If no attributes are specified when creating each element,
  *  the following defaults will exist:
- *    * The compression is set to "stored" - no compression.
+ *    * The compression is set to "stored" - no compression, unless
+ *      deflate compression was selected.
  *    * The CRC-32 is calculated on the data input.
  *    * The last modification file timestamp will be set to the current
  *       date and time.
@@ -35,7 +71,7 @@ import com.optimasc.nio.charset.CanonicalChars;
  *    * The ATTRIBUTE_NAME_SIZE attribute should be set to the uncompressed
  *      data size.
  *    * The ATTRIBUTE_NAME_HASH_VALUE should be set to the ZIP CRC-32 of the
- *      uncompressed data.
+ *      uncompressed data, as an hexadecimal value.
  *    * The following attributes are optional and will be used using
  *      extra fields:
  *       ** ATTRIBUTE_NAME_COMMENT shall be stored in the comment file if present.
@@ -54,82 +90,318 @@ public class ZIPWriterImpl extends AbstractDocumentWriter
   static final int ZIP_MINIMUM_VERSION = 0x0014;
   /** Version made by field: Made by MS-DOS */
   static final int ZIP_MADE_BY         = 0x0014;
+  /** Version needed to extract field: PKZIP 4.5, required for ZIP64 */
+  static final int ZIP64_VERSION       = 0x002D;
+  /** Size of the ZIP64 extra field in the local header, both sizes are always present */
+  static final int ZIP64_LOCAL_EXTRA_SIZE = 20;
+  /** Size of the ZIP64 end of central directory record, excluding the leading 12 bytes */
+  static final int ZIP64_CENTRAL_DIRECTORY_END_SIZE = 44;
   
   long headerPos;
-  /** Contains all directory entries written in local header, used to write out the
-   *  central directory structures.
-   */
-  Vector dirEntries;
+  /** Contains the central directory records of all the entries written */
+  ZipDirectoryBuffer directory;
+  /** The encoded filename of the current entry */
+  byte[] entryName;
+  /** The DOS date and time of the current entry */
+  int entryDateTime;
+  Calendar calendar = Calendar.getInstance();
   ZIPCRC32 crc = new ZIPCRC32();
   long crc32Value = 0;
+  /** The CRC-32 specified in the attributes of the current entry, or -1 */
+  long attributeCrc32 = -1;
+  /** The compression method of the entries written without attributes */
+  int compressionMethod = ZIPUtilities.COMPRESSION_NONE;
+  /** The deflate compression level of the entries written without attributes */
+  int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  /** The number of threads that compress the data of each entry */
+  int threadCount = 1;
+  /** Compresses the data of the entries, allocated on the first deflated entry */
+  ParallelDeflater deflater;
+  /** true if the data of the current entry is deflated by the writer */
+  boolean deflating;
+  /** true if streaming output was requested */
+  boolean streamingRequested;
+  /** true if the local headers are never rewritten */
+  boolean streaming;
+  /** true if the current entry is followed by a data descriptor */
+  boolean descriptor;
   
   public ZIPWriterImpl()
   {
     super(false,1);
     validator = new ZIPUtilities();
-    // Contains all elements currently written to help writing central directory information. 
-    dirEntries = new Vector();
+    // Contains the central directory records of the elements currently written. 
+    directory = new ZipDirectoryBuffer();
+  }
+
+  /** Sets how the data of the entries written without attributes is
+   *  compressed, the default is to store it. This applies to the next
+   *  entries.
+   *
+   * @param method The compression method, either ZIPUtilities.COMPRESSION_NONE
+   *   or ZIPUtilities.COMPRESSION_DEFLATE.
+   * @param level The deflate compression level, from 0 to 9, or
+   *   Deflater.DEFAULT_COMPRESSION.
+   */
+  public void setCompression(int method, int level)
+  {
+    if ((method != ZIPUtilities.COMPRESSION_NONE) && (method != ZIPUtilities.COMPRESSION_DEFLATE))
+      throw new IllegalArgumentException("Unsupported compression method: " + Integer.toString(method));
+    if (((level < 0) || (level > 9)) && (level != Deflater.DEFAULT_COMPRESSION))
+      throw new IllegalArgumentException("Invalid compression level.");
+    endDeflater();
+    compressionMethod = method;
+    compressionLevel = level;
+  }
+
+  /** Sets the number of threads that deflate the data of each entry. When
+   *  there are several threads, the data is split in blocks of 128 KB that
+   *  are compressed in parallel, which requires Java 7 or later, otherwise
+   *  the data is compressed by the calling thread. This applies to the
+   *  next entries.
+   *
+   * @param threadCount The number of threads, the default is 1.
+   */
+  public void setThreadCount(int threadCount)
+  {
+    if (threadCount < 1)
+      throw new IllegalArgumentException("Invalid number of threads.");
+    endDeflater();
+    this.threadCount = threadCount;
+  }
+
+  /** Sets whether the entries are written without ever seeking back in
+   *  the output, with data descriptors. This is always the case when the
+   *  output is not a SeekableDataOutputStream. It cannot be changed while
+   *  an entry is written. The entries written without attributes are then
+   *  deflated, and stored entries require their size and CRC-32 attributes.
+   *
+   * @param streaming true to write data descriptors.
+   */
+  public void setStreaming(boolean streaming)
+  {
+    if (currentChunk.type != ChunkInfo.UNDEFINED_VALUE)
+      throw new IllegalStateException(DocumentStreamException.ERR_INVALID_STATE);
+    streamingRequested = streaming;
+    this.streaming = streaming || (dataWriter instanceof StreamingDataOutputStream);
+  }
+
+  /** Accepts any output stream, the entries are written with data
+   *  descriptors if it is not a SeekableDataOutputStream.
+   */
+  public void setOutput(OutputStream os, String encoding) throws IOException
+  {
+    if ((os instanceof SeekableDataOutputStream)==false)
+    {
+      os = new StreamingDataOutputStream(os);
+    }
+    super.setOutput(os, encoding);
+    streaming = streamingRequested || (dataWriter instanceof StreamingDataOutputStream);
+  }
+
+  /** Adds the entries to an existing archive. The central directory of the
+   *  archive is read through its end of central directory record, and the
+   *  file is truncated at the start of the central directory, where the new 
+   *  entries are written. The central directory written by
+   *  {@link #writeEndDocument()} contains the existing entries followed by
+   *  the new ones. The comment of the archive is not kept.
+   *
+   * @param file The archive, opened for reading and writing.
+   * @throws IOException If the file is not a valid ZIP archive, in which case
+   *   it is not modified.
+   */
+  public void setAppendOutput(RandomAccessFile file) throws IOException
+  {
+    long directoryOffset;
+    if (currentChunk.type != ChunkInfo.UNDEFINED_VALUE)
+      throw new IllegalStateException(DocumentStreamException.ERR_INVALID_STATE);
+    directory.close();
+    directory = new ZipDirectoryBuffer();
+    directoryOffset = readCentralDirectory(file);
+    file.setLength(directoryOffset);
+    file.seek(directoryOffset);
+    setOutput(new RandomAccessDataOutputStream(file), null);
+  }
+
+  /** Copies the central directory of an existing archive in the directory
+   *  buffer, and returns its offset. */
+  private long readCentralDirectory(RandomAccessFile file) throws IOException
+  {
+    long length = file.length();
+    long directoryOffset;
+    long directorySize;
+    long recordOffset;
+    long zip64RecordOffset;
+    long entryCount;
+    int tailLength;
+    byte[] tail;
+    byte[] record;
+    int i;
+    // The record is at the end of the file, only followed by a comment of at most 65535 bytes
+    tailLength = (int) Math.min(length, ZIPReaderImpl.CENTRAL_DIRECTORY_END_SIZE + 65535);
+    tail = new byte[tailLength];
+    file.seek(length - tailLength);
+    file.readFully(tail, 0, tailLength);
+    for (i = tailLength - ZIPReaderImpl.CENTRAL_DIRECTORY_END_SIZE; i >= 0; i--)
+    {
+      if ((ZIPReaderImpl.getIntLittle(tail, i) == ZIPUtilities.MAGIC_CENTRAL_DIRECTORY_END) &&
+          ((i + ZIPReaderImpl.CENTRAL_DIRECTORY_END_SIZE + (ZIPReaderImpl.getShortLittle(tail, i + 20) & 0xFFFF)) <= tailLength))
+      {
+        entryCount = ZIPReaderImpl.getShortLittle(tail, i + 10) & 0xFFFF;
+        directorySize = ZIPReaderImpl.getIntLittle(tail, i + 12) & 0xFFFFFFFFL;
+        directoryOffset = ZIPReaderImpl.getIntLittle(tail, i + 16) & 0xFFFFFFFFL;
+        recordOffset = length - tailLength + i;
+        // A ZIP64 archive has a locator to the ZIP64 record just before this record
+        if ((i >= ZIPReaderImpl.ZIP64_CENTRAL_DIRECTORY_LOCATOR_SIZE) &&
+            (ZIPReaderImpl.getIntLittle(tail, i - ZIPReaderImpl.ZIP64_CENTRAL_DIRECTORY_LOCATOR_SIZE) == ZIPUtilities.MAGIC_ZIP64_CENTRAL_DIRECTORY_LOCATOR))
+        {
+          zip64RecordOffset = ZIPReaderImpl.getLongLittle(tail, i - ZIPReaderImpl.ZIP64_CENTRAL_DIRECTORY_LOCATOR_SIZE + 8);
+          if ((zip64RecordOffset < 0) || 
+              ((zip64RecordOffset + ZIPReaderImpl.ZIP64_CENTRAL_DIRECTORY_END_SIZE) > (recordOffset - ZIPReaderImpl.ZIP64_CENTRAL_DIRECTORY_LOCATOR_SIZE)))
+            break;
+          record = new byte[ZIPReaderImpl.ZIP64_CENTRAL_DIRECTORY_END_SIZE];
+          file.seek(zip64RecordOffset);
+          file.readFully(record, 0, record.length);
+          if (ZIPReaderImpl.getIntLittle(record, 0) != ZIPUtilities.MAGIC_ZIP64_CENTRAL_DIRECTORY_END)
+            break;
+          entryCount = ZIPReaderImpl.getLongLittle(record, 32);
+          directorySize = ZIPReaderImpl.getLongLittle(record, 40);
+          directoryOffset = ZIPReaderImpl.getLongLittle(record, 48);
+          recordOffset = zip64RecordOffset;
+        }
+        // The directory must be located before this record
+        if ((directoryOffset < 0) || (directorySize < 0) || (entryCount < 0) || 
+            ((directoryOffset + directorySize) > recordOffset))
+          break;
+        file.seek(directoryOffset);
+        if (directorySize >= 4)
+        {
+          file.readFully(tail, 0, 4);
+          if (ZIPReaderImpl.getIntLittle(tail, 0) != ZIPUtilities.MAGIC_CENTRAL_DIRECTORY_HEADER)
+            break;
+          file.seek(directoryOffset);
+        }
+        directory.addRecords(file, directorySize, entryCount);
+        return directoryOffset;
+      }
+    }
+    throw new IOException(DocumentStreamException.ERR_INVALID_STREAM);
+  }
+
+  /** Releases the deflater, which cannot be done while an entry is written. */
+  private void endDeflater()
+  {
+    if (deflating)
+      throw new IllegalStateException(DocumentStreamException.ERR_INVALID_STATE);
+    if (deflater != null)
+    {
+      deflater.end();
+      deflater = null;
+    }
+  }
+
+  /** Sets the information of an entry from its attributes. */
+  protected void setAttributeValues(ResourceChunkInfo chunkData)
+  {
+    Vector attributes = chunkData.getAttributes();
+    attributeCrc32 = -1;
+    chunkData.setSize(-1);
+    for (int i = 0; i < attributes.size(); i++)
+    {
+      Attribute attribute = (Attribute) attributes.elementAt(i);
+      if (ResourceType.ATTRIBUTE_NAME_COMPRESSION_TYPE.equals(attribute.getLocalName()))
+      {
+        if (ZIPUtilities.stringToCompression(attribute.getValue()) == -1)
+          throw new IllegalArgumentException("Unsupported compression method: " + attribute.getValue());
+        chunkData.setCompression(attribute.getValue());
+      } else
+      if (ResourceType.ATTRIBUTE_NAME_SIZE.equals(attribute.getLocalName()))
+      {
+        chunkData.setSize(Long.parseLong(attribute.getValue()));
+      } else
+      if (ResourceType.ATTRIBUTE_NAME_HASH_VALUE.equals(attribute.getLocalName()))
+      {
+        attributeCrc32 = Long.parseLong(attribute.getValue(), 16);
+      }
+    }
+    if (chunkData.getLastModifiedDate() == null)
+      chunkData.setLastModifiedDate(new Date(System.currentTimeMillis()));
   }
 
   /** Writes the local header information */
   protected void writeLocalHeader(ResourceChunkInfo chunkData) throws IOException
   {
-    String filename = chunkData.id.toString();
-    // Convert to a version which contains only ASCII characters. 
-    String convertedFilename = CanonicalChars.convertCanonical(filename);
-    boolean localCompress = false;
-    byte[] bFilename;
+    long compressedSize;
+    long uncompressedSize;
+    boolean zip64;
     
     chunkData.offset = dataWriter.getStreamPosition();
-    /** If no attributes are specified, we manage everything internally. */
-    if (chunkData.getAttributes().size()==0)
+    compressedSize = chunkData.size;
+    /* The uncompressed size is not known before the data is written */
+    uncompressedSize = Math.max(chunkData.getSize(), 0);
+    /* With a data descriptor, they are only written in the descriptor */
+    if (descriptor)
+    {
+      compressedSize = 0;
+      uncompressedSize = 0;
+    } else if (streaming)
     {
-      localCompress = true;
+      /* A stored entry whose size is known */
+      compressedSize = uncompressedSize;
     }
-    bFilename = convertedFilename.getBytes("ISO-8859-1");
+    zip64 = (compressedSize >= ZIPUtilities.ZIP64_LIMIT) || (uncompressedSize >= ZIPUtilities.ZIP64_LIMIT);
     /* local file header signature */
     dataWriter.writeInt(ZIPUtilities.MAGIC_LOCAL_HEADER);
     /* version needed to extract       2 bytes */
-    dataWriter.writeShort(ZIP_MINIMUM_VERSION);
+    if (zip64)
+      dataWriter.writeShort(ZIP64_VERSION);
+    else
+      dataWriter.writeShort(ZIP_MINIMUM_VERSION);
     /* general purpose bit flag        2 bytes */
-    dataWriter.writeShort(0);
+    if (descriptor)
+      dataWriter.writeShort(ZIPUtilities.DATA_DESCRIPTOR_BIT);
+    else
+      dataWriter.writeShort(0);
     /* compression method              2 bytes */
     /* If no compression method is specified, then the value is stored. */
-    if (localCompress)
-      dataWriter.writeShort(ZIPUtilities.COMPRESSION_NONE);
+    dataWriter.writeShort(ZIPUtilities.stringToCompression(chunkData.getCompression()));
     /* last mod file time              2 bytes */
     /* last mod file date              2 bytes */
-    if (localCompress)
-    {
-      Calendar cal = Calendar.getInstance();  
-      cal.setTime(new Date(System.currentTimeMillis()));
-      dataWriter.writeInt((int)DOSDateTime.converter.encode(cal));
-    } else
-    {
-      Calendar cal = Calendar.getInstance();  
-      cal.setTime(chunkData.getLastModifiedDate());
-      dataWriter.writeInt((int)DOSDateTime.converter.encode(cal));
-    }
-    //!!!!!!!!!!!!!!!!!!!!!!!!!!1
+    dataWriter.writeInt(entryDateTime);
     /* crc-32                          4 bytes */
     dataWriter.writeInt((int)crc32Value);
     /* compressed size                 4 bytes */
-    dataWriter.writeInt((int)chunkData.size);
     /* uncompressed size               4 bytes */
-    /* If no compression, the data is stored. */
-    if (localCompress)
-      dataWriter.writeInt((int)chunkData.size);
-    else
-      dataWriter.writeInt((int)chunkData.getSize());
+    if (zip64)
+    {
+      dataWriter.writeInt((int)ZIPUtilities.ZIP64_LIMIT);
+      dataWriter.writeInt((int)ZIPUtilities.ZIP64_LIMIT);
+    } else
+    {
+      dataWriter.writeInt((int)compressedSize);
+      dataWriter.writeInt((int)uncompressedSize);
+    }
     /* file name length                2 bytes */
-    dataWriter.writeShort(bFilename.length);
+    dataWriter.writeShort(entryName.length);
     
     /* extra field length              2 bytes */
-    dataWriter.writeShort(0);
+    if (streaming && (zip64 == false))
+      dataWriter.writeShort(0);
+    else
+      dataWriter.writeShort(ZIP64_LOCAL_EXTRA_SIZE);
     
     /* file name (variable size) */
-    dataWriter.write(bFilename, 0, bFilename.length);
+    dataWriter.write(entryName, 0, entryName.length);
     /* extra field (variable size) */
+    /* The ZIP64 extra field is always written, so that the header keeps the 
+     * same size when it is rewritten with the final sizes. */
+    if ((streaming == false) || zip64)
+    {
+      dataWriter.writeShort(ZIPUtilities.CHUNK_ZIP64);
+      dataWriter.writeShort(ZIP64_LOCAL_EXTRA_SIZE - 4);
+      dataWriter.writeLong(uncompressedSize);
+      dataWriter.writeLong(compressedSize);
+    }
     
     
     crc.engineReset();
@@ -137,92 +409,68 @@ public class ZIPWriterImpl extends AbstractDocumentWriter
 
   public void writeEndDocument() throws IOException
   {
-    byte[] bFilename;
     long centralDirPos;
     long centralDirEnd;
-    String filename;
-    String convertedFilename;
-    boolean localCompress;
+    long centralDirSize;
+    long zip64EndPos;
+    long entryCount;
     
     // Do some validation first.
     super.writeEndDocument();
+    endDeflater();
     
     centralDirPos = dataWriter.getStreamPosition();
     
-    /** Write each entry in the central directory */
-    for (int i = 0; i < dirEntries.size(); i++)
+    /** Write all the entries of the central directory at once */
+    try
     {
-      localCompress = false; 
-      
-      ResourceChunkInfo chunkInfo = (ResourceChunkInfo)dirEntries.elementAt(i);
-      /** If no attributes are specified, we manage everything internally. */
-      if (chunkInfo.getAttributes().size()==0)
-      {
-        localCompress = true;
-      }
-      
-      filename = chunkInfo.id.toString();
-      // Convert to a version which contains only ASCII characters. 
-      convertedFilename = CanonicalChars.convertCanonical(filename);
-      bFilename = convertedFilename.getBytes("ISO-8859-1");
+      directory.writeTo(dataWriter);
+      centralDirSize = directory.getSize();
+      entryCount = directory.getCount();
+    } finally
+    {
+      directory.close();
+    }
+    centralDirEnd = centralDirPos + centralDirSize; 
+    
+    if ((entryCount >= ZIPUtilities.ZIP64_LIMIT_ENTRIES) || (centralDirSize >= ZIPUtilities.ZIP64_LIMIT) ||
+        (centralDirPos >= ZIPUtilities.ZIP64_LIMIT))
+    {
+      /** --------------- write of zip64 end of central directory record --------------- */
+      zip64EndPos = centralDirEnd;
       
-      /* central file header signature   4 bytes  (0x02014b50) */
-      dataWriter.writeInt(ZIPUtilities.MAGIC_CENTRAL_DIRECTORY_HEADER);
-      /* version made by                 2 bytes  */
+      /* zip64 end of central dir signature                       4 bytes  (0x06064b50) */
+      dataWriter.writeInt(ZIPUtilities.MAGIC_ZIP64_CENTRAL_DIRECTORY_END);
+      /* size of zip64 end of central directory record            8 bytes */
+      dataWriter.writeLong(ZIP64_CENTRAL_DIRECTORY_END_SIZE);
+      /* version made by                                          2 bytes */
       dataWriter.writeShort(ZIP_MADE_BY);
-      /* version needed to extract       2 bytes  */
-      dataWriter.writeShort(ZIP_MINIMUM_VERSION);
-      /* general purpose bit flag        2 bytes  */
-      dataWriter.writeShort(0);
-      /* compression method              2 bytes  */
-      if (localCompress)
-        dataWriter.writeShort(ZIPUtilities.COMPRESSION_NONE);
-      
-      /* last mod file time              2 bytes */
-      /* last mod file date              2 bytes */
-      if (localCompress)
-      {
-        Calendar cal = Calendar.getInstance();  
-        cal.setTime(new Date(System.currentTimeMillis()));
-        dataWriter.writeInt((int)DOSDateTime.converter.encode(cal));
-      } else
-      {
-        Calendar cal = Calendar.getInstance();  
-        cal.setTime(chunkInfo.getLastModifiedDate());
-        dataWriter.writeInt((int)DOSDateTime.converter.encode(cal));
-      }
-      /* crc-32                          4 bytes  */
-      dataWriter.writeInt((int)crc32Value);
-      /* compressed size                 4 bytes  */
-      dataWriter.writeInt((int)chunkInfo.size);
-      /* uncompressed size               4 bytes  */
-      /* If no compression, the data is stored. */
-      if (chunkInfo.getCompression()==null)
-        dataWriter.writeInt((int)chunkInfo.size);
-      else
-        dataWriter.writeInt((int)chunkInfo.getSize());
-      /* file name length                2 bytes  */
-      dataWriter.writeShort(bFilename.length);
-      /* extra field length              2 bytes  */
-      dataWriter.writeShort(0);
-      /* file comment length             2 bytes  */
-      dataWriter.writeShort(0);
-      /* disk number start               2 bytes  */
-      dataWriter.writeShort(0);
-      /* internal file attributes        2 bytes  */
-      dataWriter.writeShort(0);
-      /* external file attributes        4 bytes  */
+      /* version needed to extract                                2 bytes */
+      dataWriter.writeShort(ZIP64_VERSION);
+      /* number of this disk                                      4 bytes */
+      dataWriter.writeInt(0);
+      /* number of the disk with the start of the central directory  4 bytes */
       dataWriter.writeInt(0);
-      /* relative offset of local header 4 bytes  */
-      dataWriter.writeInt((int)chunkInfo.offset);
+      /* total number of entries in the central directory on this disk  8 bytes */
+      dataWriter.writeLong(entryCount);
+      /* total number of entries in the central directory         8 bytes */
+      dataWriter.writeLong(entryCount);
+      /* size of the central directory                            8 bytes */
+      dataWriter.writeLong(centralDirSize);
+      /* offset of start of central directory with respect to the starting disk number  8 bytes */
+      dataWriter.writeLong(centralDirPos);
       
-      /* file name (variable size) */
-      dataWriter.write(bFilename, 0, bFilename.length);
-      /* extra field (variable size) */
-      /* file comment (variable size) */
+      /** --------------- write of zip64 end of central directory locator --------------- */
+      
+      /* zip64 end of central dir locator signature               4 bytes  (0x07064b50) */
+      dataWriter.writeInt(ZIPUtilities.MAGIC_ZIP64_CENTRAL_DIRECTORY_LOCATOR);
+      /* number of the disk with the start of the zip64 end of central directory  4 bytes */
+      dataWriter.writeInt(0);
+      /* relative offset of the zip64 end of central directory record  8 bytes */
+      dataWriter.writeLong(zip64EndPos);
+      /* total number of disks                                    4 bytes */
+      dataWriter.writeInt(1);
     }
-    centralDirEnd = dataWriter.getStreamPosition(); 
-    
     
     /** --------------- write of central directory record --------------- */
     
@@ -233,13 +481,13 @@ public class ZIPWriterImpl extends AbstractDocumentWriter
     /* number of the disk with the start of the central directory     2 bytes */
     dataWriter.writeShort(0);
     /* total number of entries in the central directory on this disk  2 bytes */                 
-    dataWriter.writeShort(dirEntries.size());
+    dataWriter.writeShort((int)Math.min(entryCount, ZIPUtilities.ZIP64_LIMIT_ENTRIES));
     /* total number of entries in the central directory               2 bytes */
-    dataWriter.writeShort(dirEntries.size());
+    dataWriter.writeShort((int)Math.min(entryCount, ZIPUtilities.ZIP64_LIMIT_ENTRIES));
     /* size of the central directory   4 bytes */
-    dataWriter.writeInt((int)(centralDirEnd-centralDirPos));
+    dataWriter.writeInt((int)Math.min(centralDirSize, ZIPUtilities.ZIP64_LIMIT));
     /* offset of start of central directory with respect to the starting disk number        4 bytes */
-    dataWriter.writeInt((int)centralDirPos);
+    dataWriter.writeInt((int)Math.min(centralDirPos, ZIPUtilities.ZIP64_LIMIT));
     /* .ZIP file comment length        2 bytes  */
     dataWriter.writeShort(0);
     /* .ZIP file comment       (variable size)  */
@@ -248,27 +496,186 @@ public class ZIPWriterImpl extends AbstractDocumentWriter
   protected void writeChunkHeader(ChunkInfo chunkData)
       throws IOException
   {
+    ResourceChunkInfo resource = (ResourceChunkInfo) chunkData;
     headerPos = dataWriter.getStreamPosition();
     crc.engineReset();
     crc32Value = 0;
-    writeLocalHeader((ResourceChunkInfo) chunkData);
+    /** If no attributes are specified, we manage everything internally. */
+    if (resource.getAttributes().size()==0)
+    {
+      attributeCrc32 = -1;
+      resource.setLastModifiedDate(new Date(System.currentTimeMillis()));
+      resource.setSize(0);
+      /* Streaming readers do not accept data descriptors after stored data */
+      if ((compressionMethod == ZIPUtilities.COMPRESSION_DEFLATE) || streaming)
+      {
+        resource.setCompression(ZIPUtilities.compressionToString(ZIPUtilities.COMPRESSION_DEFLATE));
+        deflating = true;
+      }
+    } else
+    {
+      setAttributeValues(resource);
+    }
+    descriptor = streaming;
+    if (streaming && (ZIPUtilities.stringToCompression(resource.getCompression()) == ZIPUtilities.COMPRESSION_NONE))
+    {
+      /* The local header of a stored entry must contain its size and CRC-32 */
+      if ((resource.getSize() < 0) || (attributeCrc32 == -1))
+        throw new IllegalArgumentException("The size and CRC-32 attributes are required for stored entries when streaming.");
+      descriptor = false;
+      crc32Value = attributeCrc32;
+    }
+    // Convert to a version which contains only ASCII characters. 
+    entryName = CanonicalChars.convertCanonical(resource.id.toString()).getBytes("ISO-8859-1");
+    calendar.setTime(resource.getLastModifiedDate());
+    entryDateTime = (int)DOSDateTime.converter.encode(calendar);
+    writeLocalHeader(resource);
+    if (deflating)
+    {
+      if (deflater == null)
+        deflater = new ParallelDeflater(compressionLevel, threadCount, ParallelDeflater.DEFAULT_BLOCK_SIZE);
+      deflater.start(dataWriter);
+    }
   }
 
   protected void writeFixupChunkHeader(ChunkInfo chunkData)
       throws IOException
   {
-    long currentPos = dataWriter.getStreamPosition();
-    dataWriter.seek(headerPos);
+    ResourceChunkInfo resource = (ResourceChunkInfo) chunkData;
+    long currentPos;
+    if (deflating)
+    {
+      deflating = false;
+      deflater.finish();
+      resource.size = deflater.getBytesWritten();
+      resource.setSize(deflater.getBytesRead());
+      crc32Value = deflater.getCrc();
+    } else
+    {
+      /* Unless specified, the data is stored */
+      if ((resource.getAttributes().size()==0) || (resource.getSize() < 0))
+        resource.setSize(resource.size);
+      crc32Value = crc.engineDigest();
+    }
+    if (attributeCrc32 != -1)
+      crc32Value = attributeCrc32;
+    /* The local header of a streamed stored entry already contains its size */
+    if (streaming && (descriptor == false) && (resource.size != resource.getSize()))
+      throw new IOException(DocumentStreamException.ERR_BLOCK_INVALID_SIZE);
     
-    /** Actually create a directory entry by copying the data to use. */
-    ResourceChunkInfo resChunk = new ResourceChunkInfo();
-    resChunk.copy(chunkData);
-    dirEntries.addElement(resChunk);
-    crc32Value = crc.engineDigest();
-    writeLocalHeader(resChunk);
+    addDirectoryEntry(resource);
+    if (streaming)
+    {
+      if (descriptor)
+        writeDataDescriptor(resource);
+      return;
+    }
+    currentPos = dataWriter.getStreamPosition();
+    dataWriter.seek(headerPos);
+    writeLocalHeader(resource);
     dataWriter.seek(currentPos);
   }
 
+  /** Encodes the central directory record of the current entry */
+  protected void addDirectoryEntry(ResourceChunkInfo chunkInfo) throws IOException
+  {
+    long compressedSize;
+    long uncompressedSize;
+    int zip64Length;
+    
+    compressedSize = chunkInfo.size;
+    uncompressedSize = chunkInfo.getSize();
+    /* Only the values that do not fit are stored in the ZIP64 extra field */
+    zip64Length = 0;
+    if (uncompressedSize >= ZIPUtilities.ZIP64_LIMIT)
+      zip64Length += 8;
+    if (compressedSize >= ZIPUtilities.ZIP64_LIMIT)
+      zip64Length += 8;
+    if (chunkInfo.offset >= ZIPUtilities.ZIP64_LIMIT)
+      zip64Length += 8;
+    
+    directory.addRecord();
+    /* central file header signature   4 bytes  (0x02014b50) */
+    directory.writeInt(ZIPUtilities.MAGIC_CENTRAL_DIRECTORY_HEADER);
+    /* version made by                 2 bytes  */
+    directory.writeShort(ZIP_MADE_BY);
+    /* version needed to extract       2 bytes  */
+    if (zip64Length > 0)
+      directory.writeShort(ZIP64_VERSION);
+    else
+      directory.writeShort(ZIP_MINIMUM_VERSION);
+    /* general purpose bit flag        2 bytes  */
+    if (descriptor)
+      directory.writeShort(ZIPUtilities.DATA_DESCRIPTOR_BIT);
+    else
+      directory.writeShort(0);
+    /* compression method              2 bytes  */
+    directory.writeShort(ZIPUtilities.stringToCompression(chunkInfo.getCompression()));
+    
+    /* last mod file time              2 bytes */
+    /* last mod file date              2 bytes */
+    directory.writeInt(entryDateTime);
+    /* crc-32                          4 bytes  */
+    directory.writeInt((int)crc32Value);
+    /* compressed size                 4 bytes  */
+    directory.writeInt((int)Math.min(compressedSize, ZIPUtilities.ZIP64_LIMIT));
+    /* uncompressed size               4 bytes  */
+    directory.writeInt((int)Math.min(uncompressedSize, ZIPUtilities.ZIP64_LIMIT));
+    /* file name length                2 bytes  */
+    directory.writeShort(entryName.length);
+    /* extra field length              2 bytes  */
+    if (zip64Length > 0)
+      directory.writeShort(zip64Length + 4);
+    else
+      directory.writeShort(0);
+    /* file comment length             2 bytes  */
+    directory.writeShort(0);
+    /* disk number start               2 bytes  */
+    directory.writeShort(0);
+    /* internal file attributes        2 bytes  */
+    directory.writeShort(0);
+    /* external file attributes        4 bytes  */
+    directory.writeInt(0);
+    /* relative offset of local header 4 bytes  */
+    directory.writeInt((int)Math.min(chunkInfo.offset, ZIPUtilities.ZIP64_LIMIT));
+    
+    /* file name (variable size) */
+    directory.write(entryName, 0, entryName.length);
+    /* extra field (variable size) */
+    if (zip64Length > 0)
+    {
+      directory.writeShort(ZIPUtilities.CHUNK_ZIP64);
+      directory.writeShort(zip64Length);
+      if (uncompressedSize >= ZIPUtilities.ZIP64_LIMIT)
+        directory.writeLong(uncompressedSize);
+      if (compressedSize >= ZIPUtilities.ZIP64_LIMIT)
+        directory.writeLong(compressedSize);
+      if (chunkInfo.offset >= ZIPUtilities.ZIP64_LIMIT)
+        directory.writeLong(chunkInfo.offset);
+    }
+    /* file comment (variable size) */
+  }
+
+  /** Writes the data descriptor following the data of an entry */
+  protected void writeDataDescriptor(ResourceChunkInfo chunkData) throws IOException
+  {
+    /* data descriptor signature       4 bytes  (0x08074b50) */
+    dataWriter.writeInt(ZIPUtilities.MAGIC_DATA_DESCRIPTOR);
+    /* crc-32                          4 bytes */
+    dataWriter.writeInt((int)crc32Value);
+    /* compressed size                 4 or 8 bytes */
+    /* uncompressed size               4 or 8 bytes */
+    if ((chunkData.size >= ZIPUtilities.ZIP64_LIMIT) || (chunkData.getSize() >= ZIPUtilities.ZIP64_LIMIT))
+    {
+      dataWriter.writeLong(chunkData.size);
+      dataWriter.writeLong(chunkData.getSize());
+    } else
+    {
+      dataWriter.writeInt((int)chunkData.size);
+      dataWriter.writeInt((int)chunkData.getSize());
+    }
+  }
+
   protected void writeChunkFooter(ChunkInfo chunkData)
       throws IOException
   {
@@ -287,10 +694,23 @@ public class ZIPWriterImpl extends AbstractDocumentWriter
     // TODO Auto-generated method stub
     
   }
-  /** This calculates the CRC-32 value of the data also. */
+  /** This calculates the CRC-32 value of the data also, unless it is
+   *  given by the attributes, or compresses it if the entry is deflated 
+   *  by the writer. */
   public void write(byte[] buffer, int off, int len) throws IOException
   {
-    crc.engineUpdate(buffer, 0, len);     
+    if (deflating)
+    {
+      if (currentChunk.type != ChunkInfo.TYPE_CHUNK)
+      {
+        throw new IllegalStateException(
+            DocumentStreamException.ERR_INVALID_STATE);
+      }
+      deflater.write(buffer, off, len);
+      return;
+    }
+    if (attributeCrc32 == -1)
+      crc.engineUpdate(buffer, off, len);
     super.write(buffer, off, len);
   }
 
@@ -298,15 +718,30 @@ public class ZIPWriterImpl extends AbstractDocumentWriter
   public void write(int b) throws IOException
   {
     w[0] = (byte) b;
-    crc.engineUpdate(w, 0, 1);     
-    super.write(b);
+    write(w, 0, 1);
+  }
+
+  /** This calculates the CRC-32 value of the data also. */
+  public void writeByte(int b) throws IOException
+  {
+    write(b);
   }
 
   /** This calculates the CRC-32 value of the data also. */
   public void write(byte[] buffer) throws IOException
   {
-    crc.engineUpdate(buffer, 0, buffer.length);     
-    super.write(buffer);
+    write(buffer, 0, buffer.length);
+  }
+
+  public void close() throws IOException
+  {
+    if (deflater != null)
+    {
+      deflater.end();
+      deflater = null;
+    }
+    directory.close();
+    super.close();
   }
   
 
@@ -0,0 +1,338 @@
+package com.optimasc.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Inflater;
+
+import com.optimasc.streams.DocumentStreamException;
+
+/**
+ * Read-only view on the entries of a ZIP file, built once from its central
+ * directory, that can be shared by several threads. The entries are found
+ * with a hash lookup on their name, and their data is read using positional
+ * reads on the file channel, so that entries can be read concurrently without
+ * any synchronization.
+ *
+ * <p>Only stored and deflated entries that are not encrypted can be opened.
+ * The data of stored entries can also be copied directly from the file
+ * channel, without going through heap buffers, with
+ * {@link #transferEntry(int, WritableByteChannel, boolean)}.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public final class ZipArchive
+{
+  /** The channel containing the ZIP file */
+  private final FileChannel channel;
+  /** The entries of the file */
+  private final ZipEntryTable table;
+
+  /**
+   * Creates a view on the ZIP file in the specified channel, and reads its
+   * central directory. The local headers are only read when the entries
+   * are opened.
+   *
+   * @param channel The channel containing the ZIP file, it is not closed
+   *   by this class.
+   * @throws DocumentStreamException If the file is not a valid ZIP file.
+   */
+  public ZipArchive(FileChannel channel) throws DocumentStreamException, IOException
+  {
+    this.channel = channel;
+    table = new ZipEntryTable(channel, ZIPReaderImpl.RESOLVE_LAZY);
+  }
+
+  /**
+   * Returns the table containing the information on the entries.
+   *
+   * @return The table of the entries.
+   */
+  public ZipEntryTable getEntryTable()
+  {
+    return table;
+  }
+
+  /**
+   * Returns the number of entries of the file.
+   *
+   * @return The number of entries.
+   */
+  public int getEntryCount()
+  {
+    return table.getEntryCount();
+  }
+
+  /**
+   * Returns the name of an entry.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The name of the entry.
+   */
+  public String getEntryName(int index)
+  {
+    return table.getName(index);
+  }
+
+  /**
+   * Returns the uncompressed size of an entry.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The uncompressed size of the entry.
+   */
+  public long getEntrySize(int index)
+  {
+    return table.getSize(index);
+  }
+
+  /**
+   * Searches for an entry.
+   *
+   * @param name The name of the entry.
+   * @return The index of the entry in the central directory, or -1 if
+   *   there is no entry with this name.
+   */
+  public int indexOf(String name)
+  {
+    return table.indexOf(name);
+  }
+
+  /**
+   * Returns a stream on the uncompressed data of an entry, which allocates
+   * its own inflater.
+   *
+   * @param name The name of the entry.
+   * @return The stream, which must be closed, or null if there is no
+   *   entry with this name.
+   * @throws IOException If the entry cannot be read.
+   */
+  public InputStream openEntry(String name) throws IOException
+  {
+    return openEntry(name, null);
+  }
+
+  /**
+   * Returns a stream on the uncompressed data of an entry.
+   *
+   * @param name The name of the entry.
+   * @param inflater The inflater to use if the entry is deflated, which must
+   *   not be used by another stream at the same time, or null to allocate one.
+   * @return The stream, which must be closed, or null if there is no
+   *   entry with this name.
+   * @throws IOException If the entry cannot be read.
+   */
+  public InputStream openEntry(String name, Inflater inflater) throws IOException
+  {
+    int index = indexOf(name);
+    if (index == -1)
+      return null;
+    return openEntry(index, inflater);
+  }
+
+  /**
+   * Returns a stream on the uncompressed data of an entry.
+   *
+   * @param index The index of the entry in the central directory.
+   * @param inflater The inflater to use if the entry is deflated, which must
+   *   not be used by another stream at the same time, or null to allocate one.
+   * @return The stream, which must be closed.
+   * @throws IOException If the entry cannot be read.
+   */
+  public InputStream openEntry(int index, Inflater inflater) throws IOException
+  {
+    checkEncryption(index);
+    return new ZipEntryInputStream(channel, table.getDataOffset(index, channel), table.getCompressedSize(index),
+        table.getSize(index), table.getCompression(index), table.getCrc(index), inflater);
+  }
+
+  /**
+   * Returns a stream on the uncompressed data of an entry, starting at the
+   * specified position. The CRC-32 of the data is not verified.
+   *
+   * @param index The index of the entry in the central directory.
+   * @param position The position in the uncompressed data of the first
+   *   byte to return.
+   * @param checkpoints The checkpoint index of the entry, so that the data
+   *   of a deflated entry is only decompressed from the checkpoint that
+   *   precedes the position, or null to decompress it from the start.
+   * @return The stream, which must be closed.
+   * @throws IOException If the entry cannot be read, or if the checkpoint
+   *   index was not created for this entry.
+   */
+  public InputStream openEntry(int index, long position, ZipCheckpointIndex checkpoints) throws IOException
+  {
+    long size = table.getSize(index);
+    long dataOffset;
+    long skip;
+    checkEncryption(index);
+    if ((position < 0) || (position > size))
+      throw new IllegalArgumentException("Invalid position.");
+    dataOffset = table.getDataOffset(index, channel);
+    // Stored data can be read directly from the position
+    if (table.getCompression(index) == ZIPUtilities.COMPRESSION_NONE)
+    {
+      return new ZipEntryInputStream(channel, dataOffset + position, size - position,
+          size - position, ZIPUtilities.COMPRESSION_NONE, -1, null);
+    }
+    if ((checkpoints != null) && (table.getCompression(index) == ZIPUtilities.COMPRESSION_DEFLATE))
+    {
+      if (checkpoints.matches(table.getCompressedSize(index), size, table.getCrc(index)) == false)
+      {
+        throw new IOException("Checkpoint index does not match entry: " + table.getName(index));
+      }
+      return checkpoints.open(channel, dataOffset, position);
+    }
+    InputStream is = new ZipEntryInputStream(channel, dataOffset, table.getCompressedSize(index),
+        size, table.getCompression(index), -1, null);
+    skip = position;
+    while (skip > 0)
+    {
+      long count = is.skip(skip);
+      if (count <= 0)
+      {
+        is.close();
+        throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+      }
+      skip -= count;
+    }
+    return is;
+  }
+
+  /**
+   * Creates the checkpoint index of a deflated entry by decompressing it
+   * once, so that its data can later be read from any position with
+   * {@link #openEntry(int, long, ZipCheckpointIndex)}.
+   *
+   * @param index The index of the entry in the central directory.
+   * @param spacing The minimum number of uncompressed bytes between two
+   *   checkpoints.
+   * @return The index.
+   * @throws IOException If the entry is not deflated or is corrupt.
+   */
+  public ZipCheckpointIndex createCheckpointIndex(int index, long spacing) throws IOException
+  {
+    checkEncryption(index);
+    if (table.getCompression(index) != ZIPUtilities.COMPRESSION_DEFLATE)
+    {
+      throw new IOException("Unsupported compression method: " + Integer.toString(table.getCompression(index)));
+    }
+    return ZipCheckpointIndex.create(channel, table.getDataOffset(index, channel), table.getCompressedSize(index),
+        table.getSize(index), table.getCrc(index), spacing);
+  }
+
+  /**
+   * Returns the position of the data of a stored entry in the file channel,
+   * so that the region of <code>getEntrySize(index)</code> bytes starting at
+   * this position can be mapped or transferred directly. The CRC-32 of the
+   * data is not verified.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The position of the data of the entry in the channel.
+   * @throws IOException If the entry is not stored, or its local header
+   *   cannot be read.
+   */
+  public long getStoredDataOffset(int index) throws IOException
+  {
+    checkEncryption(index);
+    if ((table.getCompression(index) != ZIPUtilities.COMPRESSION_NONE) ||
+        (table.getCompressedSize(index) != table.getSize(index)))
+    {
+      throw new IOException("Entry is not stored: " + table.getName(index));
+    }
+    return table.getDataOffset(index, channel);
+  }
+
+  /**
+   * Copies the data of a stored entry to a channel with
+   * <code>FileChannel.transferTo</code>, so that the operating system can
+   * send it without copying it to the heap.
+   *
+   * @param name The name of the entry.
+   * @param target The channel where the data is written, which must be
+   *   in blocking mode if it is a selectable channel.
+   * @param verify true if the CRC-32 of the data must be verified before
+   *   any data is written, which requires reading the data once.
+   * @return The number of bytes written, which is less than the size of 
+   *   the entry if the channel stopped accepting data, or -1 if there is 
+   *   no entry with this name.
+   * @throws IOException If the entry is not stored, or if its data is
+   *   corrupt.
+   */
+  public long transferEntry(String name, WritableByteChannel target, boolean verify) throws IOException
+  {
+    int index = indexOf(name);
+    if (index == -1)
+      return -1;
+    return transferEntry(index, target, verify);
+  }
+
+  /**
+   * Copies the data of a stored entry to a channel with
+   * <code>FileChannel.transferTo</code>, so that the operating system can
+   * send it without copying it to the heap.
+   *
+   * @param index The index of the entry in the central directory.
+   * @param target The channel where the data is written, which must be
+   *   in blocking mode if it is a selectable channel.
+   * @param verify true if the CRC-32 of the data must be verified before
+   *   any data is written, which requires reading the data once.
+   * @return The number of bytes written, which is less than the size of
+   *   the entry if the channel stopped accepting data.
+   * @throws IOException If the entry is not stored, or if its data is
+   *   corrupt.
+   */
+  public long transferEntry(int index, WritableByteChannel target, boolean verify) throws IOException
+  {
+    long position;
+    long size;
+    long end;
+    if ((target instanceof SelectableChannel) && (((SelectableChannel) target).isBlocking() == false))
+      throw new IllegalArgumentException("The target channel must be in blocking mode.");
+    position = getStoredDataOffset(index);
+    size = table.getSize(index);
+    end = position + size;
+    if (verify)
+    {
+      InputStream is = new ZipEntryInputStream(channel, position, size, size,
+          ZIPUtilities.COMPRESSION_NONE, table.getCrc(index), null);
+      byte[] buffer = new byte[8192];
+      try
+      {
+        while (is.read(buffer, 0, buffer.length) >= 0)
+          ;
+      } finally
+      {
+        is.close();
+      }
+    }
+    while (position < end)
+    {
+      long count = channel.transferTo(position, end - position, target);
+      if (count <= 0)
+      {
+        if (channel.size() < end)
+          throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+        // The target does not accept any more data
+        break;
+      }
+      position += count;
+    }
+    return size - (end - position);
+  }
+
+  /**
+   * Verifies that an entry is not encrypted.
+   */
+  private void checkEncryption(int index) throws IOException
+  {
+    if ((table.getFlags(index) & ZIPUtilities.ENCRYPTED_BIT) == ZIPUtilities.ENCRYPTED_BIT)
+    {
+      throw new IOException("Encrypted entry: " + table.getName(index));
+    }
+  }
+
+}
@@ -0,0 +1,447 @@
+package com.optimasc.zip;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.optimasc.streams.DocumentStreamException;
+
+/**
+ * Index of the positions where the decompression of a deflated ZIP entry
+ * can be resumed, so that data located anywhere in the entry can be read
+ * without decompressing all the data that precedes it.
+ *
+ * <p>The index is created by decompressing the entry once, and recording
+ * at the start of a deflate block, about every <code>spacing</code> bytes
+ * of uncompressed data, the position of the block and the last 32 KiB of
+ * uncompressed data. Reading from a position then only requires to
+ * decompress at most <code>spacing</code> bytes before it.
+ *
+ * <p>The index can be saved with {@link #write(OutputStream)} and loaded
+ * with {@link #read(InputStream)}, so that it can be reused. It is not
+ * modified once created, so it can be shared by several threads.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public final class ZipCheckpointIndex
+{
+  /** Identifier of a saved index */
+  private static final int MAGIC = 0x5A434B50;
+  /** Version of the format of a saved index */
+  private static final int VERSION = 1;
+
+  /** The compressed size of the entry */
+  private final long compressedSize;
+  /** The uncompressed size of the entry */
+  private final long size;
+  /** The CRC-32 of the entry */
+  private final long crc32;
+  /** The minimum number of uncompressed bytes between two checkpoints */
+  private final long spacing;
+  /** The uncompressed offset of each checkpoint, in ascending order */
+  private final long[] offsets;
+  /** The position in bits of the block of each checkpoint in the compressed data */
+  private final long[] bitPositions;
+  /** The uncompressed data preceding each checkpoint, at most 32 KiB */
+  private final byte[][] windows;
+
+  private ZipCheckpointIndex(long compressedSize, long size, long crc32, long spacing,
+      long[] offsets, long[] bitPositions, byte[][] windows)
+  {
+    this.compressedSize = compressedSize;
+    this.size = size;
+    this.crc32 = crc32;
+    this.spacing = spacing;
+    this.offsets = offsets;
+    this.bitPositions = bitPositions;
+    this.windows = windows;
+  }
+
+  /**
+   * Creates the index of a deflated entry by decompressing it, its CRC-32
+   * is verified at the same time.
+   *
+   * @param channel The channel containing the entry.
+   * @param dataOffset The offset of the compressed data in the channel.
+   * @param compressedSize The size of the compressed data.
+   * @param size The uncompressed size of the entry.
+   * @param crc32 The CRC-32 of the entry.
+   * @param spacing The minimum number of uncompressed bytes between two
+   *   checkpoints, each checkpoint requires about 32 KiB of memory.
+   * @return The index.
+   * @throws IOException If the data is corrupt.
+   */
+  public static ZipCheckpointIndex create(FileChannel channel, long dataOffset, long compressedSize,
+      long size, long crc32, long spacing) throws IOException
+  {
+    BlockInflater inflater = new BlockInflater(channel, dataOffset, compressedSize);
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[16384];
+    long[] checkpointOffsets = new long[16];
+    long[] checkpointBits = new long[16];
+    byte[][] checkpointWindows = new byte[16][];
+    int count = 1;
+    int length;
+    if (spacing < 1)
+      throw new IllegalArgumentException("Invalid checkpoint spacing.");
+    // The start of the data is always a checkpoint
+    checkpointWindows[0] = new byte[0];
+    while ((length = inflater.inflate(buffer, 0, buffer.length)) >= 0)
+    {
+      crc.update(buffer, 0, length);
+      if ((inflater.isBlockStart()) && ((inflater.getTotalOut() - checkpointOffsets[count - 1]) >= spacing))
+      {
+        if (count == checkpointOffsets.length)
+        {
+          long[] newOffsets = new long[count * 2];
+          long[] newBits = new long[count * 2];
+          byte[][] newWindows = new byte[count * 2][];
+          System.arraycopy(checkpointOffsets, 0, newOffsets, 0, count);
+          System.arraycopy(checkpointBits, 0, newBits, 0, count);
+          System.arraycopy(checkpointWindows, 0, newWindows, 0, count);
+          checkpointOffsets = newOffsets;
+          checkpointBits = newBits;
+          checkpointWindows = newWindows;
+        }
+        checkpointOffsets[count] = inflater.getTotalOut();
+        checkpointBits[count] = inflater.getBitPosition();
+        checkpointWindows[count] = inflater.getWindow();
+        count++;
+      }
+    }
+    if ((inflater.getTotalOut() != size) || (crc.getValue() != crc32))
+    {
+      throw new IOException(DocumentStreamException.ERR_CORRUPT_STREAM);
+    }
+    long[] offsets = new long[count];
+    long[] bitPositions = new long[count];
+    byte[][] windows = new byte[count][];
+    System.arraycopy(checkpointOffsets, 0, offsets, 0, count);
+    System.arraycopy(checkpointBits, 0, bitPositions, 0, count);
+    System.arraycopy(checkpointWindows, 0, windows, 0, count);
+    return new ZipCheckpointIndex(compressedSize, size, crc32, spacing, offsets, bitPositions, windows);
+  }
+
+  /**
+   * Loads an index saved by {@link #write(OutputStream)}.
+   *
+   * @param is The stream to read from, it is not closed.
+   * @return The index.
+   * @throws IOException If the data is not a valid index.
+   */
+  public static ZipCheckpointIndex read(InputStream is) throws IOException
+  {
+    Inflater inflater = new Inflater();
+    try
+    {
+      DataInputStream input = new DataInputStream(new InflaterInputStream(is, inflater));
+      if ((input.readInt() != MAGIC) || (input.readInt() != VERSION))
+      {
+        throw new IOException(DocumentStreamException.ERR_INVALID_STREAM);
+      }
+      long compressedSize = input.readLong();
+      long size = input.readLong();
+      long crc32 = input.readLong();
+      long spacing = input.readLong();
+      int count = input.readInt();
+      if (count < 1)
+      {
+        throw new IOException(DocumentStreamException.ERR_INVALID_STREAM);
+      }
+      long[] offsets = new long[count];
+      long[] bitPositions = new long[count];
+      byte[][] windows = new byte[count][];
+      for (int i = 0; i < count; i++)
+      {
+        offsets[i] = input.readLong();
+        bitPositions[i] = input.readLong();
+        int length = input.readInt();
+        if ((length < 0) || (length > BlockInflater.WINDOW_SIZE) ||
+            ((i > 0) && (offsets[i] <= offsets[i - 1])))
+        {
+          throw new IOException(DocumentStreamException.ERR_INVALID_STREAM);
+        }
+        windows[i] = new byte[length];
+        input.readFully(windows[i]);
+      }
+      return new ZipCheckpointIndex(compressedSize, size, crc32, spacing, offsets, bitPositions, windows);
+    } finally
+    {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Saves the index in compressed form.
+   *
+   * @param os The stream to write to, it is not closed.
+   */
+  public void write(OutputStream os) throws IOException
+  {
+    Deflater deflater = new Deflater();
+    try
+    {
+      DeflaterOutputStream deflaterStream = new DeflaterOutputStream(os, deflater);
+      DataOutputStream output = new DataOutputStream(deflaterStream);
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeLong(compressedSize);
+      output.writeLong(size);
+      output.writeLong(crc32);
+      output.writeLong(spacing);
+      output.writeInt(offsets.length);
+      for (int i = 0; i < offsets.length; i++)
+      {
+        output.writeLong(offsets[i]);
+        output.writeLong(bitPositions[i]);
+        output.writeInt(windows[i].length);
+        output.write(windows[i]);
+      }
+      output.flush();
+      deflaterStream.finish();
+    } finally
+    {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Indicates if this index was created for an entry.
+   *
+   * @param compressedSize The compressed size of the entry.
+   * @param size The uncompressed size of the entry.
+   * @param crc32 The CRC-32 of the entry.
+   * @return true if the values are the ones of the indexed entry.
+   */
+  public boolean matches(long compressedSize, long size, long crc32)
+  {
+    return (this.compressedSize == compressedSize) && (this.size == size) && (this.crc32 == crc32);
+  }
+
+  /**
+   * Returns the number of checkpoints, including the start of the data.
+   *
+   * @return The number of checkpoints.
+   */
+  public int getCheckpointCount()
+  {
+    return offsets.length;
+  }
+
+  /**
+   * Returns the uncompressed offset of a checkpoint.
+   *
+   * @param index The index of the checkpoint.
+   * @return The offset in the uncompressed data.
+   */
+  public long getCheckpointOffset(int index)
+  {
+    return offsets[index];
+  }
+
+  /**
+   * Returns a stream on the uncompressed data of the entry, starting at the
+   * specified position. The CRC-32 of the data is not verified.
+   *
+   * @param channel The channel containing the entry.
+   * @param dataOffset The offset of the compressed data in the channel.
+   * @param position The position in the uncompressed data of the first
+   *   byte to return.
+   * @return The stream, which must be closed.
+   * @throws IOException If the data cannot be read.
+   */
+  public InputStream open(FileChannel channel, long dataOffset, long position) throws IOException
+  {
+    int low = 0;
+    int high = offsets.length - 1;
+    int middle;
+    if ((position < 0) || (position > size))
+      throw new IllegalArgumentException("Invalid position.");
+    // Find the last checkpoint located before the position
+    while (low < high)
+    {
+      middle = (low + high + 1) >>> 1;
+      if (offsets[middle] <= position)
+        low = middle;
+      else
+        high = middle - 1;
+    }
+    InputStream is = new CheckpointInputStream(channel, dataOffset, low);
+    long skip = position - offsets[low];
+    while (skip > 0)
+    {
+      long count = is.skip(skip);
+      if (count <= 0)
+      {
+        is.close();
+        throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+      }
+      skip -= count;
+    }
+    return is;
+  }
+
+  /**
+   * Stream decompressing the data from a checkpoint, with the data preceding
+   * the checkpoint as dictionary. When the checkpoint is located at the start
+   * of a byte, the data is given as is to an inflater. Otherwise the data
+   * is decompressed by a {@link BlockInflater}, because the stored blocks
+   * are aligned on the bytes of the original data, so that the data cannot
+   * be shifted for the inflater.
+   */
+  private final class CheckpointInputStream extends InputStream
+  {
+    private final FileChannel channel;
+    /** Position of the next compressed byte to read in the channel */
+    private long position;
+    /** Number of compressed bytes not yet read */
+    private long compressedLeft;
+    /** Indicates that all the compressed data has been given to the inflater */
+    private boolean endReached;
+    /** Number of uncompressed bytes not yet returned */
+    private long remaining;
+    /** The inflater of a checkpoint located at the start of a byte, or null */
+    private Inflater inflater;
+    /** The decoder of a checkpoint located inside a byte, or null */
+    private BlockInflater blockInflater;
+    private final byte[] buffer = new byte[8192];
+    private final byte[] singleByte = new byte[1];
+
+    CheckpointInputStream(FileChannel channel, long dataOffset, int checkpoint) throws IOException
+    {
+      long start = bitPositions[checkpoint] >>> 3;
+      this.channel = channel;
+      this.position = dataOffset + start;
+      this.compressedLeft = compressedSize - start;
+      this.remaining = size - offsets[checkpoint];
+      if ((bitPositions[checkpoint] & 7) != 0)
+      {
+        blockInflater = new BlockInflater(channel, dataOffset, compressedSize,
+            bitPositions[checkpoint], windows[checkpoint]);
+        return;
+      }
+      inflater = new Inflater(true);
+      if (windows[checkpoint].length > 0)
+      {
+        inflater.setDictionary(windows[checkpoint]);
+      }
+    }
+
+    /** Gives the next compressed bytes to the inflater. */
+    private void fill() throws IOException
+    {
+      if (compressedLeft == 0)
+      {
+        if (endReached)
+          throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+        // The inflater may need an extra byte to detect the end of the data
+        endReached = true;
+        buffer[0] = 0;
+        inflater.setInput(buffer, 0, 1);
+        return;
+      }
+      ByteBuffer target = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, compressedLeft));
+      while (target.hasRemaining())
+      {
+        if (channel.read(target, position + target.position()) < 0)
+          throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+      }
+      position += target.position();
+      compressedLeft -= target.position();
+      inflater.setInput(buffer, 0, target.position());
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int count = 0;
+      if (remaining <= 0)
+        return -1;
+      if (len == 0)
+        return 0;
+      len = (int) Math.min(len, remaining);
+      if (blockInflater != null)
+      {
+        // No data is returned at the end of a block
+        while (count == 0)
+        {
+          count = blockInflater.inflate(b, off, len);
+          if (count < 0)
+            throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+        }
+        remaining -= count;
+        return count;
+      }
+      try
+      {
+        while (count == 0)
+        {
+          if (inflater.needsInput())
+          {
+            fill();
+          }
+          count = inflater.inflate(b, off, len);
+          if ((count == 0) && (inflater.finished() || inflater.needsDictionary()))
+            throw new IOException(DocumentStreamException.ERR_CORRUPT_STREAM);
+        }
+      } catch (DataFormatException e)
+      {
+        IOException ioe = new IOException(DocumentStreamException.ERR_CORRUPT_STREAM);
+        ioe.initCause(e);
+        throw ioe;
+      }
+      remaining -= count;
+      return count;
+    }
+
+    public int read() throws IOException
+    {
+      if (read(singleByte, 0, 1) < 0)
+        return -1;
+      return singleByte[0] & 0xFF;
+    }
+
+    public long skip(long n) throws IOException
+    {
+      byte[] discard = new byte[(int) Math.min(n, 8192)];
+      long count = 0;
+      int length;
+      while (count < n)
+      {
+        length = read(discard, 0, (int) Math.min(n - count, discard.length));
+        if (length < 0)
+          break;
+        count += length;
+      }
+      return count;
+    }
+
+    public int available() throws IOException
+    {
+      return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    public void close() throws IOException
+    {
+      if (inflater != null)
+      {
+        inflater.end();
+        inflater = null;
+      }
+      blockInflater = null;
+      remaining = 0;
+    }
+  }
+
+}
@@ -0,0 +1,458 @@
+package com.optimasc.zip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Vector;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.optimasc.streams.Attribute;
+import com.optimasc.streams.DocumentStreamException;
+import com.optimasc.streams.internal.ResourceType;
+
+/**
+ * Writes entries produced by several threads to a ZIP writer. Each thread
+ * opens its own entry, whose data is compressed and checksummed by that
+ * thread into pooled buffers, and a single serializer thread then appends
+ * the finished entries to the writer in the order they were closed.
+ *
+ * <p>The buffered data of all the entries is limited by a memory budget.
+ * When the budget is exhausted, a producer waits until the serializer has
+ * written finished entries, or if there are none, continues its entry in a
+ * temporary file.
+ *
+ * <p>The writer must not be used by other threads until {@link #finish()}
+ * returns, the central directory can then be written with
+ * <code>writeEndDocument()</code>.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class ZipConcurrentWriter
+{
+  /** Size of the buffers containing the data of the entries */
+  static final int CHUNK_SIZE = 65536;
+
+  /** The writer where the entries are written */
+  protected ZIPWriterImpl writer;
+  /** The compression method of the entries */
+  protected int method;
+  /** The deflate compression level of the entries */
+  protected int level;
+  /** Maximum number of bytes of the buffers */
+  protected long memoryBudget;
+
+  /** Number of bytes of the allocated buffers */
+  private long memoryUsed;
+  /** Buffers that can be reused */
+  private final Vector freeChunks = new Vector();
+  /** Entries that are closed but not yet written, in order */
+  private final Vector finished = new Vector();
+  /** Number of entries that are not yet closed */
+  private int openEntries;
+  /** Set while the serializer writes an entry */
+  private boolean writing;
+  /** Set once no more entries can be opened */
+  private boolean closing;
+  /** The first error of the serializer */
+  private Exception failure;
+  /** The thread writing the entries */
+  private Thread serializer;
+
+  /**
+   * Creates a concurrent front-end to a writer, which must already be
+   * started with <code>writeStartDocument()</code>.
+   *
+   * @param writer The writer where the entries are written.
+   * @param method The compression method, either ZIPUtilities.COMPRESSION_NONE
+   *   or ZIPUtilities.COMPRESSION_DEFLATE.
+   * @param level The deflate compression level, from 0 to 9, or
+   *   Deflater.DEFAULT_COMPRESSION.
+   * @param memoryBudget The maximum number of bytes buffered in memory, at
+   *   least 64 KB.
+   */
+  public ZipConcurrentWriter(ZIPWriterImpl writer, int method, int level, long memoryBudget)
+  {
+    if ((method != ZIPUtilities.COMPRESSION_NONE) && (method != ZIPUtilities.COMPRESSION_DEFLATE))
+      throw new IllegalArgumentException("Unsupported compression method: " + Integer.toString(method));
+    if (((level < 0) || (level > 9)) && (level != Deflater.DEFAULT_COMPRESSION))
+      throw new IllegalArgumentException("Invalid compression level.");
+    if (memoryBudget < CHUNK_SIZE)
+      throw new IllegalArgumentException("Invalid memory budget.");
+    this.writer = writer;
+    this.method = method;
+    this.level = level;
+    this.memoryBudget = memoryBudget;
+    serializer = new Serializer();
+    serializer.setDaemon(true);
+    serializer.start();
+  }
+
+  /**
+   * Opens a new entry, whose data must be written by the calling thread.
+   * The entry is queued for writing when the returned stream is closed.
+   *
+   * @param name The name of the entry.
+   * @return The stream where the uncompressed data of the entry is written.
+   * @throws IOException If the serializer has failed.
+   */
+  public OutputStream openEntry(String name) throws IOException
+  {
+    synchronized (this)
+    {
+      checkFailure();
+      if (closing)
+        throw new IllegalStateException(DocumentStreamException.ERR_INVALID_STATE);
+      openEntries++;
+    }
+    return new EntryOutputStream(name);
+  }
+
+  /**
+   * Waits until all the entries are written, no more entries can be opened
+   * afterwards.
+   *
+   * @throws IOException The first error that occured while writing the
+   *   entries.
+   */
+  public void finish() throws IOException
+  {
+    synchronized (this)
+    {
+      if (openEntries > 0)
+        throw new IllegalStateException(DocumentStreamException.ERR_BLOCK_NOT_CLOSED +
+            Integer.toString(openEntries) + " entries");
+      closing = true;
+      notifyAll();
+    }
+    while (serializer.isAlive())
+    {
+      try
+      {
+        serializer.join();
+      } catch (InterruptedException e)
+      {
+        throw new InterruptedIOException();
+      }
+    }
+    // The entries that were not written because of an error
+    for (int i = 0; i < finished.size(); i++)
+    {
+      ((EntryOutputStream) finished.elementAt(i)).release();
+    }
+    finished.removeAllElements();
+    synchronized (this)
+    {
+      checkFailure();
+    }
+  }
+
+  /** Throws the error of the serializer, if there was one. */
+  private void checkFailure() throws IOException
+  {
+    if (failure instanceof IOException)
+      throw (IOException) failure;
+    if (failure != null)
+    {
+      IOException ioe = new IOException(failure.getMessage());
+      ioe.initCause(failure);
+      throw ioe;
+    }
+  }
+
+  /** Records the first error, which stops the writing of the entries. */
+  private synchronized void setFailure(Exception e)
+  {
+    if (failure == null)
+      failure = e;
+    notifyAll();
+  }
+
+  /**
+   * Allocates a buffer within the memory budget, waiting if entries are
+   * being written, which frees their buffers.
+   *
+   * @return The buffer, or null if the budget is exhausted and no
+   *   buffer will be freed.
+   */
+  private synchronized byte[] allocateChunk() throws IOException
+  {
+    while (memoryUsed + CHUNK_SIZE > memoryBudget)
+    {
+      checkFailure();
+      if ((finished.isEmpty()) && (writing == false))
+        return null;
+      try
+      {
+        wait();
+      } catch (InterruptedException e)
+      {
+        throw new InterruptedIOException();
+      }
+    }
+    memoryUsed += CHUNK_SIZE;
+    if (freeChunks.isEmpty())
+      return new byte[CHUNK_SIZE];
+    byte[] chunk = (byte[]) freeChunks.lastElement();
+    freeChunks.removeElementAt(freeChunks.size() - 1);
+    return chunk;
+  }
+
+  /** Gives back a buffer to the pool. */
+  private synchronized void releaseChunk(byte[] chunk)
+  {
+    memoryUsed -= CHUNK_SIZE;
+    freeChunks.addElement(chunk);
+    notifyAll();
+  }
+
+  /** Queues a closed entry for writing. */
+  private synchronized void queueEntry(EntryOutputStream entry)
+  {
+    openEntries--;
+    finished.addElement(entry);
+    notifyAll();
+  }
+
+  /** Returns the next entry to write, or null once all entries are written. */
+  private synchronized EntryOutputStream takeEntry() throws InterruptedException
+  {
+    writing = false;
+    notifyAll();
+    while ((finished.isEmpty()) && (closing == false) && (failure == null))
+    {
+      wait();
+    }
+    if ((finished.isEmpty()) || (failure != null))
+      return null;
+    writing = true;
+    EntryOutputStream entry = (EntryOutputStream) finished.firstElement();
+    finished.removeElementAt(0);
+    return entry;
+  }
+
+  /** The data of an entry, compressed by the thread that writes it. */
+  private class EntryOutputStream extends OutputStream
+  {
+    /** The name of the entry */
+    String name;
+    /** The deflater of the entry, or null if it is stored */
+    Deflater deflater;
+    /** The CRC-32 of the uncompressed data */
+    CRC32 crc = new CRC32();
+    /** The uncompressed size */
+    long size;
+    /** The buffers containing the compressed data */
+    Vector chunks = new Vector();
+    /** Number of bytes in the last buffer */
+    int chunkLength = CHUNK_SIZE;
+    /** The file containing the compressed data once the budget is exhausted, or null */
+    File spillFile;
+    /** The stream on the spill file */
+    OutputStream spill;
+    /** Output buffer of the deflater */
+    byte[] buffer;
+    /** Set once the entry is closed */
+    boolean closed;
+    /** Used by write(int) */
+    byte[] singleByte = new byte[1];
+
+    EntryOutputStream(String name)
+    {
+      this.name = name;
+      if (method == ZIPUtilities.COMPRESSION_DEFLATE)
+      {
+        deflater = new Deflater(level, true);
+        buffer = new byte[8192];
+      }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      if (closed)
+        throw new IOException("Entry closed: " + name);
+      crc.update(b, off, len);
+      size += len;
+      if (deflater == null)
+      {
+        store(b, off, len);
+        return;
+      }
+      deflater.setInput(b, off, len);
+      while (deflater.needsInput() == false)
+      {
+        store(buffer, 0, deflater.deflate(buffer, 0, buffer.length));
+      }
+    }
+
+    public void write(int b) throws IOException
+    {
+      singleByte[0] = (byte) b;
+      write(singleByte, 0, 1);
+    }
+
+    /** Ends the entry and queues it for writing. */
+    public void close() throws IOException
+    {
+      if (closed)
+        return;
+      closed = true;
+      try
+      {
+        if (deflater != null)
+        {
+          deflater.finish();
+          while (deflater.finished() == false)
+          {
+            store(buffer, 0, deflater.deflate(buffer, 0, buffer.length));
+          }
+        }
+        if (spill != null)
+          spill.close();
+      } catch (IOException e)
+      {
+        release();
+        synchronized (ZipConcurrentWriter.this)
+        {
+          openEntries--;
+        }
+        throw e;
+      } finally
+      {
+        if (deflater != null)
+          deflater.end();
+      }
+      queueEntry(this);
+    }
+
+    /** Appends compressed data to the buffers, or to the spill file. */
+    private void store(byte[] b, int off, int len) throws IOException
+    {
+      int count;
+      while ((len > 0) && (spill == null))
+      {
+        if (chunkLength == CHUNK_SIZE)
+        {
+          byte[] chunk = allocateChunk();
+          if (chunk == null)
+          {
+            spill();
+            break;
+          }
+          chunks.addElement(chunk);
+          chunkLength = 0;
+        }
+        count = Math.min(len, CHUNK_SIZE - chunkLength);
+        System.arraycopy(b, off, (byte[]) chunks.lastElement(), chunkLength, count);
+        chunkLength += count;
+        off += count;
+        len -= count;
+      }
+      if ((len > 0) && (spill != null))
+        spill.write(b, off, len);
+    }
+
+    /** Moves the buffered data to a temporary file. */
+    private void spill() throws IOException
+    {
+      spillFile = File.createTempFile("zipentry", ".tmp");
+      spill = new FileOutputStream(spillFile);
+      for (int i = 0; i < chunks.size(); i++)
+      {
+        byte[] chunk = (byte[]) chunks.elementAt(i);
+        spill.write(chunk, 0, (i == chunks.size() - 1) ? chunkLength : CHUNK_SIZE);
+        releaseChunk(chunk);
+      }
+      chunks.removeAllElements();
+    }
+
+    /** Writes the entry to the writer, called by the serializer. */
+    void writeEntry() throws IOException
+    {
+      writer.writeStartElement(name, new Attribute[] {
+          new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_COMPRESSION_TYPE, ResourceType.ATTRIBUTE_NAME_COMPRESSION_TYPE,
+              ZIPUtilities.compressionToString(method)),
+          new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_SIZE, ResourceType.ATTRIBUTE_NAME_SIZE, Long.toString(size)),
+          new Attribute(ResourceType.ATTRIBUTE_NAMESPACE_HASH_VALUE, ResourceType.ATTRIBUTE_NAME_HASH_VALUE,
+              Long.toHexString(crc.getValue())) });
+      while (chunks.isEmpty() == false)
+      {
+        byte[] chunk = (byte[]) chunks.firstElement();
+        chunks.removeElementAt(0);
+        writer.write(chunk, 0, chunks.isEmpty() ? chunkLength : CHUNK_SIZE);
+        releaseChunk(chunk);
+      }
+      if (spillFile != null)
+      {
+        byte[] data = new byte[CHUNK_SIZE];
+        int count;
+        InputStream is = new FileInputStream(spillFile);
+        try
+        {
+          while ((count = is.read(data, 0, data.length)) >= 0)
+          {
+            writer.write(data, 0, count);
+          }
+        } finally
+        {
+          is.close();
+          spillFile.delete();
+          spillFile = null;
+        }
+      }
+      writer.writeEndElement();
+    }
+
+    /** Frees the buffers and the spill file of an entry that is not written. */
+    void release()
+    {
+      while (chunks.isEmpty() == false)
+      {
+        releaseChunk((byte[]) chunks.lastElement());
+        chunks.removeElementAt(chunks.size() - 1);
+      }
+      if (spillFile != null)
+      {
+        try
+        {
+          spill.close();
+        } catch (IOException e)
+        {
+        }
+        spillFile.delete();
+        spillFile = null;
+      }
+    }
+  }
+
+  /** Thread writing the finished entries to the writer. */
+  private class Serializer extends Thread
+  {
+    public void run()
+    {
+      EntryOutputStream entry;
+      try
+      {
+        while ((entry = takeEntry()) != null)
+        {
+          try
+          {
+            entry.writeEntry();
+          } finally
+          {
+            entry.release();
+          }
+        }
+      } catch (Exception e)
+      {
+        setFailure(e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,209 @@
+package com.optimasc.zip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Accumulates the encoded records of a central directory while the entries
+ * are written. The records are kept in a memory buffer that grows up to
+ * 1 MB, and which is moved to a temporary file once it is full, so that
+ * the memory used does not depend on the number of entries.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+final class ZipDirectoryBuffer
+{
+  /** Initial size of the memory buffer */
+  static final int INITIAL_SIZE = 8192;
+  /** Maximum size of the memory buffer */
+  static final int BUFFER_SIZE = 1024 * 1024;
+
+  /** The records that are not yet in the spill file */
+  private byte[] buffer = new byte[INITIAL_SIZE];
+  /** Number of bytes in the buffer */
+  private int length;
+  /** Total number of bytes of the records */
+  private long size;
+  /** Number of records */
+  private long count;
+  /** The temporary file, or null if the records fit in the buffer */
+  private File spillFile;
+  /** The stream on the temporary file */
+  private OutputStream spill;
+
+  /**
+   * Returns the total size of the records.
+   *
+   * @return The size in bytes.
+   */
+  long getSize()
+  {
+    return size;
+  }
+
+  /**
+   * Returns the number of records.
+   *
+   * @return The number of records.
+   */
+  long getCount()
+  {
+    return count;
+  }
+
+  /**
+   * Starts a new record.
+   */
+  void addRecord()
+  {
+    count++;
+  }
+
+  /**
+   * Appends records that are already encoded, such as the central
+   * directory of an existing archive.
+   *
+   * @param file The file to read from, at its current file pointer.
+   * @param length The number of bytes of the records.
+   * @param records The number of records.
+   * @throws IOException If the records cannot be read.
+   */
+  void addRecords(RandomAccessFile file, long length, long records) throws IOException
+  {
+    byte[] data = new byte[65536];
+    int n;
+    while (length > 0)
+    {
+      n = (int) Math.min(length, data.length);
+      file.readFully(data, 0, n);
+      write(data, 0, n);
+      length -= n;
+    }
+    count += records;
+  }
+
+  /** Appends a 16-bit little-endian value to the current record. */
+  void writeShort(int v) throws IOException
+  {
+    reserve(2);
+    buffer[length++] = (byte) v;
+    buffer[length++] = (byte) (v >>> 8);
+    size += 2;
+  }
+
+  /** Appends a 32-bit little-endian value to the current record. */
+  void writeInt(int v) throws IOException
+  {
+    reserve(4);
+    buffer[length++] = (byte) v;
+    buffer[length++] = (byte) (v >>> 8);
+    buffer[length++] = (byte) (v >>> 16);
+    buffer[length++] = (byte) (v >>> 24);
+    size += 4;
+  }
+
+  /** Appends a 64-bit little-endian value to the current record. */
+  void writeLong(long v) throws IOException
+  {
+    writeInt((int) v);
+    writeInt((int) (v >>> 32));
+  }
+
+  /** Appends bytes to the current record. */
+  void write(byte[] b, int off, int len) throws IOException
+  {
+    int n;
+    while (len > 0)
+    {
+      reserve(1);
+      n = Math.min(len, buffer.length - length);
+      System.arraycopy(b, off, buffer, length, n);
+      length += n;
+      size += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /** Makes room for len bytes in the buffer. */
+  private void reserve(int len) throws IOException
+  {
+    if ((length + len > buffer.length) && (buffer.length < BUFFER_SIZE))
+    {
+      byte[] newBuffer = new byte[Math.min(buffer.length * 2, BUFFER_SIZE)];
+      System.arraycopy(buffer, 0, newBuffer, 0, length);
+      buffer = newBuffer;
+    }
+    if (length + len > buffer.length)
+    {
+      if (spill == null)
+      {
+        spillFile = File.createTempFile("zipdir", ".tmp");
+        spill = new FileOutputStream(spillFile);
+      }
+      spill.write(buffer, 0, length);
+      length = 0;
+    }
+  }
+
+  /**
+   * Copies all the records to a stream, in a single write if they fit
+   * in the memory buffer.
+   *
+   * @param out The stream where the records are written.
+   * @throws IOException If the records cannot be copied.
+   */
+  void writeTo(OutputStream out) throws IOException
+  {
+    if (spill != null)
+    {
+      byte[] data = new byte[65536];
+      int n;
+      spill.close();
+      spill = null;
+      InputStream is = new FileInputStream(spillFile);
+      try
+      {
+        while ((n = is.read(data, 0, data.length)) >= 0)
+        {
+          out.write(data, 0, n);
+        }
+      } finally
+      {
+        is.close();
+      }
+    }
+    out.write(buffer, 0, length);
+  }
+
+  /**
+   * Deletes the temporary file, the records cannot be used anymore
+   * afterwards.
+   */
+  void close()
+  {
+    if (spill != null)
+    {
+      try
+      {
+        spill.close();
+      } catch (IOException e)
+      {
+      }
+      spill = null;
+    }
+    if (spillFile != null)
+    {
+      spillFile.delete();
+      spillFile = null;
+    }
+    length = 0;
+  }
+
+}
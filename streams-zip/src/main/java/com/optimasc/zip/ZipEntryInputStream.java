@@ -0,0 +1,189 @@
+package com.optimasc.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.optimasc.streams.DocumentStreamException;
+
+/**
+ * Input stream returning the uncompressed data of a stored or deflated
+ * ZIP entry. The data is read from a file channel using positional reads,
+ * so that several entries of the same file can be read concurrently, each
+ * by its own stream.
+ *
+ * <p>The CRC-32 of the data is verified once all the data has been read,
+ * unless it is not known, and an <code>IOException</code> is thrown if it
+ * does not match.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class ZipEntryInputStream extends InputStream
+{
+  /** The channel containing the entry */
+  protected FileChannel channel;
+  /** Position of the next compressed byte to read in the channel */
+  protected long position;
+  /** Number of bytes of compressed data not yet read */
+  protected long compressedLeft;
+  /** Number of bytes of uncompressed data not yet returned */
+  protected long remaining;
+  /** The compression method of the entry */
+  protected int compression;
+  /** The expected CRC-32 of the uncompressed data, or -1 if it is not verified */
+  protected long expectedCrc;
+  /** The inflater used for deflated entries */
+  protected Inflater inflater;
+  /** Indicates that the inflater was allocated by this stream */
+  protected boolean ownInflater;
+  /** CRC-32 of the data returned */
+  protected CRC32 crc = new CRC32();
+  /** Buffer containing the compressed data given to the inflater */
+  protected byte[] buffer;
+  /** Buffer used to read a single byte */
+  protected byte[] singleByte = new byte[1];
+
+  /**
+   * Creates a stream on the data of an entry.
+   *
+   * @param channel The channel containing the entry.
+   * @param offset The offset of the data of the entry in the channel.
+   * @param compressedSize The size of the data in the channel.
+   * @param size The uncompressed size of the data.
+   * @param compression The compression method, either
+   *   {@link ZIPUtilities#COMPRESSION_NONE} or {@link ZIPUtilities#COMPRESSION_DEFLATE}.
+   * @param crc32 The CRC-32 of the uncompressed data, or -1 if it must
+   *   not be verified.
+   * @param inflater The inflater to use for deflated entries, which is reset
+   *   by this stream and must not be used by another stream at the same time,
+   *   or null to allocate one that is released by {@link #close()}.
+   * @throws IOException If the compression method is not supported.
+   */
+  public ZipEntryInputStream(FileChannel channel, long offset, long compressedSize, long size,
+      int compression, long crc32, Inflater inflater) throws IOException
+  {
+    if ((compression != ZIPUtilities.COMPRESSION_NONE) && (compression != ZIPUtilities.COMPRESSION_DEFLATE))
+    {
+      throw new IOException("Unsupported compression method: " + Integer.toString(compression));
+    }
+    this.channel = channel;
+    this.position = offset;
+    this.compressedLeft = compressedSize;
+    this.remaining = size;
+    this.compression = compression;
+    this.expectedCrc = crc32;
+    if (compression == ZIPUtilities.COMPRESSION_DEFLATE)
+    {
+      if (inflater == null)
+      {
+        inflater = new Inflater(true);
+        ownInflater = true;
+      } else
+      {
+        inflater.reset();
+      }
+      this.inflater = inflater;
+      buffer = new byte[(int) Math.min(8192, Math.max(compressedSize, 1))];
+    }
+  }
+
+  /**
+   * Reads compressed data at the current position of the channel.
+   */
+  protected void readFully(byte[] b, int off, int len) throws IOException
+  {
+    ByteBuffer target = ByteBuffer.wrap(b, off, len);
+    if (len > compressedLeft)
+    {
+      throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+    }
+    while (target.hasRemaining())
+    {
+      int count = channel.read(target, position);
+      if (count < 0)
+        throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+      position += count;
+    }
+    compressedLeft -= len;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    int count = 0;
+    int blockLength;
+    if (remaining <= 0)
+      return -1;
+    if (len == 0)
+      return 0;
+    len = (int) Math.min(len, remaining);
+    if (compression == ZIPUtilities.COMPRESSION_NONE)
+    {
+      readFully(b, off, len);
+      count = len;
+    } else
+    {
+      try
+      {
+        while (count == 0)
+        {
+          if (inflater.needsInput())
+          {
+            if (compressedLeft <= 0)
+              throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+            blockLength = (int) Math.min(compressedLeft, buffer.length);
+            readFully(buffer, 0, blockLength);
+            inflater.setInput(buffer, 0, blockLength);
+          }
+          count = inflater.inflate(b, off, len);
+          if ((count == 0) && (inflater.finished() || inflater.needsDictionary()))
+            throw new IOException(DocumentStreamException.ERR_CORRUPT_STREAM);
+        }
+      } catch (DataFormatException e)
+      {
+        IOException ioe = new IOException(DocumentStreamException.ERR_CORRUPT_STREAM);
+        ioe.initCause(e);
+        throw ioe;
+      }
+    }
+    crc.update(b, off, count);
+    remaining -= count;
+    if ((remaining == 0) && (expectedCrc != -1) && (crc.getValue() != expectedCrc))
+    {
+      throw new IOException(DocumentStreamException.ERR_CORRUPT_STREAM);
+    }
+    return count;
+  }
+
+  public int read() throws IOException
+  {
+    if (read(singleByte, 0, 1) < 0)
+      return -1;
+    return singleByte[0] & 0xFF;
+  }
+
+  public int available() throws IOException
+  {
+    return (int) Math.min(remaining, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Releases the inflater if it was allocated by this stream, the channel
+   * is not closed.
+   */
+  public void close() throws IOException
+  {
+    if ((ownInflater) && (inflater != null))
+    {
+      inflater.end();
+    }
+    inflater = null;
+    remaining = 0;
+  }
+
+}
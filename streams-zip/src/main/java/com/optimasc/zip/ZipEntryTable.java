@@ -0,0 +1,401 @@
+package com.optimasc.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.optimasc.date.DOSDate;
+import com.optimasc.streams.DocumentStreamConstants;
+import com.optimasc.streams.DocumentStreamException;
+import com.optimasc.streams.internal.ChunkInfo;
+import com.optimasc.streams.internal.ResourceChunkInfo;
+
+/**
+ * Compact read-only table of the entries of a ZIP file, read from its
+ * central directory. Each entry is stored as a fixed width record in
+ * arrays of primitive values, and the names are stored once, encoded in
+ * UTF-8, in a single shared byte array, so that the table requires about
+ * 60 bytes per entry plus the length of its name, and can hold the central
+ * directories of files with millions of entries.
+ *
+ * <p>The names and the entry objects are only created when they are
+ * requested. The table is never modified once created, so it can be
+ * shared by several threads.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public final class ZipEntryTable
+{
+  /** Size of the fixed part of a local file header */
+  private static final int LOCAL_HEADER_SIZE = 30;
+
+  /** Number of long values of each record */
+  private static final int LONG_FIELDS = 4;
+  /** Index of the offset of the local header in the long values of a record */
+  private static final int LOCAL_HEADER_OFFSET = 0;
+  /** Index of the offset of the data in the long values of a record */
+  private static final int DATA_OFFSET = 1;
+  /** Index of the compressed size in the long values of a record */
+  private static final int COMPRESSED_SIZE = 2;
+  /** Index of the uncompressed size in the long values of a record */
+  private static final int SIZE = 3;
+
+  /** Number of int values of each record */
+  private static final int INT_FIELDS = 3;
+  /** Index of the CRC-32 in the int values of a record */
+  private static final int CRC = 0;
+  /** Index of the DOS date and time in the int values of a record */
+  private static final int DATE_TIME = 1;
+  /** Index of the compression method in the upper 16 bits and of the flags in the lower 16 bits */
+  private static final int METHOD_FLAGS = 2;
+
+  /** The number of entries */
+  private final int count;
+  /** The long values of the records */
+  private final long[] longValues;
+  /** The int values of the records */
+  private final int[] intValues;
+  /** The UTF-8 encoded names of all the entries, one after the other */
+  private final byte[] names;
+  /** Offset in names of the name of each entry, followed by the end of the last name */
+  private final int[] nameOffsets;
+  /** Open addressing hash table containing the index of each entry plus one, 0 for empty slots */
+  private final int[] hashTable;
+
+  /**
+   * Reads the central directory of the ZIP file in the specified channel.
+   *
+   * @param channel The channel containing the ZIP file, it is not closed
+   *   by this class.
+   * @param headerResolution How the local headers are read, either
+   *   {@link ZIPReaderImpl#RESOLVE_EACH}, {@link ZIPReaderImpl#RESOLVE_SORTED} or
+   *   {@link ZIPReaderImpl#RESOLVE_LAZY}, in which case the offset of the data
+   *   is only known once {@link #getDataOffset(int, FileChannel)} is called.
+   * @throws DocumentStreamException If the file is not a valid ZIP file.
+   */
+  public ZipEntryTable(FileChannel channel, int headerResolution) throws DocumentStreamException, IOException
+  {
+    ZIPReaderImpl reader = new ZIPReaderImpl();
+    long[] entryLongs = new long[64 * LONG_FIELDS];
+    int[] entryInts = new int[64 * INT_FIELDS];
+    int[] entryNameOffsets = new int[64];
+    byte[] entryNames = new byte[64 * 32];
+    int entryCount = 0;
+    int nameLength = 0;
+    byte[] name;
+    int i;
+    reader.setInput(channel);
+    reader.setProperty(DocumentStreamConstants.PROPERTY_COMPACT_ELEMENTS, Boolean.TRUE);
+    reader.setProperty(ZIPReaderImpl.PROPERTY_HEADER_RESOLUTION, new Integer(headerResolution));
+    while (reader.nextTag() == DocumentStreamConstants.ELEMENT)
+    {
+      if (((entryCount + 1) * LONG_FIELDS) > entryLongs.length)
+      {
+        entryLongs = resize(entryLongs, entryLongs.length * 2);
+        entryInts = resize(entryInts, entryInts.length * 2);
+        entryNameOffsets = resize(entryNameOffsets, entryNameOffsets.length * 2);
+      }
+      name = reader.getId().toString().getBytes("UTF-8");
+      if ((nameLength + name.length) > entryNames.length)
+      {
+        // All the names must fit in a single array
+        if (((long) nameLength + name.length) > (Integer.MAX_VALUE - 8))
+        {
+          throw new DocumentStreamException(DocumentStreamException.ERR_BLOCK_INVALID_SIZE);
+        }
+        entryNames = resize(entryNames, (int) Math.min(Integer.MAX_VALUE - 8,
+            Math.max(entryNames.length * 2L, nameLength + name.length)));
+      }
+      System.arraycopy(name, 0, entryNames, nameLength, name.length);
+      entryLongs[entryCount * LONG_FIELDS + LOCAL_HEADER_OFFSET] = reader.localHeaderOffset;
+      // The data of the entry is located on access in lazy mode
+      if (headerResolution == ZIPReaderImpl.RESOLVE_LAZY)
+        entryLongs[entryCount * LONG_FIELDS + DATA_OFFSET] = ChunkInfo.UNDEFINED_VALUE;
+      else
+        entryLongs[entryCount * LONG_FIELDS + DATA_OFFSET] = reader.getDataOffset();
+      entryLongs[entryCount * LONG_FIELDS + COMPRESSED_SIZE] = reader.getDataSize();
+      entryLongs[entryCount * LONG_FIELDS + SIZE] = reader.entrySize;
+      entryInts[entryCount * INT_FIELDS + CRC] = (int) reader.entryCrc;
+      entryInts[entryCount * INT_FIELDS + DATE_TIME] = reader.entryDateTime;
+      entryInts[entryCount * INT_FIELDS + METHOD_FLAGS] = (reader.entryCompression << 16) | reader.entryFlags;
+      entryNameOffsets[entryCount] = nameLength;
+      nameLength += name.length;
+      entryCount++;
+    }
+    reader.close();
+
+    count = entryCount;
+    longValues = resize(entryLongs, count * LONG_FIELDS);
+    intValues = resize(entryInts, count * INT_FIELDS);
+    names = resize(entryNames, nameLength);
+    nameOffsets = resize(entryNameOffsets, count + 1);
+    nameOffsets[count] = nameLength;
+
+    // The table is at most half full, so that probe sequences stay short
+    int tableSize = 16;
+    while (tableSize < (count * 2))
+      tableSize <<= 1;
+    hashTable = new int[tableSize];
+    for (i = 0; i < count; i++)
+    {
+      int start = nameOffsets[i];
+      int length = nameOffsets[i + 1] - start;
+      int slot = hash(names, start, length) & (tableSize - 1);
+      while (hashTable[slot] != 0)
+      {
+        // With duplicate names, the first entry is kept
+        if (nameEquals(hashTable[slot] - 1, names, start, length))
+          break;
+        slot = (slot + 1) & (tableSize - 1);
+      }
+      if (hashTable[slot] == 0)
+        hashTable[slot] = i + 1;
+    }
+  }
+
+  private static long[] resize(long[] array, int length)
+  {
+    long[] result = new long[length];
+    System.arraycopy(array, 0, result, 0, Math.min(length, array.length));
+    return result;
+  }
+
+  private static int[] resize(int[] array, int length)
+  {
+    int[] result = new int[length];
+    System.arraycopy(array, 0, result, 0, Math.min(length, array.length));
+    return result;
+  }
+
+  private static byte[] resize(byte[] array, int length)
+  {
+    byte[] result = new byte[length];
+    System.arraycopy(array, 0, result, 0, Math.min(length, array.length));
+    return result;
+  }
+
+  private static int hash(byte[] buffer, int off, int len)
+  {
+    int h = 0;
+    for (int i = 0; i < len; i++)
+    {
+      h = 31 * h + buffer[off + i];
+    }
+    // Spread the upper bits, since only the lower bits select the slot
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Indicates if the name of an entry is equal to the specified UTF-8 encoded name.
+   */
+  private boolean nameEquals(int index, byte[] buffer, int off, int len)
+  {
+    int start = nameOffsets[index];
+    if ((nameOffsets[index + 1] - start) != len)
+      return false;
+    for (int i = 0; i < len; i++)
+    {
+      if (names[start + i] != buffer[off + i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of entries of the table.
+   *
+   * @return The number of entries.
+   */
+  public int getEntryCount()
+  {
+    return count;
+  }
+
+  /**
+   * Searches for an entry.
+   *
+   * @param name The name of the entry.
+   * @return The index of the entry in the central directory, or -1 if
+   *   there is no entry with this name.
+   */
+  public int indexOf(String name)
+  {
+    byte[] buffer;
+    try
+    {
+      buffer = name.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e)
+    {
+      return -1;
+    }
+    int slot = hash(buffer, 0, buffer.length) & (hashTable.length - 1);
+    while (hashTable[slot] != 0)
+    {
+      if (nameEquals(hashTable[slot] - 1, buffer, 0, buffer.length))
+        return hashTable[slot] - 1;
+      slot = (slot + 1) & (hashTable.length - 1);
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the name of an entry.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The name of the entry.
+   */
+  public String getName(int index)
+  {
+    try
+    {
+      return new String(names, nameOffsets[index], nameOffsets[index + 1] - nameOffsets[index], "UTF-8");
+    } catch (UnsupportedEncodingException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the offset of the local header of an entry.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The offset of the local header in the file.
+   */
+  public long getLocalHeaderOffset(int index)
+  {
+    return longValues[index * LONG_FIELDS + LOCAL_HEADER_OFFSET];
+  }
+
+  /**
+   * Returns the offset of the data of an entry, the local header is read
+   * if the offset was not determined when the table was created.
+   *
+   * @param index The index of the entry in the central directory.
+   * @param channel The channel containing the ZIP file.
+   * @return The offset of the data in the file.
+   * @throws IOException If the local header is invalid.
+   */
+  public long getDataOffset(int index, FileChannel channel) throws IOException
+  {
+    long offset = longValues[index * LONG_FIELDS + DATA_OFFSET];
+    if (offset != ChunkInfo.UNDEFINED_VALUE)
+      return offset;
+    byte[] header = new byte[LOCAL_HEADER_SIZE];
+    ByteBuffer buffer = ByteBuffer.wrap(header);
+    offset = getLocalHeaderOffset(index);
+    while (buffer.hasRemaining())
+    {
+      if (channel.read(buffer, offset + buffer.position()) < 0)
+        throw new EOFException(DocumentStreamException.ERR_END_OF_STREAM);
+    }
+    if (ZIPReaderImpl.getIntLittle(header, 0) != ZIPUtilities.MAGIC_LOCAL_HEADER)
+    {
+      throw new IOException(DocumentStreamException.ERR_BLOCK_INVALID_HEADER);
+    }
+    return offset + LOCAL_HEADER_SIZE + (ZIPReaderImpl.getShortLittle(header, 26) & 0xFFFF) +
+        (ZIPReaderImpl.getShortLittle(header, 28) & 0xFFFF);
+  }
+
+  /**
+   * Returns the compressed size of an entry.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The size of the data of the entry in the file.
+   */
+  public long getCompressedSize(int index)
+  {
+    return longValues[index * LONG_FIELDS + COMPRESSED_SIZE];
+  }
+
+  /**
+   * Returns the uncompressed size of an entry.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The uncompressed size of the entry.
+   */
+  public long getSize(int index)
+  {
+    return longValues[index * LONG_FIELDS + SIZE];
+  }
+
+  /**
+   * Returns the CRC-32 of the uncompressed data of an entry.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The CRC-32 of the entry.
+   */
+  public long getCrc(int index)
+  {
+    return intValues[index * INT_FIELDS + CRC] & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Returns the compression method of an entry.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The compression method, such as {@link ZIPUtilities#COMPRESSION_DEFLATE}.
+   */
+  public int getCompression(int index)
+  {
+    return intValues[index * INT_FIELDS + METHOD_FLAGS] >>> 16;
+  }
+
+  /**
+   * Returns the general purpose bit flags of an entry.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The flags of the entry.
+   */
+  public int getFlags(int index)
+  {
+    return intValues[index * INT_FIELDS + METHOD_FLAGS] & 0xFFFF;
+  }
+
+  /**
+   * Returns the last modification date and time of an entry in MS-DOS format.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return The DOS date in the upper 16 bits and the DOS time in the lower 16 bits.
+   */
+  public int getDateTime(int index)
+  {
+    return intValues[index * INT_FIELDS + DATE_TIME];
+  }
+
+  /**
+   * Creates an object containing the information of an entry from the
+   * central directory. The information of the extra fields is not included.
+   *
+   * @param index The index of the entry in the central directory.
+   * @return A new object describing the entry, its offset is the one of the
+   *   data if it is known.
+   */
+  public ResourceChunkInfo getEntry(int index)
+  {
+    ResourceChunkInfo entry = new ResourceChunkInfo();
+    long crc32 = getCrc(index);
+    int dateTime = getDateTime(index);
+    entry.reset();
+    entry.id = getName(index);
+    entry.type = ChunkInfo.TYPE_CHUNK;
+    entry.offset = longValues[index * LONG_FIELDS + DATA_OFFSET];
+    entry.size = getCompressedSize(index);
+    entry.setSize(getSize(index));
+    entry.setCompression(ZIPUtilities.compressionToString(getCompression(index)));
+    entry.setDigestType("CCITT CRC-32");
+    // The digest is stored in big endian
+    entry.setDigest(new byte[] { (byte) (crc32 >>> 24), (byte) (crc32 >>> 16),
+        (byte) (crc32 >>> 8), (byte) crc32 });
+    entry.setLastModifiedDate(DOSDate.DOSDateAndTimeToCalendar(dateTime >>> 16, dateTime & 0xFFFF).getTime());
+    if ((getFlags(index) & ZIPUtilities.ENCRYPTED_BIT) == ZIPUtilities.ENCRYPTED_BIT)
+    {
+      entry.setEncrypted(new Boolean(true));
+    }
+    entry.addStandardAttributes();
+    return entry;
+  }
+
+}
@@ -0,0 +1,255 @@
+package com.optimasc.zip;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.zip.Inflater;
+
+import com.optimasc.streams.DocumentStreamException;
+
+/**
+ * Processes the entries of a ZIP file using several threads. The entries
+ * are listed once from the central directory, and each thread then reads
+ * the entries it processes with positional reads on the shared file
+ * channel, so that the entries are decompressed and verified in parallel.
+ *
+ * <p>Only stored and deflated entries that are not encrypted can be
+ * processed, the other entries cause the processing to fail.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class ZipParallelProcessor
+{
+  /**
+   * Callback called for each entry of the file. It can be called
+   * concurrently by several threads, each time for a different entry.
+   */
+  public interface EntryHandler
+  {
+    /**
+     * Processes an entry.
+     *
+     * @param name The name of the entry.
+     * @param data The uncompressed data of the entry, the CRC-32 is verified
+     *   once the data has been completely read.
+     * @throws IOException If the entry cannot be processed.
+     */
+    public void processEntry(String name, InputStream data) throws IOException;
+  }
+
+  /** The channel containing the ZIP file */
+  protected FileChannel channel;
+  /** The entries of the file */
+  protected ZipEntryTable table;
+
+  /** Index of the next entry to process */
+  private int nextEntry;
+  /** The first error that occured while processing the entries */
+  private Exception failure;
+
+  /**
+   * Creates a processor for the ZIP file in the specified channel, and
+   * reads its central directory.
+   *
+   * @param channel The channel containing the ZIP file, it is not closed
+   *   by this processor.
+   * @throws DocumentStreamException If the file is not a valid ZIP file.
+   */
+  public ZipParallelProcessor(FileChannel channel) throws DocumentStreamException, IOException
+  {
+    this.channel = channel;
+    // The local headers are read in file order before processing starts
+    table = new ZipEntryTable(channel, ZIPReaderImpl.RESOLVE_SORTED);
+  }
+
+  /**
+   * Returns the number of entries of the file.
+   *
+   * @return The number of entries.
+   */
+  public int getEntryCount()
+  {
+    return table.getEntryCount();
+  }
+
+  /**
+   * Calls the handler for each entry of the file.
+   *
+   * @param handler The handler to call.
+   * @param threadCount The number of threads to use.
+   * @throws IOException The first error that occured, the entries that
+   *   were not yet started are then not processed.
+   */
+  public void process(EntryHandler handler, int threadCount) throws IOException
+  {
+    Thread[] threads;
+    int i;
+    if (threadCount < 1)
+      throw new IllegalArgumentException("Invalid number of threads.");
+    nextEntry = 0;
+    failure = null;
+    threads = new Thread[Math.min(threadCount, Math.max(table.getEntryCount(), 1))];
+    for (i = 0; i < threads.length; i++)
+    {
+      threads[i] = new Worker(handler);
+      threads[i].start();
+    }
+    for (i = 0; i < threads.length; i++)
+    {
+      while (threads[i].isAlive())
+      {
+        try
+        {
+          threads[i].join();
+        } catch (InterruptedException e)
+        {
+          setFailure(e);
+        }
+      }
+    }
+    if (failure instanceof IOException)
+      throw (IOException) failure;
+    if (failure != null)
+    {
+      IOException ioe = new IOException(failure.getMessage());
+      ioe.initCause(failure);
+      throw ioe;
+    }
+  }
+
+  /**
+   * Verifies the CRC-32 of all the entries of the file.
+   *
+   * @param threadCount The number of threads to use.
+   * @throws IOException If an entry is corrupt.
+   */
+  public void verify(int threadCount) throws IOException
+  {
+    process(new EntryHandler()
+    {
+      public void processEntry(String name, InputStream data) throws IOException
+      {
+        byte[] buffer = new byte[8192];
+        while (data.read(buffer, 0, buffer.length) >= 0)
+        {
+        }
+      }
+    }, threadCount);
+  }
+
+  /**
+   * Extracts all the entries of the file in a directory. Entries whose
+   * name ends with a slash are created as directories.
+   *
+   * @param directory The directory where the entries are extracted.
+   * @param threadCount The number of threads to use.
+   * @throws IOException If an entry cannot be written, or if its name
+   *   refers to a location outside of the directory.
+   */
+  public void extract(final File directory, int threadCount) throws IOException
+  {
+    process(new EntryHandler()
+    {
+      public void processEntry(String name, InputStream data) throws IOException
+      {
+        byte[] buffer = new byte[8192];
+        int count;
+        if ((name.startsWith("/")) || (name.startsWith("\\")) || (name.indexOf(':') != -1) ||
+            (("/" + name.replace('\\', '/') + "/").indexOf("/../") != -1))
+        {
+          throw new IOException("Invalid entry name: " + name);
+        }
+        File file = new File(directory, name);
+        if (name.endsWith("/"))
+        {
+          file.mkdirs();
+          return;
+        }
+        if (file.getParentFile() != null)
+        {
+          file.getParentFile().mkdirs();
+        }
+        OutputStream os = new FileOutputStream(file);
+        try
+        {
+          while ((count = data.read(buffer, 0, buffer.length)) >= 0)
+          {
+            os.write(buffer, 0, count);
+          }
+        } finally
+        {
+          os.close();
+        }
+      }
+    }, threadCount);
+  }
+
+  /**
+   * Returns the index of the next entry to process.
+   *
+   * @return The index, or -1 if there are no more entries or processing
+   *   has failed.
+   */
+  private synchronized int takeEntry()
+  {
+    if ((failure != null) || (nextEntry >= table.getEntryCount()))
+      return -1;
+    return nextEntry++;
+  }
+
+  /** Records the first error, which stops the processing. */
+  private synchronized void setFailure(Exception e)
+  {
+    if (failure == null)
+      failure = e;
+  }
+
+  /** Thread processing entries until there are none left. */
+  private class Worker extends Thread
+  {
+    private EntryHandler handler;
+
+    Worker(EntryHandler handler)
+    {
+      this.handler = handler;
+    }
+
+    public void run()
+    {
+      // Each thread reuses its own inflater for all its entries
+      Inflater inflater = new Inflater(true);
+      int index;
+      try
+      {
+        while ((index = takeEntry()) != -1)
+        {
+          if ((table.getFlags(index) & ZIPUtilities.ENCRYPTED_BIT) == ZIPUtilities.ENCRYPTED_BIT)
+          {
+            throw new IOException("Encrypted entry: " + table.getName(index));
+          }
+          InputStream data = new ZipEntryInputStream(channel, table.getDataOffset(index, channel),
+              table.getCompressedSize(index), table.getSize(index), table.getCompression(index),
+              table.getCrc(index), inflater);
+          try
+          {
+            handler.processEntry(table.getName(index), data);
+          } finally
+          {
+            data.close();
+          }
+        }
+      } catch (Exception e)
+      {
+        setFailure(e);
+      } finally
+      {
+        inflater.end();
+      }
+    }
+  }
+
+}
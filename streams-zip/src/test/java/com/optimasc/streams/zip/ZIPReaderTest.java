@@ -1,6 +1,22 @@
 package com.optimasc.streams.zip;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 
 import java.io.InputStream;
@@ -288,4 +304,905 @@ public class ZIPReaderTest extends TestCase
   }
   
   
+  /** Verify that data transferred from a file channel is the same
+   *  as the data read from a stream. 
+   */
+  public void testCalgaryTransfer() throws FileNotFoundException
+  {
+    byte[] buffer = new byte[1024*1024];
+    try
+    {
+      ZIPReaderImpl streamReader = new ZIPReaderImpl();
+      streamReader.setInput(getClass().getResourceAsStream("/res/calgary_002.zip"), null);
+      RandomAccessFile file = new RandomAccessFile(new File(getClass().getResource("/res/calgary_002.zip").getFile()), "r");
+      ZIPReaderImpl channelReader = new ZIPReaderImpl();
+      channelReader.setInput(file.getChannel());
+      while (streamReader.hasNext())
+      {
+        int id = streamReader.next();
+        assertEquals(id, channelReader.next());
+        if (id == DocumentStreamConstants.DATA)
+        {
+          int size = (int)streamReader.getDataSize();
+          ByteArrayOutputStream os = new ByteArrayOutputStream();
+          streamReader.getData(buffer, 0, size);
+          assertEquals(size, channelReader.transferData(Channels.newChannel(os)));
+          TestUtilities.compareData(os.toByteArray(), buffer, size);
+        }
+      }
+      file.close();
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (IOException e)
+    {
+      fail();
+    }
+  }
+  
+  /** Verify that the transfer stops when the target channel does not
+   *  accept data anymore, that the data left can still be read, and that
+   *  non-blocking channels are rejected.
+   */
+  public void testPartialTransferData() throws DocumentStreamException, IOException
+  {
+    RandomAccessFile file = new RandomAccessFile(new File(getClass().getResource("/res/calgary_002.zip").getFile()), "r");
+    ZIPReaderImpl channelReader = new ZIPReaderImpl();
+    channelReader.setInput(file.getChannel());
+    checkPartialTransfer(channelReader);
+    file.close();
+    ZIPReaderImpl bufferReader = new ZIPReaderImpl();
+    file = new RandomAccessFile(new File(getClass().getResource("/res/calgary_002.zip").getFile()), "r");
+    byte[] data = new byte[(int) file.length()];
+    file.readFully(data);
+    file.close();
+    bufferReader.setInput(ByteBuffer.wrap(data));
+    checkPartialTransfer(bufferReader);
+  }
+
+  protected void checkPartialTransfer(ZIPReaderImpl reader)
+  {
+    byte[] buffer = new byte[1024*1024];
+    try
+    {
+      ZIPReaderImpl streamReader = new ZIPReaderImpl();
+      streamReader.setInput(getClass().getResourceAsStream("/res/calgary_002.zip"), null);
+      while (streamReader.next() != DocumentStreamConstants.DATA)
+        ;
+      while (reader.next() != DocumentStreamConstants.DATA)
+        ;
+      int size = (int)streamReader.getDataSize();
+      streamReader.getData(buffer, 0, size);
+      Pipe pipe = Pipe.open();
+      pipe.sink().configureBlocking(false);
+      try
+      {
+        reader.transferData(pipe.sink());
+        fail();
+      } catch (IllegalArgumentException e)
+      {
+      }
+      pipe.sink().close();
+      pipe.source().close();
+      assertEquals(0, reader.transferData(new ZipArchiveTest.LimitedChannel(0)));
+      assertEquals(size, reader.getDataSize());
+      assertEquals(1000, reader.transferData(new ZipArchiveTest.LimitedChannel(1000)));
+      byte[] data = new byte[size - 1000];
+      assertEquals(data.length, reader.getData(data, 0, data.length));
+      for (int i = 0; i < data.length; i++)
+      {
+        assertEquals(buffer[i + 1000], data[i]);
+      }
+      // The next entry must be correctly positioned
+      while (streamReader.next() != DocumentStreamConstants.DATA)
+        ;
+      while (reader.next() != DocumentStreamConstants.DATA)
+        ;
+      assertEquals(streamReader.getId(), reader.getId());
+      size = (int)streamReader.getDataSize();
+      streamReader.getData(buffer, 0, size);
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      assertEquals(size, reader.transferData(Channels.newChannel(os)));
+      TestUtilities.compareData(os.toByteArray(), buffer, size);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (IOException e)
+    {
+      fail();
+    }
+  }
+
+  /** Verify that in compact mode, each entry is a single event with
+   *  its data and attributes available, which are the same as in normal mode.
+   */
+  public void testCalgaryCompact() throws FileNotFoundException
+  {
+    byte[] buffer = new byte[1024*1024];
+    int elementNr = 0;
+    try
+    {
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      reader.setInput(getClass().getResourceAsStream("/res/calgary_002.zip"), null);
+      ZIPReaderImpl compactReader = new ZIPReaderImpl();
+      compactReader.setInput(getClass().getResourceAsStream("/res/calgary_002.zip"), null);
+      compactReader.setProperty(DocumentStreamConstants.PROPERTY_COMPACT_ELEMENTS, Boolean.TRUE);
+      assertEquals(Boolean.TRUE, compactReader.getProperty(DocumentStreamConstants.PROPERTY_COMPACT_ELEMENTS));
+      while (reader.hasNext())
+      {
+        if (reader.next() == DocumentStreamConstants.DATA)
+        {
+          assertEquals(DocumentStreamConstants.ELEMENT, compactReader.nextTag());
+          assertEquals(testCalgary00Elements[elementNr].id, compactReader.getId().toString());
+          assertEquals(reader.getDataOffset(), compactReader.getDataOffset());
+          assertEquals(reader.getAttributeCount(), compactReader.getAttributeCount());
+          assertEquals(reader.getAttributeValue(0), compactReader.getAttributeValue(0));
+          int size = (int)reader.getDataSize();
+          assertEquals(size, compactReader.getDataSize());
+          // Only read the data of every other entry
+          if ((elementNr % 2) == 0)
+          {
+            byte[] compactBuffer = new byte[size];
+            reader.getData(buffer, 0, size);
+            compactReader.getData(compactBuffer, 0, size);
+            TestUtilities.compareData(compactBuffer, buffer, size);
+          }
+          elementNr++;
+        }
+      }
+      assertEquals(testCalgary00Elements.length, elementNr);
+      assertEquals(DocumentStreamConstants.END_DOCUMENT, compactReader.next());
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (IOException e)
+    {
+      fail();
+    }
+  }
+  
+  /** Verify that the data of each entry, located using the central
+   *  directory, inflates to the same content as with java.util.zip.
+   */
+  public void testCalgaryInflate() throws FileNotFoundException
+  {
+    byte[] expected = new byte[1024*1024];
+    byte[] inflated = new byte[1024*1024];
+    int elementNr = 0;
+    try
+    {
+      File file = new File(getClass().getResource("/res/calgary_002.zip").getFile());
+      ZipFile zipFile = new ZipFile(file);
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      reader.setInput(getClass().getResourceAsStream("/res/calgary_002.zip"), null);
+      while (reader.hasNext())
+      {
+        if (reader.next() == DocumentStreamConstants.DATA)
+        {
+          ZipEntry entry = zipFile.getEntry(reader.getId().toString());
+          int size = (int)entry.getSize();
+          DataInputStream is = new DataInputStream(zipFile.getInputStream(entry));
+          is.readFully(expected, 0, size);
+          is.close();
+          byte[] buffer = new byte[(int)reader.getDataSize()];
+          reader.getData(buffer, 0, buffer.length);
+          Inflater inflater = new Inflater(true);
+          inflater.setInput(buffer);
+          assertEquals(size, inflater.inflate(inflated));
+          inflater.end();
+          for (int i = 0; i < size; i++)
+          {
+            assertEquals(expected[i], inflated[i]);
+          }
+          elementNr++;
+        }
+      }
+      zipFile.close();
+      assertEquals(testCalgary00Elements.length, elementNr);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (DataFormatException e)
+    {
+      fail();
+    } catch (IOException e)
+    {
+      fail();
+    }
+  }
+  
+  /** Verify that the data located by the sorted and lazy header resolution
+   *  modes is the same as the data located by reading each local header.
+   */
+  public void testCalgaryHeaderResolution() throws FileNotFoundException
+  {
+    checkHeaderResolution(ZIPReaderImpl.RESOLVE_SORTED);
+    checkHeaderResolution(ZIPReaderImpl.RESOLVE_LAZY);
+  }
+  
+  protected void checkHeaderResolution(int mode)
+  {
+    byte[] buffer = new byte[1024*1024];
+    int elementNr = 0;
+    try
+    {
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      reader.setInput(getClass().getResourceAsStream("/res/calgary_002.zip"), null);
+      ZIPReaderImpl resolvingReader = new ZIPReaderImpl();
+      resolvingReader.setInput(getClass().getResourceAsStream("/res/calgary_002.zip"), null);
+      resolvingReader.setProperty(ZIPReaderImpl.PROPERTY_HEADER_RESOLUTION, new Integer(mode));
+      assertEquals(new Integer(mode), resolvingReader.getProperty(ZIPReaderImpl.PROPERTY_HEADER_RESOLUTION));
+      while (reader.hasNext())
+      {
+        int event = reader.next();
+        assertEquals(event, resolvingReader.next());
+        if (event == DocumentStreamConstants.DATA)
+        {
+          assertEquals(reader.getId(), resolvingReader.getId());
+          int size = (int)reader.getDataSize();
+          assertEquals(size, resolvingReader.getDataSize());
+          // Only read the data of every other entry
+          if ((elementNr % 2) == 0)
+          {
+            byte[] resolvedBuffer = new byte[size];
+            reader.getData(buffer, 0, size);
+            resolvingReader.getData(resolvedBuffer, 0, size);
+            TestUtilities.compareData(resolvedBuffer, buffer, size);
+          }
+          assertEquals(reader.getDataOffset(), resolvingReader.getDataOffset());
+          elementNr++;
+        }
+      }
+      assertEquals(testCalgary00Elements.length, elementNr);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (IOException e)
+    {
+      fail();
+    }
+  }
+  
+  /** Verify that the sizes and offsets stored in the ZIP64 extra fields
+   *  and the ZIP64 end of central directory record are used.
+   */
+  public void testZip64() throws FileNotFoundException
+  {
+    String[] names = { "zip64a.txt", "zip64b.txt" };
+    String[] contents = { "ZIP64 extended information in the central directory.\n", "Second entry.\n" };
+    int elementNr = 0;
+    try
+    {
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      reader.setInput(getClass().getResourceAsStream("/res/zip64_000.zip"), null);
+      reader.setProperty(ZIPReaderImpl.PROPERTY_HEADER_RESOLUTION, new Integer(ZIPReaderImpl.RESOLVE_SORTED));
+      while (reader.hasNext())
+      {
+        if (reader.next() == DocumentStreamConstants.DATA)
+        {
+          assertEquals(names[elementNr], reader.getId());
+          int size = (int)reader.getDataSize();
+          assertEquals(contents[elementNr].length(), size);
+          byte[] buffer = new byte[size];
+          reader.getData(buffer, 0, size);
+          assertEquals(contents[elementNr], new String(buffer, "ISO-8859-1"));
+          elementNr++;
+        }
+      }
+      assertEquals(names.length, elementNr);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (IOException e)
+    {
+      fail();
+    }
+  }
+  
+  /** Verify that with the inflate property, the data of each entry is
+   *  returned uncompressed, whether it is read, partially read or skipped.
+   */
+  public void testCalgaryInflateData() throws FileNotFoundException
+  {
+    byte[] expected = new byte[1024*1024];
+    int elementNr = 0;
+    try
+    {
+      File file = new File(getClass().getResource("/res/calgary_002.zip").getFile());
+      ZipFile zipFile = new ZipFile(file);
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      reader.setInput(getClass().getResourceAsStream("/res/calgary_002.zip"), null);
+      reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+      reader.setProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA, Boolean.TRUE);
+      assertEquals(Boolean.TRUE, reader.getProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA));
+      while (reader.hasNext())
+      {
+        if (reader.next() == DocumentStreamConstants.DATA)
+        {
+          ZipEntry entry = zipFile.getEntry(reader.getId().toString());
+          int size = (int)entry.getSize();
+          assertEquals(size, reader.getDataSize());
+          DataInputStream is = new DataInputStream(zipFile.getInputStream(entry));
+          is.readFully(expected, 0, size);
+          is.close();
+          // Read every other entry in two parts, only read the start of the others 
+          byte[] buffer = new byte[size];
+          if ((elementNr % 2) == 0)
+          {
+            reader.getData(buffer, 0, size / 2);
+            reader.getData(buffer, size / 2, size - (size / 2));
+            TestUtilities.compareData(buffer, expected, size);
+          }
+          else
+          {
+            reader.getData(buffer, 0, 16);
+            for (int i = 0; i < 16; i++)
+            {
+              assertEquals(expected[i], buffer[i]);
+            }
+          }
+          elementNr++;
+        }
+      }
+      zipFile.close();
+      reader.close();
+      assertEquals(testCalgary00Elements.length, elementNr);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (IOException e)
+    {
+      fail();
+    }
+  }
+  
+  /** Verify that a CRC-32 that does not match the uncompressed data 
+   *  is reported once the data has been read.
+   */
+  public void testInflateDataCrc() throws IOException
+  {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    InputStream is = getClass().getResourceAsStream("/res/calgary_002.zip");
+    int b;
+    int i;
+    while ((b = is.read()) != -1)
+    {
+      os.write(b);
+    }
+    is.close();
+    byte[] data = os.toByteArray();
+    // Corrupt the CRC-32 of the first central directory entry
+    for (i = data.length - 22; i >= 0; i--)
+    {
+      if ((data[i] == 'P') && (data[i + 1] == 'K') && (data[i + 2] == 5) && (data[i + 3] == 6))
+        break;
+    }
+    int directoryOffset = ZIPReaderImpl.getIntLittle(data, i + 16);
+    data[directoryOffset + 16] ^= 0x55;
+    try
+    {
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      reader.setInput(ByteBuffer.wrap(data));
+      reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+      reader.setProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA, Boolean.TRUE);
+      assertEquals(DocumentStreamConstants.START_ELEMENT, reader.nextTag());
+      assertEquals(DocumentStreamConstants.DATA, reader.next());
+      int size = (int)reader.getDataSize();
+      reader.getData(new byte[size], 0, size);
+      fail();
+    } catch (DocumentStreamException e)
+    {
+      assertEquals(DocumentStreamException.ERR_CORRUPT_STREAM, e.getMessage().substring(0, DocumentStreamException.ERR_CORRUPT_STREAM.length()));
+    }
+  }
+
+  /** Returns a ZIP file containing a single deflated entry with the 
+   *  specified compressed data. 
+   */
+  protected static byte[] createDeflatedArchive(byte[] compressed, byte[] content)
+  {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    writeIntLittle(os, 0x04034b50);
+    writeShortLittle(os, 20);
+    writeShortLittle(os, 0);
+    writeShortLittle(os, 8);
+    writeIntLittle(os, 0);
+    writeIntLittle(os, (int) crc.getValue());
+    writeIntLittle(os, compressed.length);
+    writeIntLittle(os, content.length);
+    writeShortLittle(os, 5);
+    writeShortLittle(os, 0);
+    os.write('e');
+    os.write('n');
+    os.write('t');
+    os.write('r');
+    os.write('y');
+    os.write(compressed, 0, compressed.length);
+    int directoryOffset = os.size();
+    writeIntLittle(os, 0x02014b50);
+    writeShortLittle(os, 20);
+    writeShortLittle(os, 20);
+    writeShortLittle(os, 0);
+    writeShortLittle(os, 8);
+    writeIntLittle(os, 0);
+    writeIntLittle(os, (int) crc.getValue());
+    writeIntLittle(os, compressed.length);
+    writeIntLittle(os, content.length);
+    writeShortLittle(os, 5);
+    writeShortLittle(os, 0);
+    writeShortLittle(os, 0);
+    writeShortLittle(os, 0);
+    writeShortLittle(os, 0);
+    writeIntLittle(os, 0);
+    writeIntLittle(os, 0);
+    os.write('e');
+    os.write('n');
+    os.write('t');
+    os.write('r');
+    os.write('y');
+    int directoryLength = os.size() - directoryOffset;
+    writeIntLittle(os, 0x06054b50);
+    writeShortLittle(os, 0);
+    writeShortLittle(os, 0);
+    writeShortLittle(os, 1);
+    writeShortLittle(os, 1);
+    writeIntLittle(os, directoryLength);
+    writeIntLittle(os, directoryOffset);
+    writeShortLittle(os, 0);
+    return os.toByteArray();
+  }
+
+  /** Returns deflated data made of one stored block containing the 
+   *  specified content, followed by the specified number of extra bytes.
+   */
+  protected static byte[] createStoredBlock(byte[] content, boolean last, int extraLength)
+  {
+    byte[] data = new byte[5 + content.length + extraLength];
+    data[0] = (byte) (last ? 1 : 0);
+    data[1] = (byte) content.length;
+    data[2] = (byte) (content.length >>> 8);
+    data[3] = (byte) ~data[1];
+    data[4] = (byte) ~data[2];
+    System.arraycopy(content, 0, data, 5, content.length);
+    return data;
+  }
+
+  /** Reads the inflated data of the single entry of the specified ZIP file. */
+  protected static void readInflatedEntry(byte[] data, byte[] content) throws DocumentStreamException, IOException
+  {
+    ZIPReaderImpl reader = new ZIPReaderImpl();
+    reader.setInput(ByteBuffer.wrap(data));
+    reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+    reader.setProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA, Boolean.TRUE);
+    assertEquals(DocumentStreamConstants.START_ELEMENT, reader.nextTag());
+    assertEquals(DocumentStreamConstants.DATA, reader.next());
+    assertEquals(content.length, reader.getDataSize());
+    byte[] buffer = new byte[content.length];
+    reader.getData(buffer, 0, buffer.length);
+    TestUtilities.compareData(buffer, content, content.length);
+    reader.close();
+  }
+
+  /** Verify that deflated data that is not terminated, or that is followed 
+   *  by extra compressed data, is reported once the data has been read, and
+   *  that the uncompressed data is not returned as a slice of the input.
+   */
+  public void testInflateDataEnd() throws IOException
+  {
+    byte[] content = "Deflated data ending with the entry".getBytes("ISO-8859-1");
+    try
+    {
+      readInflatedEntry(createDeflatedArchive(createStoredBlock(content, true, 0), content), content);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    try
+    {
+      readInflatedEntry(createDeflatedArchive(createStoredBlock(content, false, 0), content), content);
+      fail();
+    } catch (DocumentStreamException e)
+    {
+      assertEquals(DocumentStreamException.ERR_CORRUPT_STREAM, e.getMessage().substring(0, DocumentStreamException.ERR_CORRUPT_STREAM.length()));
+    }
+    try
+    {
+      readInflatedEntry(createDeflatedArchive(createStoredBlock(content, true, 4), content), content);
+      fail();
+    } catch (DocumentStreamException e)
+    {
+      assertEquals(DocumentStreamException.ERR_CORRUPT_STREAM, e.getMessage().substring(0, DocumentStreamException.ERR_CORRUPT_STREAM.length()));
+    }
+
+    try
+    {
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      reader.setInput(ByteBuffer.wrap(createDeflatedArchive(createStoredBlock(content, true, 0), content)));
+      reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+      reader.setProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA, Boolean.TRUE);
+      assertEquals(DocumentStreamConstants.START_ELEMENT, reader.nextTag());
+      assertEquals(DocumentStreamConstants.DATA, reader.next());
+      try
+      {
+        reader.getDataSlice();
+        fail();
+      } catch (UnsupportedOperationException e)
+      {
+      }
+      ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+      assertEquals(content.length, reader.getData(buffer));
+      buffer.flip();
+      for (int i = 0; i < content.length; i++)
+      {
+        assertEquals(content[i], buffer.get(i));
+      }
+      reader.close();
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+  }
+
+  /** Input stream that does not support mark, so that the reader uses 
+   *  its streaming mode. 
+   */
+  protected static class NonSeekableInputStream extends FilterInputStream
+  {
+    public NonSeekableInputStream(InputStream in)
+    {
+      super(in);
+    }
+
+    public boolean markSupported()
+    {
+      return false;
+    }
+  }
+
+  /** Verify that the entries are read in file order from a stream that 
+   *  cannot seek, and that their uncompressed data is correct.
+   */
+  public void testCalgaryStreaming() throws IOException
+  {
+    byte[] expected = new byte[1024*1024];
+    int elementNr = 0;
+    try
+    {
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      reader.setInput(new NonSeekableInputStream(getClass().getResourceAsStream("/res/calgary_002.zip")), null);
+      TestUtilities.parse(reader,testCalgary00Elements);
+
+      File file = new File(getClass().getResource("/res/calgary_002.zip").getFile());
+      ZipFile zipFile = new ZipFile(file);
+      reader = new ZIPReaderImpl();
+      reader.setInput(new NonSeekableInputStream(getClass().getResourceAsStream("/res/calgary_002.zip")), null);
+      reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+      reader.setProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA, Boolean.TRUE);
+      while (reader.hasNext())
+      {
+        if (reader.next() == DocumentStreamConstants.DATA)
+        {
+          assertEquals(testCalgary00Elements[elementNr].id, reader.getId());
+          ZipEntry entry = zipFile.getEntry(reader.getId().toString());
+          int size = (int)entry.getSize();
+          assertEquals(size, reader.getDataSize());
+          DataInputStream is = new DataInputStream(zipFile.getInputStream(entry));
+          is.readFully(expected, 0, size);
+          is.close();
+          byte[] buffer = new byte[size];
+          reader.getData(buffer, 0, size);
+          TestUtilities.compareData(buffer, expected, size);
+          elementNr++;
+        }
+      }
+      zipFile.close();
+      reader.close();
+      assertEquals(testCalgary00Elements.length, elementNr);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+  }
+
+  /** Returns a ZIP file created by ZipOutputStream, which stores the sizes
+   *  of deflated entries in data descriptors, followed by a stored entry 
+   *  with a data descriptor that contains a data descriptor signature.
+   */
+  protected static byte[] createDescriptorArchive(byte[][] contents) throws IOException
+  {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    ZipOutputStream zos = new ZipOutputStream(os);
+    CRC32 crc = new CRC32();
+    for (int i = 0; i < contents.length - 1; i++)
+    {
+      ZipEntry entry = new ZipEntry("entry" + i);
+      if (i == 1)
+      {
+        // Stored entries written by ZipOutputStream have their sizes in the local header
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(contents[i].length);
+        crc.reset();
+        crc.update(contents[i]);
+        entry.setCrc(crc.getValue());
+      }
+      zos.putNextEntry(entry);
+      zos.write(contents[i]);
+      zos.closeEntry();
+    }
+    zos.finish();
+    byte[] data = os.toByteArray();
+    // Replace the central directory by a stored entry with a data descriptor
+    int i;
+    for (i = data.length - 4; i >= 0; i--)
+    {
+      if ((data[i] == 'P') && (data[i + 1] == 'K') && (data[i + 2] == 5) && (data[i + 3] == 6))
+        break;
+    }
+    os.reset();
+    os.write(data, 0, ZIPReaderImpl.getIntLittle(data, i + 16));
+    byte[] content = contents[contents.length - 1];
+    byte[] name = ("entry" + (contents.length - 1)).getBytes("UTF-8");
+    crc.reset();
+    crc.update(content);
+    writeIntLittle(os, 0x04034b50);
+    writeShortLittle(os, 10);
+    writeShortLittle(os, 0x0008);
+    writeShortLittle(os, 0);
+    writeIntLittle(os, 0);
+    writeIntLittle(os, 0);
+    writeIntLittle(os, 0);
+    writeIntLittle(os, 0);
+    writeShortLittle(os, name.length);
+    writeShortLittle(os, 0);
+    os.write(name);
+    os.write(content);
+    writeIntLittle(os, 0x08074b50);
+    writeIntLittle(os, (int) crc.getValue());
+    writeIntLittle(os, content.length);
+    writeIntLittle(os, content.length);
+    return os.toByteArray();
+  }
+
+  protected static void writeShortLittle(ByteArrayOutputStream os, int value)
+  {
+    os.write(value & 0xFF);
+    os.write((value >>> 8) & 0xFF);
+  }
+
+  protected static void writeIntLittle(ByteArrayOutputStream os, int value)
+  {
+    writeShortLittle(os, value & 0xFFFF);
+    writeShortLittle(os, (value >>> 16) & 0xFFFF);
+  }
+
+  /** Reads the data of the current entry, when its size is not known, it
+   *  is read in blocks until less data than requested is returned.
+   */
+  protected static byte[] readData(ZIPReaderImpl reader, int blockSize) throws DocumentStreamException, IOException
+  {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] block = new byte[blockSize];
+    int length;
+    if (reader.getDataSize() != -1)
+    {
+      block = new byte[(int) reader.getDataSize()];
+      reader.getData(block, 0, block.length);
+      return block;
+    }
+    do
+    {
+      length = reader.getData(block, 0, block.length);
+      os.write(block, 0, length);
+    } while (length == block.length);
+    return os.toByteArray();
+  }
+
+  /** Verify that in streaming mode, the data of entries whose sizes are 
+   *  stored in data descriptors is read until its end, whether the data is
+   *  deflated or stored.
+   */
+  public void testStreamingDataDescriptor() throws IOException
+  {
+    byte[][] contents = new byte[4][];
+    StringBuffer text = new StringBuffer();
+    for (int i = 0; i < 2000; i++)
+    {
+      text.append("Line " + i + " of the streamed entry\n");
+    }
+    contents[0] = text.toString().getBytes("ISO-8859-1");
+    contents[1] = "Stored entry".getBytes("ISO-8859-1");
+    contents[2] = new byte[0];
+    // The data contains a data descriptor signature that does not end it
+    contents[3] = new byte[] { 1, 2, 'P', 'K', 7, 8, 0, 0, 0, 0, 3, 4, 0, 0, 0, 0, 5 };
+    byte[] data = createDescriptorArchive(contents);
+    try
+    {
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      reader.setInput(new NonSeekableInputStream(new ByteArrayInputStream(data)), null);
+      reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+      reader.setProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA, Boolean.TRUE);
+      int elementNr = 0;
+      while (reader.hasNext())
+      {
+        if (reader.next() == DocumentStreamConstants.DATA)
+        {
+          assertEquals("entry" + elementNr, reader.getId());
+          byte[] expected = contents[elementNr];
+          // Only the stored entry written by ZipOutputStream has its sizes in the local header
+          assertEquals((elementNr == 1) ? expected.length : -1, reader.getDataSize());
+          byte[] buffer = readData(reader, 1000);
+          TestUtilities.compareData(buffer, expected, expected.length);
+          if (elementNr != 1)
+          {
+            assertEquals(0, reader.getData(buffer, 0, buffer.length));
+          }
+          elementNr++;
+        }
+      }
+      reader.close();
+      assertEquals(contents.length, elementNr);
+
+      // The lines are read until the end of the data is found
+      reader = new ZIPReaderImpl();
+      reader.setInput(new NonSeekableInputStream(new ByteArrayInputStream(data)), null);
+      reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+      reader.setProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA, Boolean.TRUE);
+      assertEquals(DocumentStreamConstants.START_ELEMENT, reader.nextTag());
+      assertEquals(DocumentStreamConstants.DATA, reader.next());
+      for (int i = 0; i < 2000; i++)
+      {
+        assertEquals("Line " + i + " of the streamed entry", reader.getDataInput().readLine());
+      }
+      assertNull(reader.getDataInput().readLine());
+      assertEquals(DocumentStreamConstants.START_ELEMENT, reader.nextTag());
+      assertEquals("entry1", reader.getId());
+      reader.close();
+
+      // The compressed data is returned when the entries are not inflated
+      reader = new ZIPReaderImpl();
+      reader.setInput(ByteBuffer.wrap(data));
+      reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+      reader.setProperty(ZIPReaderImpl.PROPERTY_STREAMING, Boolean.TRUE);
+      assertEquals(DocumentStreamConstants.START_ELEMENT, reader.nextTag());
+      assertEquals(DocumentStreamConstants.DATA, reader.next());
+      assertEquals(-1, reader.getDataSize());
+      byte[] buffer = readData(reader, 100);
+      Inflater inflater = new Inflater(true);
+      inflater.setInput(buffer);
+      byte[] inflated = new byte[contents[0].length];
+      assertEquals(inflated.length, inflater.inflate(inflated));
+      assertTrue(inflater.finished());
+      assertEquals(0, inflater.getRemaining());
+      inflater.end();
+      TestUtilities.compareData(inflated, contents[0], inflated.length);
+      elementNr = 1;
+      while (reader.nextTag() == DocumentStreamConstants.START_ELEMENT)
+      {
+        assertEquals("entry" + elementNr, reader.getId());
+        elementNr++;
+      }
+      assertEquals(contents.length, elementNr);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (DataFormatException e)
+    {
+      fail();
+    }
+
+    // The CRC-32 of the data descriptor is verified
+    data[data.length - 12]++;
+    try
+    {
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      reader.setInput(new NonSeekableInputStream(new ByteArrayInputStream(data)), null);
+      reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+      reader.setProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA, Boolean.TRUE);
+      while (reader.hasNext())
+      {
+        reader.next();
+      }
+      fail();
+    } catch (DocumentStreamException e)
+    {
+      assertEquals(DocumentStreamException.ERR_CORRUPT_STREAM, e.getMessage().substring(0, DocumentStreamException.ERR_CORRUPT_STREAM.length()));
+    }
+  }
+
+  /** Verify that entries with data descriptors that are much larger than 
+   *  the look-ahead window are read without seeking backwards, whether 
+   *  their data is read in blocks, into a buffer, transferred, or skipped.
+   */
+  public void testStreamingLargeEntries() throws IOException
+  {
+    byte[][] contents = new byte[4][];
+    contents[0] = ZipCheckpointIndexTest.createData(300000);
+    contents[1] = "Stored entry".getBytes("ISO-8859-1");
+    contents[2] = ZipCheckpointIndexTest.createData(200000);
+    contents[3] = ZipCheckpointIndexTest.createData(150000);
+    // Data descriptor signatures that do not end the data, around the blocks read ahead
+    for (int i = 8190; i < contents[3].length; i += 8190)
+    {
+      contents[3][i] = 'P';
+      contents[3][i + 1] = 'K';
+      contents[3][i + 2] = 7;
+      contents[3][i + 3] = 8;
+    }
+    byte[] data = createDescriptorArchive(contents);
+    int[] windowSizes = new int[] { 1024, 65536 };
+    try
+    {
+      for (int i = 0; i < windowSizes.length; i++)
+      {
+        ZIPReaderImpl reader = new ZIPReaderImpl();
+        reader.setStreamingInput(new ByteArrayInputStream(data), windowSizes[i]);
+        reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+        reader.setProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA, Boolean.TRUE);
+        assertEquals(DocumentStreamConstants.START_ELEMENT, reader.nextTag());
+        assertEquals(DocumentStreamConstants.DATA, reader.next());
+        assertEquals(-1, reader.getDataSize());
+        byte[] buffer = readData(reader, 1000);
+        assertEquals(contents[0].length, buffer.length);
+        TestUtilities.compareData(buffer, contents[0], buffer.length);
+
+        // The data of the skipped entry is not read
+        assertEquals(DocumentStreamConstants.START_ELEMENT, reader.nextTag());
+        assertEquals("entry1", reader.getId());
+        assertEquals(DocumentStreamConstants.START_ELEMENT, reader.nextTag());
+        assertEquals("entry2", reader.getId());
+        assertEquals(DocumentStreamConstants.START_ELEMENT, reader.nextTag());
+        assertEquals("entry3", reader.getId());
+        assertEquals(DocumentStreamConstants.DATA, reader.next());
+        ByteBuffer target = ByteBuffer.allocateDirect(100000);
+        assertEquals(target.capacity(), reader.getData(target));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertEquals(contents[3].length - target.capacity(), reader.transferData(Channels.newChannel(os)));
+        assertEquals(0, reader.getData(target));
+        buffer = new byte[contents[3].length];
+        target.flip();
+        target.get(buffer, 0, target.capacity());
+        System.arraycopy(os.toByteArray(), 0, buffer, target.capacity(), os.size());
+        TestUtilities.compareData(buffer, contents[3], buffer.length);
+        assertEquals(DocumentStreamConstants.END_ELEMENT, reader.next());
+        assertEquals(DocumentStreamConstants.END_DOCUMENT, reader.next());
+        reader.close();
+
+        // The compressed data is returned when the entries are not inflated
+        reader = new ZIPReaderImpl();
+        reader.setStreamingInput(new ByteArrayInputStream(data), windowSizes[i]);
+        reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+        int elementNr = 0;
+        while (reader.nextTag() == DocumentStreamConstants.START_ELEMENT)
+        {
+          assertEquals(DocumentStreamConstants.DATA, reader.next());
+          buffer = readData(reader, 5000);
+          if ((elementNr == 0) || (elementNr == 2))
+          {
+            Inflater inflater = new Inflater(true);
+            inflater.setInput(buffer);
+            byte[] inflated = new byte[contents[elementNr].length];
+            assertEquals(inflated.length, inflater.inflate(inflated));
+            assertTrue(inflater.finished());
+            assertEquals(0, inflater.getRemaining());
+            inflater.end();
+            buffer = inflated;
+          }
+          assertEquals(contents[elementNr].length, buffer.length);
+          TestUtilities.compareData(buffer, contents[elementNr], buffer.length);
+          elementNr++;
+        }
+        reader.close();
+        assertEquals(contents.length, elementNr);
+      }
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (DataFormatException e)
+    {
+      fail();
+    }
+  }
+
 }
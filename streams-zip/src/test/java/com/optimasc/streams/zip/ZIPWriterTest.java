@@ -1,15 +1,34 @@
 package com.optimasc.streams.zip;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import com.optimasc.io.FileDataOutputStream;
+import com.optimasc.streams.Attribute;
 import com.optimasc.streams.TestUtilities;
 import com.optimasc.streams.DefaultStreamFilter;
+import com.optimasc.streams.DocumentStreamConstants;
 import com.optimasc.streams.DocumentStreamException;
+import com.optimasc.streams.internal.LookAheadInputStream;
+import com.optimasc.streams.internal.ResourceType;
+import com.optimasc.zip.ZIPCRC32;
 import com.optimasc.zip.ZIPReaderImpl;
+import com.optimasc.zip.ZIPUtilities;
 import com.optimasc.zip.ZIPWriterImpl;
 
 import junit.framework.TestCase;
@@ -54,4 +73,431 @@ public class ZIPWriterTest extends TestCase
         fail();
     }
   }
+
+  /** Verify that the ZIP64 end of central directory record is written
+   *  when there are too many entries for the standard record, and that
+   *  the archive can be read back.
+   */
+  public void testZip64Entries()
+  {
+    byte[] data = new byte[1];
+    int count = ZIPUtilities.ZIP64_LIMIT_ENTRIES;
+    int i;
+    try {
+        OutputStream stream = new FileDataOutputStream("zip64.zip");
+        ZIPWriterImpl writer = new ZIPWriterImpl();
+        writer.setOutput(stream, null);
+        writer.writeStartDocument("");
+        for (i = 0; i < count; i++)
+        {
+          data[0] = (byte) i;
+          writer.writeStartElement("entry" + i, null);
+          writer.write(data, 0, 1);
+          writer.writeEndElement();
+        }
+        writer.writeEndDocument();
+        stream.close();
+        
+        ZipFile zipFile = new ZipFile("zip64.zip");
+        assertEquals(count, zipFile.size());
+        InputStream is = zipFile.getInputStream(zipFile.getEntry("entry" + (count - 1)));
+        assertEquals((count - 1) & 0xFF, is.read());
+        is.close();
+        zipFile.close();
+        
+        ZIPReaderImpl reader = new ZIPReaderImpl();
+        RandomAccessFile file = new RandomAccessFile("zip64.zip", "r");
+        reader.setInput(file.getChannel());
+        reader.setProperty(ZIPReaderImpl.PROPERTY_HEADER_RESOLUTION, new Integer(ZIPReaderImpl.RESOLVE_LAZY));
+        i = 0;
+        while (reader.nextTag() == DocumentStreamConstants.START_ELEMENT)
+        {
+          assertEquals("entry" + i, reader.getId());
+          i++;
+        }
+        assertEquals(count, i);
+        file.close();
+        new File("zip64.zip").delete();
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (IOException e) 
+    {
+      fail();
+    }
+  }
+
+  /** Verify that a central directory larger than the memory buffer of 
+   *  the writer is moved to a temporary file and written back unchanged,
+   *  in the order of the entries.
+   */
+  public void testLargeDirectory() throws IOException
+  {
+    byte[] data = new byte[2];
+    String prefix = "directory/with/a/rather/long/path/to/the/entry";
+    int count = 20000;
+    int i;
+    OutputStream stream = new FileDataOutputStream("largedir.zip");
+    ZIPWriterImpl writer = new ZIPWriterImpl();
+    writer.setOutput(stream, null);
+    writer.writeStartDocument("");
+    for (i = 0; i < count; i++)
+    {
+      data[0] = (byte) i;
+      data[1] = (byte) (i >> 8);
+      writer.writeStartElement(prefix + i, null);
+      writer.write(data, 0, data.length);
+      writer.writeEndElement();
+    }
+    writer.writeEndDocument();
+    stream.close();
+
+    /* More than 1 MB of central directory records */
+    assertTrue(count * (46 + prefix.length()) > 1024 * 1024);
+    ZipFile zipFile = new ZipFile("largedir.zip");
+    assertEquals(count, zipFile.size());
+    for (i = 0; i < count; i += 997)
+    {
+      ZipEntry entry = zipFile.getEntry(prefix + i);
+      assertNotNull(entry);
+      assertEquals(data.length, entry.getSize());
+      InputStream is = zipFile.getInputStream(entry);
+      assertEquals(i & 0xFF, is.read());
+      assertEquals((i >> 8) & 0xFF, is.read());
+      is.close();
+    }
+    zipFile.close();
+    
+    ZipInputStream zis = new ZipInputStream(new FileInputStream("largedir.zip"));
+    i = 0;
+    ZipEntry entry;
+    while ((entry = zis.getNextEntry()) != null)
+    {
+      assertEquals(prefix + i, entry.getName());
+      i++;
+    }
+    zis.close();
+    assertEquals(count, i);
+    new File("largedir.zip").delete();
+  }
+
+  /** Verify that entries can be added to an archive created by another
+   *  writer, and then again to the resulting archive, and that the file 
+   *  is left untouched if it is not a ZIP archive.
+   */
+  public void testAppend() throws IOException
+  {
+    byte[] data = ZipCheckpointIndexTest.createData(100000);
+    int i;
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream("append.zip"));
+    zos.setComment("Existing archive");
+    for (i = 0; i < 3; i++)
+    {
+      zos.putNextEntry(new ZipEntry("existing" + i));
+      zos.write(data, 0, 1000 * (i + 1));
+      zos.closeEntry();
+    }
+    zos.close();
+    
+    for (i = 0; i < 2; i++)
+    {
+      long length = new File("append.zip").length();
+      RandomAccessFile file = new RandomAccessFile("append.zip", "rw");
+      ZIPWriterImpl writer = new ZIPWriterImpl();
+      writer.setCompression(ZIPUtilities.COMPRESSION_DEFLATE, Deflater.DEFAULT_COMPRESSION);
+      writer.setAppendOutput(file);
+      /* The new entries overwrite the central directory */
+      assertTrue(file.getFilePointer() < length);
+      writer.writeStartDocument("");
+      writer.writeStartElement("added" + i, null);
+      writer.write(data, 0, data.length);
+      writer.writeEndElement();
+      writer.writeEndDocument();
+      file.close();
+    }
+
+    ZipFile zipFile = new ZipFile("append.zip");
+    assertEquals(5, zipFile.size());
+    for (i = 0; i < 3; i++)
+    {
+      byte[] result = ZipParallelProcessorTest.readEntry(zipFile, "existing" + i);
+      assertEquals(1000 * (i + 1), result.length);
+      TestUtilities.compareData(result, data, result.length);
+    }
+    for (i = 0; i < 2; i++)
+    {
+      byte[] result = ZipParallelProcessorTest.readEntry(zipFile, "added" + i);
+      assertEquals(data.length, result.length);
+      TestUtilities.compareData(result, data, result.length);
+    }
+    zipFile.close();
+    new File("append.zip").delete();
+    
+    FileOutputStream fos = new FileOutputStream("notazip.bin");
+    fos.write(data);
+    fos.close();
+    RandomAccessFile file = new RandomAccessFile("notazip.bin", "rw");
+    try
+    {
+      new ZIPWriterImpl().setAppendOutput(file);
+      fail();
+    } catch (IOException e)
+    {
+    }
+    file.close();
+    assertEquals(data.length, new File("notazip.bin").length());
+    new File("notazip.bin").delete();
+  }
+
+  /** Sizes of the entries written by the compression tests, which
+   *  include empty entries and entries of exactly two blocks. */
+  static final int[] ENTRY_SIZES = { 0, 1, 100000, 2 * 131072, 700001 };
+
+  /** Verify that the entries deflated by the writer, by one or several 
+   *  threads, can be read back from the central directory and from the
+   *  local headers.
+   */
+  public void testDeflate() throws IOException
+  {
+    checkDeflate(1);
+    checkDeflate(4);
+  }
+
+  /** Writes deflated entries with the specified number of threads and 
+   *  compares them with the written data.
+   */
+  protected void checkDeflate(int threadCount) throws IOException
+  {
+    byte[] data = ZipCheckpointIndexTest.createData(ENTRY_SIZES[ENTRY_SIZES.length - 1]);
+    OutputStream stream = new FileDataOutputStream("deflate.zip");
+    ZIPWriterImpl writer = new ZIPWriterImpl();
+    writer.setOutput(stream, null);
+    writer.setCompression(ZIPUtilities.COMPRESSION_DEFLATE, 6);
+    writer.setThreadCount(threadCount);
+    writer.writeStartDocument("");
+    for (int i = 0; i < ENTRY_SIZES.length; i++)
+    {
+      writer.writeStartElement("entry" + i, null);
+      // Write the data in pieces that do not match the blocks
+      for (int j = 0; j < ENTRY_SIZES[i]; j += 10000)
+      {
+        writer.write(data, j, Math.min(10000, ENTRY_SIZES[i] - j));
+      }
+      writer.writeEndElement();
+    }
+    // The writer can also store entries
+    writer.setCompression(ZIPUtilities.COMPRESSION_NONE, 0);
+    writer.writeStartElement("stored", null);
+    writer.write(data, 0, 1000);
+    writer.writeEndElement();
+    writer.writeEndDocument();
+    writer.close();
+
+    ZipFile zipFile = new ZipFile("deflate.zip");
+    assertEquals(ENTRY_SIZES.length + 1, zipFile.size());
+    for (int i = 0; i < ENTRY_SIZES.length; i++)
+    {
+      ZipEntry entry = zipFile.getEntry("entry" + i);
+      assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+      assertEquals(ENTRY_SIZES[i], entry.getSize());
+      byte[] result = ZipParallelProcessorTest.readEntry(zipFile, entry.getName());
+      assertEquals(ENTRY_SIZES[i], result.length);
+      TestUtilities.compareData(result, data, result.length);
+    }
+    assertEquals(ZipEntry.STORED, zipFile.getEntry("stored").getMethod());
+    zipFile.close();
+
+    // The local headers must give the same information
+    ZipInputStream zis = new ZipInputStream(new FileInputStream("deflate.zip"));
+    for (int i = 0; i < ENTRY_SIZES.length; i++)
+    {
+      ZipEntry entry = zis.getNextEntry();
+      assertEquals("entry" + i, entry.getName());
+      assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+      byte[] result = ZipParallelProcessorTest.readAll(zis);
+      assertEquals(ENTRY_SIZES[i], result.length);
+      TestUtilities.compareData(result, data, result.length);
+    }
+    assertEquals("stored", zis.getNextEntry().getName());
+    zis.close();
+    new File("deflate.zip").delete();
+  }
+
+  /** Verify that data compressed beforehand is written with the 
+   *  compression method, size and CRC-32 of its attributes.
+   */
+  public void testCompressedAttributes() throws IOException
+  {
+    byte[] data = ZipCheckpointIndexTest.createData(50000);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    DeflaterOutputStream dos = new DeflaterOutputStream(compressed, new Deflater(9, true));
+    dos.write(data);
+    dos.close();
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    
+    OutputStream stream = new FileDataOutputStream("compressed.zip");
+    ZIPWriterImpl writer = new ZIPWriterImpl();
+    writer.setOutput(stream, null);
+    writer.writeStartDocument("");
+    writer.writeStartElement("compressed", new Attribute[] {
+        new Attribute("", ResourceType.ATTRIBUTE_NAME_COMPRESSION_TYPE, "Deflate"),
+        new Attribute("", ResourceType.ATTRIBUTE_NAME_SIZE, Integer.toString(data.length)),
+        new Attribute("", ResourceType.ATTRIBUTE_NAME_HASH_VALUE, Long.toHexString(crc.getValue())) });
+    writer.write(compressed.toByteArray());
+    writer.writeEndElement();
+    writer.writeEndDocument();
+    writer.close();
+
+    ZipFile zipFile = new ZipFile("compressed.zip");
+    ZipEntry entry = zipFile.getEntry("compressed");
+    assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+    assertEquals(data.length, entry.getSize());
+    assertEquals(compressed.size(), entry.getCompressedSize());
+    byte[] result = ZipParallelProcessorTest.readEntry(zipFile, "compressed");
+    assertEquals(data.length, result.length);
+    TestUtilities.compareData(result, data, result.length);
+    zipFile.close();
+    new File("compressed.zip").delete();
+  }
+
+  /** Verify that the CRC-32 of concatenated blocks is combined correctly. */
+  public void testCrcCombine()
+  {
+    byte[] data = ZipCheckpointIndexTest.createData(100000);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    int[] splits = { 0, 1, 4000, 65536, 99999, 100000 };
+    for (int i = 0; i < splits.length; i++)
+    {
+      CRC32 crc1 = new CRC32();
+      CRC32 crc2 = new CRC32();
+      crc1.update(data, 0, splits[i]);
+      crc2.update(data, splits[i], data.length - splits[i]);
+      assertEquals(crc.getValue(), ZIPCRC32.combine(crc1.getValue(), crc2.getValue(), data.length - splits[i]));
+    }
+  }
+
+  /** Verify that an archive written to a stream that cannot seek uses
+   *  data descriptors, and can be read by java.util.zip and by the 
+   *  streaming reader.
+   */
+  public void testStreaming() throws IOException
+  {
+    byte[] data = ZipCheckpointIndexTest.createData(ENTRY_SIZES[ENTRY_SIZES.length - 1]);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    ZIPWriterImpl writer = new ZIPWriterImpl();
+    writer.setOutput(stream, null);
+    writer.setCompression(ZIPUtilities.COMPRESSION_DEFLATE, 6);
+    writer.writeStartDocument("");
+    for (int i = 0; i < ENTRY_SIZES.length; i++)
+    {
+      writer.writeStartElement("entry" + i, null);
+      writer.write(data, 0, ENTRY_SIZES[i]);
+      writer.writeEndElement();
+    }
+    // Without attributes, the entries are still deflated
+    writer.setCompression(ZIPUtilities.COMPRESSION_NONE, 0);
+    writer.writeStartElement("default", null);
+    writer.write(data, 0, 1000);
+    writer.writeEndElement();
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, 1000);
+    writer.writeStartElement("stored", new Attribute[] {
+        new Attribute("", ResourceType.ATTRIBUTE_NAME_COMPRESSION_TYPE,
+            ZIPUtilities.compressionToString(ZIPUtilities.COMPRESSION_NONE)),
+        new Attribute("", ResourceType.ATTRIBUTE_NAME_SIZE, "1000"),
+        new Attribute("", ResourceType.ATTRIBUTE_NAME_HASH_VALUE, Long.toHexString(crc.getValue())) });
+    writer.write(data, 0, 1000);
+    writer.writeEndElement();
+    writer.writeEndDocument();
+    writer.close();
+    byte[] archive = stream.toByteArray();
+
+    // The local headers of the deflated entries do not contain the sizes
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive));
+    for (int i = 0; i < ENTRY_SIZES.length + 2; i++)
+    {
+      int size = (i < ENTRY_SIZES.length) ? ENTRY_SIZES[i] : 1000;
+      ZipEntry entry = zis.getNextEntry();
+      if (i < ENTRY_SIZES.length)
+        assertEquals("entry" + i, entry.getName());
+      else if (i == ENTRY_SIZES.length)
+        assertEquals("default", entry.getName());
+      else
+        assertEquals("stored", entry.getName());
+      if (i <= ENTRY_SIZES.length)
+      {
+        assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+        assertEquals(-1, entry.getSize());
+      } else
+      {
+        assertEquals(ZipEntry.STORED, entry.getMethod());
+        assertEquals(1000, entry.getSize());
+        assertEquals(crc.getValue(), entry.getCrc());
+      }
+      byte[] result = ZipParallelProcessorTest.readAll(zis);
+      assertEquals(size, result.length);
+      TestUtilities.compareData(result, data, result.length);
+    }
+    assertNull(zis.getNextEntry());
+    zis.close();
+
+    FileOutputStream fos = new FileOutputStream("streaming.zip");
+    fos.write(archive);
+    fos.close();
+    ZipFile zipFile = new ZipFile("streaming.zip");
+    assertEquals(ENTRY_SIZES.length + 2, zipFile.size());
+    for (int i = 0; i < ENTRY_SIZES.length; i++)
+    {
+      byte[] result = ZipParallelProcessorTest.readEntry(zipFile, "entry" + i);
+      assertEquals(ENTRY_SIZES[i], result.length);
+      TestUtilities.compareData(result, data, result.length);
+    }
+    assertEquals(1000, ZipParallelProcessorTest.readEntry(zipFile, "default").length);
+    assertEquals(1000, ZipParallelProcessorTest.readEntry(zipFile, "stored").length);
+    zipFile.close();
+    new File("streaming.zip").delete();
+
+    try
+    {
+      ZIPReaderImpl reader = new ZIPReaderImpl();
+      // The entries are larger than the look-ahead window
+      reader.setStreamingInput(new ByteArrayInputStream(archive), LookAheadInputStream.DEFAULT_WINDOW_SIZE);
+      reader.setErrorHandler(new TestUtilities.TestErrorHandler());
+      reader.setProperty(ZIPReaderImpl.PROPERTY_INFLATE_DATA, Boolean.TRUE);
+      int elementNr = 0;
+      while (reader.hasNext())
+      {
+        if (reader.next() == DocumentStreamConstants.DATA)
+        {
+          int size = (elementNr < ENTRY_SIZES.length) ? ENTRY_SIZES[elementNr] : 1000;
+          // The sizes of the deflated entries are only known once their data has been read
+          assertEquals((elementNr <= ENTRY_SIZES.length) ? -1 : size, reader.getDataSize());
+          byte[] buffer = ZIPReaderTest.readData(reader, 4096);
+          TestUtilities.compareData(buffer, data, size);
+          elementNr++;
+        }
+      }
+      reader.close();
+      assertEquals(ENTRY_SIZES.length + 2, elementNr);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+
+    // Stored entries without their size and CRC-32 cannot be streamed
+    writer = new ZIPWriterImpl();
+    writer.setOutput(new ByteArrayOutputStream(), null);
+    writer.writeStartDocument("");
+    try
+    {
+      writer.writeStartElement("stored", new Attribute[] {
+          new Attribute("", ResourceType.ATTRIBUTE_NAME_COMPRESSION_TYPE,
+              ZIPUtilities.compressionToString(ZIPUtilities.COMPRESSION_NONE)) });
+      fail();
+    } catch (IllegalArgumentException e)
+    {
+    }
+  }
 }
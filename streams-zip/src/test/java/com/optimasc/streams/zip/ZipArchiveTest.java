@@ -0,0 +1,266 @@
+package com.optimasc.streams.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.optimasc.streams.DocumentStreamException;
+import com.optimasc.streams.TestUtilities;
+import com.optimasc.zip.ZipArchive;
+
+import junit.framework.TestCase;
+
+public class ZipArchiveTest extends TestCase
+{
+
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+  }
+
+  protected void tearDown() throws Exception
+  {
+    super.tearDown();
+  }
+
+  /** Verify that each entry can be found by its name, and that its
+   *  data is the uncompressed data of the entry.
+   */
+  public void testCalgaryOpenEntry() throws IOException
+  {
+    File file = new File(getClass().getResource("/res/calgary_002.zip").getFile());
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    ZipFile zipFile = new ZipFile(file);
+    try
+    {
+      ZipArchive archive = new ZipArchive(input.getChannel());
+      assertEquals(zipFile.size(), archive.getEntryCount());
+      // Open them in reverse order, since the order must not matter
+      for (int i = ZIPReaderTest.testCalgary00Elements.length - 1; i >= 0; i--)
+      {
+        String name = ZIPReaderTest.testCalgary00Elements[i].id;
+        byte[] expected = ZipParallelProcessorTest.readEntry(zipFile, name);
+        int index = archive.indexOf(name);
+        assertTrue(index >= 0);
+        assertEquals(name, archive.getEntryName(index));
+        assertEquals(expected.length, archive.getEntrySize(index));
+        InputStream is = archive.openEntry(name);
+        byte[] data = ZipParallelProcessorTest.readAll(is);
+        is.close();
+        assertEquals(expected.length, data.length);
+        TestUtilities.compareData(data, expected, expected.length);
+      }
+      assertEquals(-1, archive.indexOf("missing"));
+      assertNull(archive.openEntry("missing"));
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    zipFile.close();
+    input.close();
+  }
+
+  /** Verify that several threads can read entries of the same archive
+   *  at the same time.
+   */
+  public void testCalgaryConcurrent() throws Exception
+  {
+    File file = new File(getClass().getResource("/res/calgary_002.zip").getFile());
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    final ZipFile zipFile = new ZipFile(file);
+    final ZipArchive archive = new ZipArchive(input.getChannel());
+    final Exception[] failures = new Exception[4];
+    Thread[] threads = new Thread[failures.length];
+    for (int i = 0; i < threads.length; i++)
+    {
+      final int thread = i;
+      threads[i] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            for (int j = 0; j < ZIPReaderTest.testCalgary00Elements.length; j++)
+            {
+              // Each thread starts with a different entry
+              String name = ZIPReaderTest.testCalgary00Elements[(j + thread * 5) %
+                  ZIPReaderTest.testCalgary00Elements.length].id;
+              byte[] expected;
+              synchronized (zipFile)
+              {
+                expected = ZipParallelProcessorTest.readEntry(zipFile, name);
+              }
+              InputStream is = archive.openEntry(name);
+              byte[] data = ZipParallelProcessorTest.readAll(is);
+              is.close();
+              if (data.length != expected.length)
+                throw new IOException("Invalid size for " + name);
+              for (int k = 0; k < data.length; k++)
+              {
+                if (data[k] != expected[k])
+                  throw new IOException("Invalid data for " + name);
+              }
+            }
+          } catch (Exception e)
+          {
+            failures[thread] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++)
+    {
+      threads[i].join();
+      assertNull(failures[i]);
+    }
+    zipFile.close();
+    input.close();
+  }
+
+  /** Verify that the data of stored entries can be transferred directly
+   *  from the file, with and without the CRC-32 verification.
+   */
+  public void testStoredTransfer() throws Exception
+  {
+    byte[] data = ZipCheckpointIndexTest.createData(100000);
+    File file = File.createTempFile("stored", ".zip");
+    file.deleteOnExit();
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    ZipEntry entry = new ZipEntry("stored");
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(data.length);
+    entry.setCompressedSize(data.length);
+    entry.setCrc(crc.getValue());
+    zos.putNextEntry(entry);
+    zos.write(data);
+    zos.closeEntry();
+    zos.putNextEntry(new ZipEntry("deflated"));
+    zos.write(data);
+    zos.closeEntry();
+    zos.close();
+
+    RandomAccessFile input = new RandomAccessFile(file, "rw");
+    ZipArchive archive = new ZipArchive(input.getChannel());
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    assertEquals(data.length, archive.transferEntry("stored", Channels.newChannel(os), true));
+    assertEquals(data.length, os.size());
+    TestUtilities.compareData(os.toByteArray(), data, data.length);
+    assertEquals(-1, archive.transferEntry("missing", Channels.newChannel(os), true));
+
+    // The region can also be read directly
+    int index = archive.indexOf("stored");
+    long offset = archive.getStoredDataOffset(index);
+    ByteBuffer buffer = ByteBuffer.allocate(16);
+    input.getChannel().read(buffer, offset + 1000);
+    for (int i = 0; i < buffer.capacity(); i++)
+      assertEquals(data[1000 + i], buffer.get(i));
+
+    try
+    {
+      archive.transferEntry("deflated", Channels.newChannel(os), false);
+      fail();
+    } catch (IOException e)
+    {
+    }
+
+    // Corrupt the data, which is only detected when verified
+    input.seek(offset + 500);
+    input.write(data[500] ^ 0xFF);
+    os.reset();
+    try
+    {
+      archive.transferEntry(index, Channels.newChannel(os), true);
+      fail();
+    } catch (IOException e)
+    {
+    }
+    assertEquals(0, os.size());
+    assertEquals(data.length, archive.transferEntry(index, Channels.newChannel(os), false));
+    assertEquals(data.length, os.size());
+    input.close();
+  }
+
+  /** Channel that accepts a limited number of bytes, and then no more. */
+  static class LimitedChannel implements WritableByteChannel
+  {
+    int left;
+
+    LimitedChannel(int limit)
+    {
+      left = limit;
+    }
+
+    public int write(ByteBuffer src)
+    {
+      int count = Math.min(left, src.remaining());
+      src.position(src.position() + count);
+      left -= count;
+      return count;
+    }
+
+    public boolean isOpen()
+    {
+      return true;
+    }
+
+    public void close()
+    {
+    }
+  }
+
+  /** Verify that the transfer stops when the target channel does not
+   *  accept data anymore, and that non-blocking channels are rejected.
+   */
+  public void testPartialTransfer() throws Exception
+  {
+    byte[] data = ZipCheckpointIndexTest.createData(100000);
+    File file = File.createTempFile("stored", ".zip");
+    file.deleteOnExit();
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    ZipEntry entry = new ZipEntry("stored");
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(data.length);
+    entry.setCompressedSize(data.length);
+    entry.setCrc(crc.getValue());
+    zos.putNextEntry(entry);
+    zos.write(data);
+    zos.closeEntry();
+    zos.close();
+
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    ZipArchive archive = new ZipArchive(input.getChannel());
+    assertEquals(0, archive.transferEntry("stored", new LimitedChannel(0), false));
+    assertEquals(1000, archive.transferEntry("stored", new LimitedChannel(1000), false));
+    assertEquals(data.length, archive.transferEntry("stored", new LimitedChannel(data.length + 1), true));
+
+    Pipe pipe = Pipe.open();
+    pipe.sink().configureBlocking(false);
+    try
+    {
+      archive.transferEntry("stored", pipe.sink(), false);
+      fail();
+    } catch (IllegalArgumentException e)
+    {
+    }
+    pipe.sink().close();
+    pipe.source().close();
+    input.close();
+  }
+
+}
@@ -0,0 +1,236 @@
+package com.optimasc.streams.zip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.optimasc.streams.DocumentStreamException;
+import com.optimasc.streams.TestUtilities;
+import com.optimasc.zip.ZipArchive;
+import com.optimasc.zip.ZipCheckpointIndex;
+
+import junit.framework.TestCase;
+
+public class ZipCheckpointIndexTest extends TestCase
+{
+
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+  }
+
+  protected void tearDown() throws Exception
+  {
+    super.tearDown();
+  }
+
+  /** Verify that the data of the deflated entries can be read from
+   *  any position with a checkpoint index.
+   */
+  public void testCalgaryCheckpoints() throws IOException
+  {
+    File file = new File(getClass().getResource("/res/calgary_002.zip").getFile());
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    ZipFile zipFile = new ZipFile(file);
+    try
+    {
+      ZipArchive archive = new ZipArchive(input.getChannel());
+      for (int i = 0; i < ZIPReaderTest.testCalgary00Elements.length; i++)
+      {
+        String name = ZIPReaderTest.testCalgary00Elements[i].id;
+        byte[] expected = ZipParallelProcessorTest.readEntry(zipFile, name);
+        int index = archive.indexOf(name);
+        if (zipFile.getEntry(name).getMethod() != ZipEntry.DEFLATED)
+          continue;
+        ZipCheckpointIndex checkpoints = archive.createCheckpointIndex(index, 32768);
+        checkPositions(archive, index, checkpoints, expected);
+      }
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    zipFile.close();
+    input.close();
+  }
+
+  /** Verify the checkpoints of an archive created with different compression
+   *  levels, so that stored, fixed and dynamic blocks are all used, and
+   *  that the index can be saved and read back.
+   */
+  public void testCompressionLevels() throws IOException
+  {
+    byte[] data = createData(400000);
+    File file = File.createTempFile("checkpoints", ".zip");
+    file.deleteOnExit();
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+    for (int level = 0; level <= 9; level += 3)
+    {
+      zos.setLevel(level);
+      zos.putNextEntry(new ZipEntry("level" + Integer.toString(level)));
+      zos.write(data);
+      zos.closeEntry();
+    }
+    zos.close();
+
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try
+    {
+      ZipArchive archive = new ZipArchive(input.getChannel());
+      for (int level = 0; level <= 9; level += 3)
+      {
+        int index = archive.indexOf("level" + Integer.toString(level));
+        ZipCheckpointIndex checkpoints = archive.createCheckpointIndex(index, 20000);
+        assertTrue(checkpoints.getCheckpointCount() > 1);
+        checkPositions(archive, index, checkpoints, data);
+
+        // The saved index must give the same results
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        checkpoints.write(os);
+        ZipCheckpointIndex copy = ZipCheckpointIndex.read(new ByteArrayInputStream(os.toByteArray()));
+        assertEquals(checkpoints.getCheckpointCount(), copy.getCheckpointCount());
+        for (int i = 0; i < checkpoints.getCheckpointCount(); i++)
+        {
+          assertEquals(checkpoints.getCheckpointOffset(i), copy.getCheckpointOffset(i));
+        }
+        checkPositions(archive, index, copy, data);
+      }
+      // An index cannot be used for another entry
+      ZipCheckpointIndex checkpoints = archive.createCheckpointIndex(archive.indexOf("level3"), 20000);
+      try
+      {
+        archive.openEntry(archive.indexOf("level9"), 0, checkpoints);
+        fail();
+      } catch (IOException e)
+      {
+      }
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    input.close();
+  }
+
+  /** Verify that the data can be read from every checkpoint of an entry
+   *  that mixes text with incompressible data, so that stored blocks
+   *  follow compressed blocks that do not end on a byte boundary.
+   */
+  public void testStoredBlocks() throws IOException
+  {
+    byte[] data = createData(300000);
+    Random random = new Random(5678);
+    for (int i = 0; i < data.length; i += 40000)
+    {
+      for (int j = i; j < Math.min(i + 20000, data.length); j++)
+        data[j] = (byte) random.nextInt(256);
+    }
+    File file = File.createTempFile("checkpoints", ".zip");
+    file.deleteOnExit();
+    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+    zos.putNextEntry(new ZipEntry("mixed"));
+    zos.write(data);
+    zos.closeEntry();
+    zos.close();
+
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try
+    {
+      ZipArchive archive = new ZipArchive(input.getChannel());
+      int index = archive.indexOf("mixed");
+      ZipCheckpointIndex checkpoints = archive.createCheckpointIndex(index, 1);
+      assertTrue(checkpoints.getCheckpointCount() > 10);
+      for (int i = 0; i < checkpoints.getCheckpointCount(); i++)
+      {
+        int position = (int) checkpoints.getCheckpointOffset(i);
+        InputStream is = archive.openEntry(index, position, checkpoints);
+        byte[] result = ZipParallelProcessorTest.readAll(is);
+        is.close();
+        assertEquals(data.length - position, result.length);
+        for (int j = 0; j < result.length; j++)
+        {
+          if (result[j] != data[position + j])
+            fail("Checkpoint " + i + " differs at " + (position + j));
+        }
+      }
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    input.close();
+    file.delete();
+  }
+
+  /** Reads the data of an entry from several positions, with and without
+   *  the checkpoint index, and compares it with the expected data.
+   */
+  protected void checkPositions(ZipArchive archive, int index, ZipCheckpointIndex checkpoints,
+      byte[] expected) throws IOException
+  {
+    long[] positions = new long[] { 0, 1, expected.length / 3, expected.length / 2 + 7,
+        expected.length - 100, expected.length };
+    assertEquals(0, checkpoints.getCheckpointOffset(0));
+    for (int i = 1; i < checkpoints.getCheckpointCount(); i++)
+    {
+      assertTrue(checkpoints.getCheckpointOffset(i) > checkpoints.getCheckpointOffset(i - 1));
+    }
+    for (int i = 0; i < positions.length; i++)
+    {
+      int position = (int) Math.max(0, positions[i]);
+      byte[] tail = new byte[expected.length - position];
+      System.arraycopy(expected, position, tail, 0, tail.length);
+
+      InputStream is = archive.openEntry(index, position, checkpoints);
+      byte[] data = ZipParallelProcessorTest.readAll(is);
+      is.close();
+      assertEquals(tail.length, data.length);
+      TestUtilities.compareData(data, tail, tail.length);
+
+      // Also at every checkpoint
+      if (i < checkpoints.getCheckpointCount())
+      {
+        position = (int) checkpoints.getCheckpointOffset(i);
+        is = archive.openEntry(index, position, checkpoints);
+        int b = is.read();
+        is.close();
+        if (position < expected.length)
+          assertEquals(expected[position] & 0xFF, b);
+        else
+          assertEquals(-1, b);
+      }
+    }
+    InputStream is = archive.openEntry(index, expected.length / 4, null);
+    byte[] data = ZipParallelProcessorTest.readAll(is);
+    is.close();
+    assertEquals(expected.length - expected.length / 4, data.length);
+  }
+
+  /** Creates text like data that is compressible but not too repetitive. */
+  protected static byte[] createData(int size)
+  {
+    Random random = new Random(1234);
+    String[] words = new String[] { "stream", "chunk", "header", "document", "zip",
+        "inflate", "window", "block", "entry", "archive", "the", "of", "and" };
+    byte[] data = new byte[size];
+    int i = 0;
+    while (i < size)
+    {
+      String word = words[random.nextInt(words.length)];
+      for (int j = 0; (j < word.length()) && (i < size); j++)
+        data[i++] = (byte) word.charAt(j);
+      if (i < size)
+        data[i++] = (byte) ((random.nextInt(10) == 0) ? '\n' : ' ');
+      // Some random bytes so that the stored blocks are also tested
+      if ((random.nextInt(50) == 0) && (i < size))
+        data[i++] = (byte) random.nextInt(256);
+    }
+    return data;
+  }
+
+}
@@ -0,0 +1,156 @@
+package com.optimasc.streams.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.optimasc.io.FileDataOutputStream;
+import com.optimasc.streams.TestUtilities;
+import com.optimasc.zip.ZIPUtilities;
+import com.optimasc.zip.ZIPWriterImpl;
+import com.optimasc.zip.ZipConcurrentWriter;
+
+import junit.framework.TestCase;
+
+public class ZipConcurrentWriterTest extends TestCase
+{
+  /** Number of producer threads */
+  static final int THREAD_COUNT = 6;
+  /** Number of entries written by each thread */
+  static final int ENTRY_COUNT = 30;
+
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+  }
+
+  protected void tearDown() throws Exception
+  {
+    super.tearDown();
+  }
+
+  /** Verify that deflated entries written by several threads with a small
+   *  memory budget, which makes the threads wait and spill entries to
+   *  temporary files, can all be read back.
+   */
+  public void testDeflatedEntries() throws Exception
+  {
+    checkEntries(ZIPUtilities.COMPRESSION_DEFLATE, 256 * 1024);
+  }
+
+  /** Verify the same with stored entries. */
+  public void testStoredEntries() throws Exception
+  {
+    checkEntries(ZIPUtilities.COMPRESSION_NONE, 128 * 1024);
+  }
+
+  /** Returns the data of an entry, random data is used for some entries
+   *  so that they do not fit in the memory budget once compressed.
+   */
+  static byte[] entryData(int thread, int entry)
+  {
+    int size = ((thread * 7 + entry * 13) % 10) * 20000;
+    if ((entry % 10) == 9)
+    {
+      byte[] data = new byte[300000 + thread];
+      new Random(entry).nextBytes(data);
+      return data;
+    }
+    return ZipCheckpointIndexTest.createData(size);
+  }
+
+  protected void checkEntries(int method, long memoryBudget) throws Exception
+  {
+    OutputStream stream = new FileDataOutputStream("concurrent.zip");
+    ZIPWriterImpl writer = new ZIPWriterImpl();
+    writer.setOutput(stream, null);
+    writer.writeStartDocument("");
+    final ZipConcurrentWriter concurrentWriter = new ZipConcurrentWriter(writer, method, 6, memoryBudget);
+    final Exception[] failures = new Exception[THREAD_COUNT];
+    Thread[] threads = new Thread[THREAD_COUNT];
+    for (int i = 0; i < threads.length; i++)
+    {
+      final int thread = i;
+      threads[i] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            for (int j = 0; j < ENTRY_COUNT; j++)
+            {
+              byte[] data = entryData(thread, j);
+              OutputStream os = concurrentWriter.openEntry("thread" + thread + "/entry" + j);
+              // Write in pieces so that threads are interleaved
+              for (int k = 0; k < data.length; k += 7000)
+              {
+                os.write(data, k, Math.min(7000, data.length - k));
+              }
+              os.close();
+            }
+          } catch (Exception e)
+          {
+            failures[thread] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++)
+    {
+      threads[i].join();
+      assertNull(failures[i]);
+    }
+    concurrentWriter.finish();
+    writer.writeEndDocument();
+    writer.close();
+
+    ZipFile zipFile = new ZipFile("concurrent.zip");
+    assertEquals(THREAD_COUNT * ENTRY_COUNT, zipFile.size());
+    for (int i = 0; i < THREAD_COUNT; i++)
+    {
+      for (int j = 0; j < ENTRY_COUNT; j++)
+      {
+        byte[] expected = entryData(i, j);
+        ZipEntry entry = zipFile.getEntry("thread" + i + "/entry" + j);
+        assertEquals(method, entry.getMethod());
+        byte[] data = ZipParallelProcessorTest.readEntry(zipFile, entry.getName());
+        assertEquals(expected.length, data.length);
+        TestUtilities.compareData(data, expected, expected.length);
+      }
+    }
+    zipFile.close();
+    new File("concurrent.zip").delete();
+  }
+
+  /** Verify that the pipeline cannot be finished while entries are open. */
+  public void testOpenEntry() throws IOException
+  {
+    OutputStream stream = new FileDataOutputStream("open.zip");
+    ZIPWriterImpl writer = new ZIPWriterImpl();
+    writer.setOutput(stream, null);
+    writer.writeStartDocument("");
+    ZipConcurrentWriter concurrentWriter = new ZipConcurrentWriter(writer, ZIPUtilities.COMPRESSION_DEFLATE, 6, 65536);
+    OutputStream os = concurrentWriter.openEntry("entry");
+    os.write(1);
+    try
+    {
+      concurrentWriter.finish();
+      fail();
+    } catch (IllegalStateException e)
+    {
+    }
+    os.close();
+    concurrentWriter.finish();
+    writer.writeEndDocument();
+    writer.close();
+    ZipFile zipFile = new ZipFile("open.zip");
+    assertEquals(1, zipFile.getEntry("entry").getSize());
+    zipFile.close();
+    new File("open.zip").delete();
+  }
+
+}
@@ -0,0 +1,85 @@
+package com.optimasc.streams.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.optimasc.streams.DocumentStreamException;
+import com.optimasc.streams.internal.ResourceChunkInfo;
+import com.optimasc.zip.ZIPReaderImpl;
+import com.optimasc.zip.ZipEntryTable;
+
+import junit.framework.TestCase;
+
+public class ZipEntryTableTest extends TestCase
+{
+
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+  }
+
+  protected void tearDown() throws Exception
+  {
+    super.tearDown();
+  }
+
+  /** Verify that the records of the table match the central directory,
+   *  in all the header resolution modes.
+   */
+  public void testCalgaryTable() throws IOException
+  {
+    File file = new File(getClass().getResource("/res/calgary_002.zip").getFile());
+    ZipFile zipFile = new ZipFile(file);
+    long[] offsets = new long[ZIPReaderTest.testCalgary00Elements.length];
+    checkTable(file, zipFile, ZIPReaderImpl.RESOLVE_EACH, offsets, true);
+    checkTable(file, zipFile, ZIPReaderImpl.RESOLVE_SORTED, offsets, false);
+    checkTable(file, zipFile, ZIPReaderImpl.RESOLVE_LAZY, offsets, false);
+    zipFile.close();
+  }
+
+  /** Compares the table with the entries of the file, the data offsets are
+   *  stored in offsets if store is true, otherwise they are compared.
+   */
+  protected void checkTable(File file, ZipFile zipFile, int headerResolution, long[] offsets,
+      boolean store) throws IOException
+  {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try
+    {
+      ZipEntryTable table = new ZipEntryTable(input.getChannel(), headerResolution);
+      assertEquals(zipFile.size(), table.getEntryCount());
+      for (int i = 0; i < ZIPReaderTest.testCalgary00Elements.length; i++)
+      {
+        String name = ZIPReaderTest.testCalgary00Elements[i].id;
+        ZipEntry zipEntry = zipFile.getEntry(name);
+        int index = table.indexOf(name);
+        assertTrue(index >= 0);
+        assertEquals(name, table.getName(index));
+        assertEquals(zipEntry.getSize(), table.getSize(index));
+        assertEquals(zipEntry.getCompressedSize(), table.getCompressedSize(index));
+        assertEquals(zipEntry.getCrc(), table.getCrc(index));
+        assertEquals(zipEntry.getMethod(), table.getCompression(index));
+        if (store)
+        {
+          offsets[i] = table.getDataOffset(index, input.getChannel());
+          assertTrue(offsets[i] > table.getLocalHeaderOffset(index));
+        }
+        assertEquals(offsets[i], table.getDataOffset(index, input.getChannel()));
+        ResourceChunkInfo entry = table.getEntry(index);
+        assertEquals(name, entry.id);
+        assertEquals(zipEntry.getSize(), entry.getSize());
+        assertEquals(zipEntry.getCompressedSize(), entry.size);
+        assertEquals(zipEntry.getTime(), entry.getLastModifiedDate().getTime());
+      }
+      assertEquals(-1, table.indexOf("missing"));
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    input.close();
+  }
+
+}
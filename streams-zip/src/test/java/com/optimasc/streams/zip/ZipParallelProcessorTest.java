@@ -0,0 +1,166 @@
+package com.optimasc.streams.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Hashtable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.optimasc.streams.DocumentStreamException;
+import com.optimasc.streams.TestUtilities;
+import com.optimasc.zip.ZipParallelProcessor;
+
+import junit.framework.TestCase;
+
+public class ZipParallelProcessorTest extends TestCase
+{
+
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+  }
+
+  protected void tearDown() throws Exception
+  {
+    super.tearDown();
+  }
+
+  protected static byte[] readAll(InputStream is) throws IOException
+  {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int count;
+    while ((count = is.read(buffer, 0, buffer.length)) >= 0)
+    {
+      os.write(buffer, 0, count);
+    }
+    return os.toByteArray();
+  }
+
+  protected static byte[] readEntry(ZipFile zipFile, String name) throws IOException
+  {
+    ZipEntry entry = zipFile.getEntry(name);
+    byte[] data = new byte[(int) entry.getSize()];
+    DataInputStream is = new DataInputStream(zipFile.getInputStream(entry));
+    is.readFully(data);
+    is.close();
+    return data;
+  }
+
+  /** Verify that the data given to the callback is the uncompressed data
+   *  of each entry.
+   */
+  public void testCalgaryProcess() throws IOException
+  {
+    File file = new File(getClass().getResource("/res/calgary_002.zip").getFile());
+    final Hashtable results = new Hashtable();
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try
+    {
+      ZipParallelProcessor processor = new ZipParallelProcessor(input.getChannel());
+      processor.process(new ZipParallelProcessor.EntryHandler()
+      {
+        public void processEntry(String name, InputStream data) throws IOException
+        {
+          byte[] content = readAll(data);
+          synchronized (results)
+          {
+            results.put(name, content);
+          }
+        }
+      }, 4);
+      assertEquals(processor.getEntryCount(), results.size());
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    input.close();
+    ZipFile zipFile = new ZipFile(file);
+    assertEquals(zipFile.size(), results.size());
+    for (int i = 0; i < ZIPReaderTest.testCalgary00Elements.length; i++)
+    {
+      String name = ZIPReaderTest.testCalgary00Elements[i].id;
+      byte[] expected = readEntry(zipFile, name);
+      byte[] data = (byte[]) results.get(name);
+      assertEquals(expected.length, data.length);
+      TestUtilities.compareData(data, expected, expected.length);
+    }
+    zipFile.close();
+  }
+
+  /** Verify that the entries are extracted to the directory, and that
+   *  all the entries can be verified.
+   */
+  public void testCalgaryExtract() throws IOException
+  {
+    File file = new File(getClass().getResource("/res/calgary_002.zip").getFile());
+    File directory = new File("calgary");
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try
+    {
+      ZipParallelProcessor processor = new ZipParallelProcessor(input.getChannel());
+      processor.verify(3);
+      processor.extract(directory, 3);
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    }
+    input.close();
+    ZipFile zipFile = new ZipFile(file);
+    for (int i = 0; i < ZIPReaderTest.testCalgary00Elements.length; i++)
+    {
+      String name = ZIPReaderTest.testCalgary00Elements[i].id;
+      byte[] expected = readEntry(zipFile, name);
+      File extracted = new File(directory, name);
+      InputStream is = new FileInputStream(extracted);
+      byte[] data = readAll(is);
+      is.close();
+      assertEquals(expected.length, data.length);
+      TestUtilities.compareData(data, expected, expected.length);
+      extracted.delete();
+    }
+    zipFile.close();
+    directory.delete();
+  }
+
+  /** Verify that an entry whose CRC-32 does not match its data fails
+   *  the verification.
+   */
+  public void testVerifyCorrupt() throws IOException
+  {
+    File file = File.createTempFile("corrupt", ".zip");
+    InputStream is = getClass().getResourceAsStream("/res/calgary_002.zip");
+    byte[] data = readAll(is);
+    is.close();
+    int i;
+    // Corrupt the CRC-32 of the last central directory entry
+    for (i = data.length - 4; i >= 0; i--)
+    {
+      if ((data[i] == 'P') && (data[i + 1] == 'K') && (data[i + 2] == 1) && (data[i + 3] == 2))
+        break;
+    }
+    data[i + 16] ^= 0x55;
+    RandomAccessFile output = new RandomAccessFile(file, "rw");
+    output.write(data);
+    output.seek(0);
+    try
+    {
+      ZipParallelProcessor processor = new ZipParallelProcessor(output.getChannel());
+      processor.verify(2);
+      fail();
+    } catch (DocumentStreamException e)
+    {
+      fail();
+    } catch (IOException e)
+    {
+    }
+    output.close();
+    file.delete();
+  }
+
+}